@@ -0,0 +1,151 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates synthetic email messages and models for benchmarks.
+ *
+ * Words are drawn from a vocabulary with a Zipf distribution, which is close
+ * to how words are distributed in real mail.  Spam and ham draw from the
+ * same vocabulary with the ranks rotated, so the two classes share words but
+ * favour different ones.  A configurable share of messages is sent as HTML.
+ * The same seed always produces the same corpus.
+ */
+public class CorpusGenerator {
+    private final String[] vocabulary;
+    private final double[] cumulative;
+    private final int messageLength;
+    private final double htmlRatio;
+    private final Random random;
+
+    /**
+     * @param vocabularySize Number of distinct words
+     * @param messageLength Average number of words per message body
+     * @param htmlRatio Share of messages with an HTML body, between 0 and 1
+     * @param seed
+     */
+    public CorpusGenerator(int vocabularySize, int messageLength, double htmlRatio, long seed) {
+        this.messageLength = messageLength;
+        this.htmlRatio = htmlRatio;
+        this.random = new Random(seed);
+        vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            vocabulary[i] = word(i);
+        }
+        cumulative = new double[vocabularySize];
+        double sum = 0;
+        for (int i = 0; i < vocabularySize; i++) {
+            sum += 1d / (i + 1);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < vocabularySize; i++) {
+            cumulative[i] /= sum;
+        }
+    }
+
+    /**
+     * A pronounceable-ish word for a rank, mixing case the way mail does
+     */
+    private static String word(int rank) {
+        StringBuilder sb = new StringBuilder();
+        int n = rank;
+        do {
+            sb.append("bcdfghjklmnpqrstvwxz".charAt(n % 20));
+            n /= 20;
+            sb.append("aeiou".charAt(n % 5));
+            n /= 5;
+        } while (n > 0);
+        if (rank % 7 == 0) {
+            sb.setCharAt(0, Character.toUpperCase(sb.charAt(0)));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Draw a word for a class
+     * @param isSpam
+     * @return
+     */
+    public String nextWord(boolean isSpam) {
+        int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+        if (rank < 0) {
+            rank = Math.min(-rank - 1, vocabulary.length - 1);
+        }
+        if (isSpam) {
+            rank = (rank + vocabulary.length / 2) % vocabulary.length;
+        }
+        return vocabulary[rank];
+    }
+
+    /**
+     * Text of a message body, without headers
+     * @param isSpam
+     * @return
+     */
+    public String nextBody(boolean isSpam) {
+        int length = messageLength / 2 + random.nextInt(messageLength + 1);
+        StringBuilder sb = new StringBuilder(length * 8);
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                sb.append(i % 12 == 11 ? ". " : " ");
+            }
+            sb.append(nextWord(isSpam));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A raw message with headers and a plain text or HTML body
+     * @param isSpam
+     * @return
+     */
+    public String nextMessage(boolean isSpam) {
+        String lineSeparator = System.getProperty("line.separator");
+        StringBuilder sb = new StringBuilder();
+        sb.append("From: ").append(nextWord(isSpam)).append("@example.com").append(lineSeparator);
+        sb.append("Subject: ").append(nextWord(isSpam)).append(' ').append(nextWord(isSpam)).append(lineSeparator);
+        sb.append(lineSeparator);
+        if (random.nextDouble() < htmlRatio) {
+            sb.append(html(nextBody(isSpam)));
+        } else {
+            sb.append(nextBody(isSpam));
+        }
+        return sb.toString();
+    }
+
+    private String html(String body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("<html><head><title>").append(nextWord(true)).append("</title></head><body>");
+        sb.append("<div class=\"nav\"><a href=\"#\">").append(nextWord(false)).append("</a></div>");
+        int start = 0;
+        while (start < body.length()) {
+            int end = body.indexOf(". ", start + 60);
+            end = end < 0 ? body.length() : end + 1;
+            sb.append("<p>").append(body, start, end).append("</p>");
+            start = end;
+        }
+        sb.append("<div class=\"footer\">unsubscribe</div></body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * Model with every vocabulary word, as if trained with a number of messages
+     * @param messages Number of messages of each class
+     * @return
+     */
+    public ModelStats model(int messages) {
+        ModelStats stats = new ModelStats();
+        long tokens = (long) messages * messageLength;
+        stats.addMessages(true, messages, tokens);
+        stats.addMessages(false, messages, tokens);
+        for (int rank = 0; rank < vocabulary.length; rank++) {
+            long count = Math.max(1, (long) (tokens / ((rank + 1) * Math.log(vocabulary.length))));
+            stats.addTokenCount(vocabulary[rank].toLowerCase(), false, count);
+            stats.addTokenCount(vocabulary[(rank + vocabulary.length / 2) % vocabulary.length].toLowerCase(), true, count);
+        }
+        return stats;
+    }
+}
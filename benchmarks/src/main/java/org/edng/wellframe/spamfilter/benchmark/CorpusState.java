@@ -0,0 +1,37 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Pre-generated messages shared by the benchmarks of a trial.  Generation is
+ * kept out of the measured code.
+ */
+@State(Scope.Benchmark)
+public class CorpusState {
+    @Param({"100000"})
+    public int vocabularySize;
+    @Param({"200"})
+    public int messageLength;
+    @Param({"0.3"})
+    public double htmlRatio;
+
+    public static final int MESSAGES = 1024;
+
+    public CorpusGenerator generator;
+    public String[] messages;
+    public String[] bodies;
+
+    @Setup
+    public void setUp() {
+        generator = new CorpusGenerator(vocabularySize, messageLength, htmlRatio, 42);
+        messages = new String[MESSAGES];
+        bodies = new String[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++) {
+            messages[i] = generator.nextMessage(i % 2 == 0);
+            bodies[i] = generator.nextBody(i % 2 == 0);
+        }
+    }
+}
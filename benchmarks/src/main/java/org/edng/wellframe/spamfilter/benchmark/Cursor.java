@@ -0,0 +1,17 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Per-thread position in the pre-generated messages
+ */
+@State(Scope.Thread)
+public class Cursor {
+    private int next;
+
+    public int next() {
+        next = (next + 1) & (CorpusState.MESSAGES - 1);
+        return next;
+    }
+}
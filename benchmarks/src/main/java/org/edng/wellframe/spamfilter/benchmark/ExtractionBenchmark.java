@@ -0,0 +1,38 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.edng.wellframe.spamfilter.tool.EmailParser;
+import org.edng.wellframe.spamfilter.tool.HtmlTextExtractor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extracting the body and the text of HTML from raw messages.  Use the
+ * htmlRatio parameter to control how many messages go through boilerpipe.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractionBenchmark {
+    private EmailParser emailParser;
+    private HtmlTextExtractor htmlTextExtractor;
+
+    @Setup
+    public void setUp() {
+        emailParser = new EmailParser();
+        htmlTextExtractor = new HtmlTextExtractor();
+    }
+
+    @Benchmark
+    public String getBody(CorpusState corpus, Cursor cursor) {
+        return emailParser.getBody(corpus.messages[cursor.next()]);
+    }
+
+    @Benchmark
+    public String getTextByHtml(CorpusState corpus, Cursor cursor) {
+        return htmlTextExtractor.getTextByHtml(emailParser.getBody(corpus.messages[cursor.next()]));
+    }
+}
@@ -0,0 +1,52 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.edng.wellframe.spamfilter.tool.ModelSnapshot;
+import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.edng.wellframe.spamfilter.tool.Score;
+import org.edng.wellframe.spamfilter.tool.TermFilter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scoring message bodies against a large model, on one thread and on as many
+ * threads as there are processors.  The model holds every word of the corpus
+ * vocabulary.  Discriminative scoring uses the 15 strongest tokens and stops
+ * at 99.9% confidence.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ScoringBenchmark {
+    private ModelSnapshot snapshot;
+
+    @Setup
+    public void setUp(CorpusState corpus) {
+        snapshot = new ModelSnapshot(corpus.generator.model(100000),
+                new HashSet<String>(Arrays.asList(NaiveBayesSpamFilter.STOP_WORDS)), 0);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public float spamProbability(CorpusState corpus, Cursor cursor) {
+        return snapshot.spamProbability(corpus.bodies[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public float spamProbabilityConcurrent(CorpusState corpus, Cursor cursor) {
+        return snapshot.spamProbability(corpus.bodies[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Score discriminativeScore(CorpusState corpus, Cursor cursor) {
+        TermFilter termFilter = snapshot.newTermFilter().reset(corpus.bodies[cursor.next()]);
+        return snapshot.getScorer().discriminativeScore(termFilter, 15, Math.log(0.999 / 0.001), 0);
+    }
+}
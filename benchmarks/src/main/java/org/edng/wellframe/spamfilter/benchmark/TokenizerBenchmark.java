@@ -0,0 +1,50 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.edng.wellframe.spamfilter.tool.TermFilter;
+import org.edng.wellframe.spamfilter.tool.TokenStore;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizing message bodies with the default stop words
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizerBenchmark {
+    private TermFilter termFilter;
+
+    @Setup
+    public void setUp() {
+        TokenStore stopWords = TermFilter.compileStopWords(
+                new HashSet<String>(Arrays.asList(NaiveBayesSpamFilter.STOP_WORDS)));
+        termFilter = new TermFilter(stopWords);
+    }
+
+    @Benchmark
+    public void nextToken(CorpusState corpus, Cursor cursor, Blackhole blackhole) {
+        termFilter.reset(corpus.bodies[cursor.next()]);
+        String token;
+        while ( (token = termFilter.nextToken()) != null ) {
+            blackhole.consume(token);
+        }
+    }
+
+    @Benchmark
+    public int next(CorpusState corpus, Cursor cursor) {
+        termFilter.reset(corpus.bodies[cursor.next()]);
+        int length = 0;
+        while (termFilter.next()) {
+            length += termFilter.length();
+        }
+        return length;
+    }
+}
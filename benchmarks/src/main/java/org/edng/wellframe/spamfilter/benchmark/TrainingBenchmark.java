@@ -0,0 +1,79 @@
+package org.edng.wellframe.spamfilter.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Training messages and merging them into the model, using the application
+ * context on a temporary data directory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+@State(Scope.Benchmark)
+public class TrainingBenchmark {
+    @Param({"100"})
+    public int messagesPerMerge;
+
+    private File dataDir;
+    private AnnotationConfigApplicationContext ctx;
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    private long counter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("spamfilter-benchmark").toFile();
+        // system properties take precedence over spamfilter.properties
+        System.setProperty("datadir.messages", dataDir + "/messages");
+        System.setProperty("datadir.stats", dataDir + "/stats");
+        ctx = new AnnotationConfigApplicationContext(ApplicationConfiguration.class);
+        naiveBayesSpamFilter = ctx.getBean(NaiveBayesSpamFilter.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ctx.close();
+        FileUtils.deleteDirectory(dataDir);
+    }
+
+    /**
+     * Every trained message must be new, or it's skipped as a duplicate
+     */
+    private String uniqueBody(CorpusState corpus, Cursor cursor) {
+        return corpus.bodies[cursor.next()] + " " + Long.toString(counter++, 36);
+    }
+
+    @Benchmark
+    public void train(CorpusState corpus, Cursor cursor) throws IOException {
+        naiveBayesSpamFilter.train(uniqueBody(corpus, cursor), (counter & 1) == 0, false);
+    }
+
+    /**
+     * Trains a batch of messages outside the measurement before each merge
+     */
+    @State(Scope.Thread)
+    public static class PendingMessages {
+        @Setup(Level.Invocation)
+        public void setUp(TrainingBenchmark benchmark, CorpusState corpus, Cursor cursor) throws IOException {
+            for (int i = 0; i < benchmark.messagesPerMerge; i++) {
+                benchmark.train(corpus, cursor);
+            }
+        }
+    }
+
+    @Benchmark
+    public void mergeStats(PendingMessages pending) throws IOException {
+        naiveBayesSpamFilter.mergeStats();
+    }
+}
@@ -23,7 +23,9 @@ public class ApplicationConfiguration {
     public FileHandler fileHandler() {
         return new FileHandler(
                 environment.getProperty("datadir.messages"),
-                environment.getProperty("datadir.stats"));
+                environment.getProperty("datadir.stats"),
+                environment.getProperty("dedup.bloomFilterBits", Long.class, 0L),
+                environment.getProperty("archive.segmentBytes", Long.class, 0L));
     }
 
 }
\ No newline at end of file
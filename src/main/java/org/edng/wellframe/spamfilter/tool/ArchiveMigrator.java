@@ -0,0 +1,140 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command line tool to move the deep directory trees of spam_archive and
+ * ham_archive into {@link ArchiveStore} segments.
+ *
+ * Each directory is migrated as a unit: the files of its messages are
+ * appended, the archive is synced and only then are the files deleted, so
+ * an interrupted migration can simply be run again.  Messages appended
+ * twice that way are harmless, lookups return the latest copy.  Files that
+ * aren't named after an MD5 are left where they are.  The application must
+ * not be running while the tool is.
+ */
+public class ArchiveMigrator {
+    private static final int MD5_LENGTH = 32;
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            printHelp();
+            return;
+        }
+
+        File dir = new File(args[0]);
+        long segmentBytes = args.length > 1 ? Long.parseLong(args[1]) : 64L << 20;
+        for (String name : new String[]{"spam_archive", "ham_archive"}) {
+            File archiveDir = new File(dir, name);
+            if (!archiveDir.isDirectory()) {
+                System.out.println("Directory " + archiveDir + " does not exist, skipping");
+                continue;
+            }
+            ArchiveStore archive = new ArchiveStore(archiveDir, segmentBytes);
+            try {
+                long messages = migrate(archiveDir, archive);
+                System.out.println("Migrated " + messages + " messages in " + archiveDir
+                        + " into " + archive.getSegmentCount() + " segments");
+            } finally {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Move every message under the subdirectories of an archive directory
+     * into the archive and delete the directories that end up empty
+     * @param archiveDir
+     * @param archive
+     * @return Number of messages migrated
+     * @throws IOException
+     */
+    public static long migrate(File archiveDir, ArchiveStore archive) throws IOException {
+        long messages = 0;
+        File[] children = archiveDir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        for (File child : children) {
+            // segments sit at the top, the tree is in subdirectories
+            if (child.isDirectory()) {
+                messages += migrateDirectory(child, archive);
+            }
+        }
+        return messages;
+    }
+
+    private static long migrateDirectory(File dir, ArchiveStore archive) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return 0;
+        }
+        long messages = 0;
+        // files of each message, keyed by MD5
+        Map<String, Map<String, File>> grouped = new TreeMap<String, Map<String, File>>();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                messages += migrateDirectory(child, archive);
+            } else if (isMessageFile(child.getName())) {
+                String md5 = child.getName().substring(0, MD5_LENGTH);
+                Map<String, File> files = grouped.get(md5);
+                if (files == null) {
+                    files = new TreeMap<String, File>();
+                    grouped.put(md5, files);
+                }
+                files.put(child.getName(), child);
+            } else {
+                System.out.println("Leaving " + child + ", it is not a message file");
+            }
+        }
+        if (!grouped.isEmpty()) {
+            for (Map.Entry<String, Map<String, File>> message : grouped.entrySet()) {
+                Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+                for (Map.Entry<String, File> file : message.getValue().entrySet()) {
+                    contents.put(file.getKey(), Files.readAllBytes(file.getValue().toPath()));
+                }
+                archive.append(message.getKey(), contents);
+            }
+            archive.sync();
+            for (Map<String, File> files : grouped.values()) {
+                for (File file : files.values()) {
+                    if (!file.delete()) {
+                        System.out.println("Failed to delete migrated file " + file);
+                    }
+                }
+            }
+            messages += grouped.size();
+        }
+        String[] left = dir.list();
+        if (left != null && left.length == 0) {
+            dir.delete();
+        }
+        return messages;
+    }
+
+    private static boolean isMessageFile(String name) {
+        if (name.length() <= MD5_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < MD5_LENGTH; i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        for (String suffix : FileHandler.MESSAGE_FILE_SUFFIXES) {
+            if (name.length() == MD5_LENGTH + suffix.length() && name.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void printHelp() {
+        System.out.println("ArchiveMigrator <messages directory> [segment bytes]");
+    }
+}
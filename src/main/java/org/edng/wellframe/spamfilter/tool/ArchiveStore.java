@@ -0,0 +1,403 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Append-only archive of the files of merged messages.
+ *
+ * Instead of a file per archived message in a deep directory tree, the
+ * files of a message are deflated together into one record appended to the
+ * current segment.  Once a segment reaches its size limit it is sealed with
+ * an index of its digests sorted for binary search and a new segment is
+ * started, so the archive is a handful of large files however many
+ * messages it holds.  Digests of the current segment are kept in memory
+ * and rebuilt by scanning it when the archive is opened.
+ *
+ * A message archived more than once, for example after stats were cleared
+ * and it was trained again, is looked up as its latest record.
+ *
+ * Record layout:
+ * <pre>
+ *   int   payload length
+ *   int   CRC32 of payload
+ *   long  digest high bits, long digest low bits
+ *   deflated: int file count, per file: UTF name, int length, bytes
+ * </pre>
+ * Index layout: per record long digest high bits, long digest low bits and
+ * long offset in the segment, sorted by digest.  A truncated record at the
+ * end of the current segment, as left by a crash, is cut off on open.
+ */
+public class ArchiveStore {
+    protected Logger log = Logger.getLogger(ArchiveStore.class);
+
+    private static final String PREFIX = "archive-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int INDEX_ENTRY_SIZE = 24;
+
+    private final File directory;
+    private final long segmentBytes;
+    private final Deflater deflater = new Deflater();
+
+    // sealed segment numbers, oldest first
+    private final List<Long> sealed = new ArrayList<Long>();
+    // digest to offset of the latest record in the current segment
+    private final Map<String, Long> currentIndex = new HashMap<String, Long>();
+    private long current;
+    private FileOutputStream fileOutputStream;
+    private DataOutputStream out;
+    private long currentBytes;
+
+    /**
+     * Open an archive, creating it if the directory has none
+     * @param directory Where segments and their indexes are kept
+     * @param segmentBytes Seal a segment once it holds about this many bytes
+     * @throws IOException
+     */
+    public ArchiveStore(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        List<Long> segments = listSegments();
+        current = segments.isEmpty() ? 1 : segments.get(segments.size() - 1);
+        for (long segment : segments) {
+            if (segment != current) {
+                if (!indexFile(segment).exists()) {
+                    log.warn("Rebuilding missing index of archive segment " + segmentFile(segment));
+                    Map<String, Long> index = new HashMap<String, Long>();
+                    scan(segment, index);
+                    writeIndex(segment, index);
+                }
+                sealed.add(segment);
+            }
+        }
+        if (indexFile(current).exists()) {
+            // sealed just before the next segment was started
+            sealed.add(current++);
+        }
+        File file = segmentFile(current);
+        currentBytes = scan(current, currentIndex);
+        if (file.exists() && file.length() > currentBytes) {
+            log.warn("Dropping partial record at the end of " + file);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(currentBytes);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        openCurrent();
+        log.info("Opened archive " + directory + ": " + (sealed.size() + 1) + " segments");
+    }
+
+    private void openCurrent() throws FileNotFoundException {
+        fileOutputStream = new FileOutputStream(segmentFile(current), true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 65536));
+    }
+
+    /**
+     * Append the files of a message.  The record is buffered; call
+     * {@link #flush()} or {@link #sync()} before relying on it.
+     * @param digest 32 hex characters
+     * @param files File contents keyed by name
+     * @throws IOException
+     */
+    public synchronized void append(String digest, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeLong(DedupIndex.parseHex(digest, 0));
+        header.writeLong(DedupIndex.parseHex(digest, 16));
+        header.flush();
+        deflater.reset();
+        DeflaterOutputStream deflated = new DeflaterOutputStream(bytes, deflater);
+        DataOutputStream body = new DataOutputStream(deflated);
+        body.writeInt(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            body.writeUTF(file.getKey());
+            body.writeInt(file.getValue().length);
+            body.write(file.getValue());
+        }
+        body.flush();
+        deflated.finish();
+        byte[] record = bytes.toByteArray();
+
+        if (currentBytes > 0 && currentBytes + 8 + record.length > segmentBytes) {
+            roll();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+        currentIndex.put(digest.toUpperCase(Locale.ROOT), currentBytes);
+        currentBytes += 8 + record.length;
+    }
+
+    /**
+     * Seal the current segment with a sorted index and start the next one
+     * @throws IOException
+     */
+    private void roll() throws IOException {
+        sync();
+        out.close();
+        writeIndex(current, currentIndex);
+        sealed.add(current);
+        currentIndex.clear();
+        current++;
+        currentBytes = 0;
+        openCurrent();
+    }
+
+    /**
+     * Whether a message is in the archive
+     * @param digest
+     * @return
+     * @throws IOException
+     */
+    public synchronized boolean contains(String digest) throws IOException {
+        return locate(digest) != null;
+    }
+
+    /**
+     * Files of the latest record of a message
+     * @param digest
+     * @return File contents keyed by name, or null if the message is not archived
+     * @throws IOException
+     */
+    public synchronized Map<String, byte[]> get(String digest) throws IOException {
+        long[] location = locate(digest);
+        if (location == null) {
+            return null;
+        }
+        if (location[0] == current) {
+            out.flush();
+        }
+        return read(location[0], location[1]);
+    }
+
+    /**
+     * Segment and offset of the latest record of a message, or null
+     */
+    private long[] locate(String digest) throws IOException {
+        Long offset = currentIndex.get(digest.toUpperCase(Locale.ROOT));
+        if (offset != null) {
+            return new long[]{current, offset};
+        }
+        long high = DedupIndex.parseHex(digest, 0);
+        long low = DedupIndex.parseHex(digest, 16);
+        for (int i = sealed.size() - 1; i >= 0; i--) {
+            long found = search(sealed.get(i), high, low);
+            if (found >= 0) {
+                return new long[]{sealed.get(i), found};
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Binary search of a sealed segment's index
+     * @return Offset of the record, or -1
+     */
+    private long search(long segment, long high, long low) throws IOException {
+        RandomAccessFile index = new RandomAccessFile(indexFile(segment), "r");
+        try {
+            long lo = 0;
+            long hi = index.length() / INDEX_ENTRY_SIZE - 1;
+            while (lo <= hi) {
+                long mid = (lo + hi) >>> 1;
+                index.seek(mid * INDEX_ENTRY_SIZE);
+                int cmp = compare(index.readLong(), index.readLong(), high, low);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return index.readLong();
+                }
+            }
+            return -1;
+        } finally {
+            index.close();
+        }
+    }
+
+    private static int compare(long high1, long low1, long high2, long low2) {
+        int cmp = Long.compare(high1, high2);
+        return cmp != 0 ? cmp : Long.compare(low1, low2);
+    }
+
+    private Map<String, byte[]> read(long segment, long offset) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(segmentFile(segment), "r");
+        byte[] record;
+        int expectedCrc;
+        try {
+            file.seek(offset);
+            record = new byte[file.readInt()];
+            expectedCrc = file.readInt();
+            file.readFully(record);
+        } finally {
+            file.close();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Damaged archive record at " + offset + " in " + segmentFile(segment));
+        }
+        DataInputStream body = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(record, 16, record.length - 16)));
+        Map<String, byte[]> files = new LinkedHashMap<String, byte[]>();
+        int count = body.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = body.readUTF();
+            byte[] content = new byte[body.readInt()];
+            body.readFully(content);
+            files.put(name, content);
+        }
+        return files;
+    }
+
+    /**
+     * Read the digests of a segment into an index, keeping the latest
+     * offset of each
+     * @return Length of the intact part of the segment
+     */
+    private long scan(long segment, Map<String, Long> index) throws IOException {
+        File file = segmentFile(segment);
+        if (!file.exists()) {
+            return 0;
+        }
+        long length = file.length();
+        long offset = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            while (offset + 8 <= length) {
+                int recordLength = in.readInt();
+                int expectedCrc = in.readInt();
+                if (recordLength < 16 || recordLength > length - offset - 8) {
+                    break;
+                }
+                byte[] record = new byte[recordLength];
+                in.readFully(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                DataInputStream digest = new DataInputStream(new ByteArrayInputStream(record, 0, 16));
+                index.put(String.format("%016X%016X", digest.readLong(), digest.readLong()), offset);
+                offset += 8 + recordLength;
+            }
+        } finally {
+            in.close();
+        }
+        return offset;
+    }
+
+    private void writeIndex(long segment, Map<String, Long> index) throws IOException {
+        final long[] highs = new long[index.size()];
+        final long[] lows = new long[index.size()];
+        long[] offsets = new long[index.size()];
+        Integer[] order = new Integer[index.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> entry : index.entrySet()) {
+            highs[i] = DedupIndex.parseHex(entry.getKey(), 0);
+            lows[i] = DedupIndex.parseHex(entry.getKey(), 16);
+            offsets[i] = entry.getValue();
+            order[i] = i;
+            i++;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return ArchiveStore.compare(highs[a], lows[a], highs[b], lows[b]);
+            }
+        });
+        File file = indexFile(segment);
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tempFile);
+        DataOutputStream indexOut = new DataOutputStream(new BufferedOutputStream(fileOut, 65536));
+        try {
+            for (int entry : order) {
+                indexOut.writeLong(highs[entry]);
+                indexOut.writeLong(lows[entry]);
+                indexOut.writeLong(offsets[entry]);
+            }
+            indexOut.flush();
+            fileOut.getChannel().force(false);
+        } finally {
+            indexOut.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Hand buffered records to the operating system
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flush buffered records and sync them to disk
+     * @throws IOException
+     */
+    public synchronized void sync() throws IOException {
+        out.flush();
+        fileOutputStream.getChannel().force(false);
+    }
+
+    /**
+     * Number of segments, including the current one
+     * @return
+     */
+    public synchronized int getSegmentCount() {
+        return sealed.size() + 1;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            sync();
+            out.close();
+            out = null;
+            deflater.end();
+        }
+    }
+
+    private List<Long> listSegments() {
+        String[] names = directory.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String s) {
+                return s.startsWith(PREFIX) && s.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        List<Long> segments = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, PREFIX + String.format("%010d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private File indexFile(long segment) {
+        return new File(directory, PREFIX + String.format("%010d", segment) + INDEX_SUFFIX);
+    }
+}
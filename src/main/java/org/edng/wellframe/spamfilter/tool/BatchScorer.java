@@ -0,0 +1,183 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Scores raw email messages, alone or in batches scored in parallel.
+ *
+ * The snapshot is read once per batch, so every message in a batch is scored
+ * against the same model even if a merge publishes a new one meanwhile.
+ * Messages are split into one strided slice per thread rather than one task
+ * per message, which keeps scheduling overhead flat for large batches.
+ *
+ * Results are looked up in the {@link ResultCache} by the digest of the raw
+ * message first, which skips extraction as well as scoring for repeats.
+ *
+ * With scoring.topTokens set, messages are scored by their most
+ * discriminative tokens only and reading stops once the evidence passes
+ * scoring.exitConfidence or scoring.maxTokens tokens have been read; see
+ * {@link LogSpaceScorer#discriminativeScore}.
+ */
+@Component
+public class BatchScorer {
+    protected Logger log = Logger.getLogger(BatchScorer.class);
+
+    @Resource
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    @Resource
+    private EmailParser emailParser;
+    @Resource
+    private HtmlTextExtractor htmlTextExtractor;
+    @Resource
+    private FileHandler fileHandler;
+    @Resource
+    private ResultCache resultCache;
+    @Resource
+    private PipelineMetrics pipelineMetrics;
+    @Resource
+    private Environment environment;
+
+    private ExecutorService executor;
+    private int threads;
+    private int maxMessages;
+    private int topTokens;
+    private double exitLogOdds;
+    private int maxTokens;
+
+    @PostConstruct
+    public void init() {
+        threads = environment.getProperty("batch.scoringThreads", Integer.class, 0);
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        maxMessages = environment.getProperty("batch.maxMessages", Integer.class, 1000);
+        topTokens = environment.getProperty("scoring.topTokens", Integer.class, 0);
+        double exitConfidence = environment.getProperty("scoring.exitConfidence", Double.class, 0d);
+        exitLogOdds = exitConfidence > 0.5 && exitConfidence < 1 ? Math.log(exitConfidence / (1 - exitConfidence)) : 0d;
+        maxTokens = environment.getProperty("scoring.maxTokens", Integer.class, 0);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "batch-scorer-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @PreDestroy
+    public void destroy() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Most messages accepted in one batch, so a single request can't hold
+     * every scoring thread for long
+     * @return
+     */
+    public int getMaxMessages() {
+        return maxMessages;
+    }
+
+    /**
+     * Spam probability of a single message, extracting the body and the text
+     * of any HTML first
+     * @param message Raw email message
+     * @return
+     */
+    public float spamProbability(String message) {
+        ModelSnapshot current = naiveBayesSpamFilter.getSnapshot();
+        return spamProbability(current, current.newTermFilter(), message);
+    }
+
+    /**
+     * Spam probability of each message, extracting the body and the text of
+     * any HTML first
+     * @param messages Raw email messages
+     * @return Probabilities in the order of the messages
+     */
+    public float[] spamProbabilities(final List<String> messages) {
+        final ModelSnapshot current = naiveBayesSpamFilter.getSnapshot();
+        final float[] probabilities = new float[messages.size()];
+        final int slices = Math.min(threads, messages.size());
+        if (slices <= 1) {
+            score(current, messages, probabilities, 0, 1);
+            return probabilities;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(slices);
+        for (int i = 0; i < slices; i++) {
+            final int first = i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    score(current, messages, probabilities, first, slices);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring batch", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to score batch", e.getCause());
+        }
+        return probabilities;
+    }
+
+    private void score(ModelSnapshot current, List<String> messages, float[] probabilities, int first, int stride) {
+        TermFilter termFilter = current.newTermFilter();
+        for (int i = first; i < probabilities.length; i += stride) {
+            probabilities[i] = spamProbability(current, termFilter, messages.get(i));
+        }
+    }
+
+    private float spamProbability(ModelSnapshot current, TermFilter termFilter, String message) {
+        long start = System.nanoTime();
+        String digest = null;
+        if (resultCache.isEnabled()) {
+            digest = fileHandler.generateMd5Filename(message);
+            Float cached = resultCache.get(digest, current);
+            pipelineMetrics.record(PipelineMetrics.Stage.CACHE, start);
+            if (cached != null) {
+                pipelineMetrics.record(PipelineMetrics.Stage.CHECK, start);
+                return cached;
+            }
+        }
+        long stageStart = System.nanoTime();
+        String body = emailParser.getBody(message);
+        pipelineMetrics.record(PipelineMetrics.Stage.PARSE, stageStart);
+        stageStart = System.nanoTime();
+        String content = htmlTextExtractor.getTextByHtml(body);
+        pipelineMetrics.record(PipelineMetrics.Stage.EXTRACT, stageStart);
+        stageStart = System.nanoTime();
+        float probability;
+        if (topTokens > 0) {
+            Score score = current.getScorer().discriminativeScore(termFilter.reset(content), topTokens, exitLogOdds, maxTokens);
+            pipelineMetrics.recordScore(score);
+            probability = score.getProbability();
+        } else {
+            probability = current.getScorer().spamProbability(termFilter.reset(content));
+        }
+        pipelineMetrics.record(PipelineMetrics.Stage.SCORE, stageStart);
+        if (digest != null) {
+            resultCache.put(digest, current, probability);
+        }
+        pipelineMetrics.record(PipelineMetrics.Stage.CHECK, start);
+        return probability;
+    }
+}
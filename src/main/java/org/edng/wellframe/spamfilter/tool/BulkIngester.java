@@ -0,0 +1,231 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trains a whole directory tree of email messages in parallel.
+ *
+ * The directory is walked recursively and files are handed to a pool of
+ * workers through a bounded queue, so memory does not grow with the size of
+ * the corpus.  Each worker parses, extracts and tokenizes messages into its
+ * own partial {@link ModelStats}.  A partial is merged into the model as a
+ * training log record of its own, and its messages marked merged, whenever
+ * the worker's vocabulary grows past a threshold and when it finishes, so
+ * records stay bounded and an interrupted ingest keeps what it merged.
+ *
+ * Unlike {@link NaiveBayesSpamFilter#train(String, boolean, boolean)} no
+ * per-message files are written.  Messages that are already merged or occur
+ * twice in the tree are skipped.
+ */
+@Component
+public class BulkIngester {
+    protected Logger log = Logger.getLogger(BulkIngester.class);
+
+    @Resource
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    @Resource
+    private FileHandler fileHandler;
+    @Resource
+    private EmailParser emailParser;
+    @Resource
+    private HtmlTextExtractor htmlTextExtractor;
+    @Resource
+    private Environment environment;
+
+    private static final File END = new File("");
+
+    private final AtomicLong filesRead = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong messagesTrained = new AtomicLong();
+    private final AtomicLong messagesSkipped = new AtomicLong();
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    /**
+     * Train every file under a directory
+     * @param dir Root of the directory tree
+     * @param isSpam Whether the messages are spam
+     * @param workers Number of worker threads, 0 for the bulk.workers property
+     * @param progress Where progress and throughput are reported
+     * @return Number of messages trained
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized long ingest(File dir, final boolean isSpam, int workers, final PrintStream progress)
+            throws IOException, InterruptedException {
+        if (workers <= 0) {
+            workers = environment.getProperty("bulk.workers", Integer.class, 0);
+        }
+        if (workers <= 0) {
+            workers = Runtime.getRuntime().availableProcessors();
+        }
+        final int flushTokens = environment.getProperty("bulk.flushTokens", Integer.class, 1000000);
+        long progressIntervalMillis = environment.getProperty("bulk.progressIntervalMillis", Long.class, 10000L);
+
+        filesRead.set(0);
+        bytesRead.set(0);
+        messagesTrained.set(0);
+        messagesSkipped.set(0);
+        filesFailed.set(0);
+        final long startMillis = System.currentTimeMillis();
+        final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(workers * 64);
+        final Set<String> messageMd5s = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final TokenStore stopWords = TermFilter.compileStopWords(naiveBayesSpamFilter.getSnapshot().getStopWordSet());
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers, threadFactory("bulk-ingest"));
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(threadFactory("bulk-progress"));
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(progress, startMillis);
+            }
+        }, progressIntervalMillis, progressIntervalMillis, TimeUnit.MILLISECONDS);
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        work(queue, isSpam, stopWords, messageMd5s, flushTokens);
+                        return null;
+                    }
+                }));
+            }
+            walk(dir, queue, futures);
+            for (int i = 0; i < workers; i++) {
+                queue.put(END);
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Bulk ingest failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            reporter.shutdownNow();
+        }
+
+        report(progress, startMillis);
+        return messagesTrained.get();
+    }
+
+    /**
+     * Feed every file in the tree to the workers, depth first
+     */
+    private void walk(File dir, BlockingQueue<File> queue, List<Future<Void>> futures)
+            throws InterruptedException, ExecutionException {
+        Deque<File> pending = new ArrayDeque<File>();
+        pending.push(dir);
+        while (!pending.isEmpty()) {
+            File[] files = pending.pop().listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    pending.push(file);
+                } else {
+                    while (!queue.offer(file, 1, TimeUnit.SECONDS)) {
+                        // stop feeding if a worker died
+                        for (Future<Void> future : futures) {
+                            if (future.isDone()) {
+                                future.get();
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void work(BlockingQueue<File> queue, boolean isSpam, TokenStore stopWords, Set<String> messageMd5s,
+                      int flushTokens) throws InterruptedException, IOException {
+        TermFilter termFilter = new TermFilter(stopWords);
+        ModelStats partial = new ModelStats();
+        List<String> partialMd5s = new ArrayList<String>();
+        File file;
+        while ( (file = queue.take()) != END ) {
+            try {
+                byte[] message = Files.readAllBytes(file.toPath());
+                filesRead.incrementAndGet();
+                bytesRead.addAndGet(message.length);
+
+                // extract email body and text from html
+                String content = htmlTextExtractor.getTextByHtml(emailParser.getBody(message));
+                String md5 = fileHandler.generateMd5Filename(content);
+                // claimed before the merged check, so a copy merged by another
+                // worker in between is seen as merged
+                if (!messageMd5s.add(md5)) {
+                    messagesSkipped.incrementAndGet();
+                    continue;
+                }
+                if (fileHandler.isMessageMerged(md5)) {
+                    messageMd5s.remove(md5);
+                    messagesSkipped.incrementAndGet();
+                    continue;
+                }
+                long totalTokens = 0;
+                termFilter.reset(content);
+                while (termFilter.next()) {
+                    partial.addTokenCount(termFilter, isSpam, 1);
+                    totalTokens++;
+                }
+                partial.addMessages(isSpam, 1, totalTokens);
+                partialMd5s.add(md5);
+                messagesTrained.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                filesFailed.incrementAndGet();
+                log.warn("Failed to ingest " + file + ": " + e.getMessage());
+            }
+            if (partial.getTokens().size() >= flushTokens) {
+                flush(partial, partialMd5s, messageMd5s);
+                partial = new ModelStats();
+                partialMd5s = new ArrayList<String>();
+            }
+        }
+        flush(partial, partialMd5s, messageMd5s);
+    }
+
+    /**
+     * Merge a worker's partial counts and mark its messages merged.  Once
+     * marked they are left to the merged check and no longer held here.
+     */
+    private void flush(ModelStats partial, List<String> partialMd5s, Set<String> messageMd5s) throws IOException {
+        if (partialMd5s.isEmpty()) {
+            return;
+        }
+        naiveBayesSpamFilter.mergeDelta(partial, partialMd5s);
+        messageMd5s.removeAll(partialMd5s);
+    }
+
+    private void report(PrintStream progress, long startMillis) {
+        double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000d;
+        progress.println(String.format("%d files (%.1f MB), %d trained, %d skipped, %d failed in %.0fs: %.0f files/s, %.1f MB/s",
+                filesRead.get(), bytesRead.get() / 1048576d, messagesTrained.get(), messagesSkipped.get(),
+                filesFailed.get(), seconds, filesRead.get() / seconds, bytesRead.get() / 1048576d / seconds));
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -10,6 +10,9 @@ import java.io.FileReader;
 /**
  * Command line tool to manually feed email messages into the system for training.
  *
+ * With the bulk option the directory tree is trained in parallel by
+ * {@link BulkIngester} without writing per-message files.
+ *
  * Created by ed on 2/8/15.
  */
 public class CommandLineTool {
@@ -37,6 +40,14 @@ public class CommandLineTool {
 
         boolean isSpam = args[1].toLowerCase().startsWith("y") || args[1].equals("1");
 
+        if (args.length > 2 && args[2].equals("bulk")) {
+            int workers = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+            ctx.getBean(BulkIngester.class).ingest(dir, isSpam, workers, System.out);
+            // closing the context checkpoints the model
+            ctx.close();
+            return;
+        }
+
         String lineSeparator = System.getProperty("line.separator");
 
         File[] files = dir.listFiles();
@@ -57,10 +68,12 @@ public class CommandLineTool {
         }
 
         naiveBayesSpamFilter.mergeStats();
+        // closing the context checkpoints the model
+        ctx.close();
     }
 
     public static void printHelp() {
-        System.out.println("CommadLineTool <directory> <isSpam>");
+        System.out.println("CommadLineTool <directory> <isSpam> [bulk [workers]]");
     }
 
 }
@@ -0,0 +1,139 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * Count-min sketch of spam and ham token counts.
+ *
+ * Each of depth rows has 2^widthBits cells per class; a token adds to one
+ * cell in every row and its estimate is the smallest of those cells.
+ * Estimates never fall below the true count and exceed it by at most about
+ * e / 2^widthBits of the total with probability 1 - e^-depth.  Row indexes
+ * are derived from {@link TokenVocabulary#hash(CharSequence)} by double
+ * hashing, so no token string is kept.
+ *
+ * This class is not thread safe.
+ */
+public class CountMinSketch {
+    public static final int MAX_DEPTH = 16;
+    public static final int MAX_CELLS = 1 << 28;
+
+    private final int depth;
+    private final int widthBits;
+    private final int mask;
+    // row r, column c at (r << widthBits) | c
+    private final long[] spamCells;
+    private final long[] hamCells;
+
+    /**
+     * @param depth Number of rows
+     * @param widthBits Each row has 2^widthBits cells
+     */
+    public CountMinSketch(int depth, int widthBits) {
+        this(depth, widthBits, new long[checkedSize(depth, widthBits)], new long[checkedSize(depth, widthBits)]);
+    }
+
+    CountMinSketch(int depth, int widthBits, long[] spamCells, long[] hamCells) {
+        this.depth = depth;
+        this.widthBits = widthBits;
+        this.mask = (1 << widthBits) - 1;
+        this.spamCells = spamCells;
+        this.hamCells = hamCells;
+    }
+
+    static int checkedSize(int depth, int widthBits) {
+        if (depth < 1 || depth > MAX_DEPTH || widthBits < 1 || (long) depth << widthBits > MAX_CELLS) {
+            throw new IllegalArgumentException("Unsupported sketch of depth " + depth + " and width bits " + widthBits);
+        }
+        return depth << widthBits;
+    }
+
+    private int cell(int hash, int row) {
+        int step = TokenVocabulary.spread(hash ^ 0x9e3779b9) | 1;
+        return (row << widthBits) | ((hash + row * step) & mask);
+    }
+
+    /**
+     * Estimated spam count of a token
+     * @param hash {@link TokenVocabulary#hash(CharSequence)} of the token
+     * @return
+     */
+    public long spamEstimate(int hash) {
+        return estimate(hash, spamCells);
+    }
+
+    /**
+     * Estimated ham count of a token
+     * @param hash {@link TokenVocabulary#hash(CharSequence)} of the token
+     * @return
+     */
+    public long hamEstimate(int hash) {
+        return estimate(hash, hamCells);
+    }
+
+    private long estimate(int hash, long[] cells) {
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            min = Math.min(min, cells[cell(hash, row)]);
+        }
+        return min;
+    }
+
+    /**
+     * Raise the estimates of a token to at least the given counts.  Every
+     * row is raised by the same amount, so the estimate becomes exactly the
+     * count while other tokens' estimates only grow.
+     * @param hash {@link TokenVocabulary#hash(CharSequence)} of the token
+     * @param spamCount
+     * @param hamCount
+     */
+    public void raiseTo(int hash, long spamCount, long hamCount) {
+        raiseTo(hash, spamCount, spamCells);
+        raiseTo(hash, hamCount, hamCells);
+    }
+
+    private void raiseTo(int hash, long count, long[] cells) {
+        long delta = count - estimate(hash, cells);
+        if (delta > 0) {
+            for (int row = 0; row < depth; row++) {
+                cells[cell(hash, row)] += delta;
+            }
+        }
+    }
+
+    /**
+     * Add the cells of a sketch with the same dimensions
+     * @param other
+     */
+    public void addAll(CountMinSketch other) {
+        if (other.depth != depth || other.widthBits != widthBits) {
+            throw new IllegalArgumentException("Sketch dimensions differ");
+        }
+        for (int i = 0; i < spamCells.length; i++) {
+            spamCells[i] += other.spamCells[i];
+            hamCells[i] += other.hamCells[i];
+        }
+    }
+
+    public CountMinSketch copy() {
+        return new CountMinSketch(depth, widthBits, spamCells.clone(), hamCells.clone());
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getWidthBits() {
+        return widthBits;
+    }
+
+    long spamCell(int index) {
+        return spamCells[index];
+    }
+
+    long hamCell(int index) {
+        return hamCells[index];
+    }
+
+    public long heapBytes() {
+        return 16L * spamCells.length;
+    }
+}
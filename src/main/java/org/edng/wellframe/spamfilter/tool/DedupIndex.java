@@ -0,0 +1,336 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of merged message digests, loaded once and kept in memory.
+ *
+ * Digests are stored as fixed 16-byte keys (two longs) in an open-addressing
+ * table, so a lookup is one probe sequence over primitive arrays.  An
+ * optional Bloom filter answers most lookups for new messages without
+ * taking the lock.
+ *
+ * On disk the set is a binary append log of 16-byte records.  Appends are
+ * synced, so marks are as durable as the committed training log records
+ * they follow.  A trailing partial record left by a crash is dropped when
+ * the log is opened.  A text file with one hex digest per line, the format
+ * used before, is migrated on first open into a temporary file that is
+ * synced and renamed into place before the text file is removed, so a crash
+ * during migration leaves the text file to be migrated again.
+ */
+public class DedupIndex {
+    protected Logger log = Logger.getLogger(DedupIndex.class);
+
+    private static final int KEY_SIZE = 16;
+    private static final float LOAD_FACTOR = 0.75f;
+
+    // keys[2 * slot] and keys[2 * slot + 1] hold a digest; all zero is empty
+    private long[] keys;
+    private int mask;
+    private int size;
+    // an all zero digest can't be stored in the table
+    private boolean containsZero;
+
+    private final BloomFilter bloomFilter;
+    private final File file;
+    private FileOutputStream out;
+
+    /**
+     * Load the index from its append log, migrating a legacy text file if
+     * the log does not exist yet.
+     * @param file Binary append log
+     * @param legacyFile Text file with one hex digest per line, may not exist
+     * @param bloomFilterBits Size of the Bloom filter in bits, 0 for none
+     * @throws IOException
+     */
+    public DedupIndex(File file, File legacyFile, long bloomFilterBits) throws IOException {
+        this.file = file;
+        this.bloomFilter = bloomFilterBits > 0 ? new BloomFilter(bloomFilterBits) : null;
+        int expected = file.exists() ? (int) Math.min(Integer.MAX_VALUE / 4, file.length() / KEY_SIZE) : 0;
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expected / LOAD_FACTOR) + 1) - 1) << 1;
+        keys = new long[2 * capacity];
+        mask = capacity - 1;
+
+        if (!file.exists() && legacyFile.exists()) {
+            migrate(legacyFile);
+        }
+        load();
+        out = new FileOutputStream(file, true);
+        log.info("Loaded " + size + " merged message digests from " + file);
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        long length = file.length() - file.length() % KEY_SIZE;
+        if (length != file.length()) {
+            log.warn("Dropping partial record at the end of " + file);
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(length);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            for (long i = 0; i < length; i += KEY_SIZE) {
+                insert(in.readLong(), in.readLong());
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void migrate(File legacyFile) throws IOException {
+        log.info("Migrating " + legacyFile + " to " + file);
+        File tmp = new File(file.getPath() + ".tmp");
+        BufferedReader reader = new BufferedReader(new FileReader(legacyFile));
+        FileOutputStream tmpOut = new FileOutputStream(tmp);
+        DataOutputStream migrated = new DataOutputStream(new BufferedOutputStream(tmpOut, 65536));
+        try {
+            String line;
+            while ( (line = reader.readLine()) != null ) {
+                line = line.trim();
+                if (line.length() == 2 * KEY_SIZE) {
+                    migrated.writeLong(parseHex(line, 0));
+                    migrated.writeLong(parseHex(line, 16));
+                }
+            }
+            migrated.flush();
+            tmpOut.getChannel().force(false);
+        } finally {
+            reader.close();
+            migrated.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        if (!legacyFile.delete()) {
+            log.warn("Failed to delete migrated " + legacyFile);
+        }
+    }
+
+    /**
+     * Sync a directory so a rename in it is durable.  Not every platform
+     * can open a directory, in which case the rename is left to the OS.
+     */
+    private void syncDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.debug("Cannot sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Parse 16 hex characters into a long
+     */
+    static long parseHex(String hex, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Not a hex digest: " + hex);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    private static int slotOf(long high, long low) {
+        // digests are already uniformly distributed
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * Check if a hex digest is in the index
+     * @param digest 32 hex characters
+     * @return
+     */
+    public boolean contains(String digest) {
+        long high = parseHex(digest, 0);
+        long low = parseHex(digest, 16);
+        if (bloomFilter != null && !bloomFilter.mightContain(high, low)) {
+            return false;
+        }
+        return containsKey(high, low);
+    }
+
+    private synchronized boolean containsKey(long high, long low) {
+        if (high == 0 && low == 0) {
+            return containsZero;
+        }
+        for (int slot = slotOf(high, low) & mask; ; slot = (slot + 1) & mask) {
+            long h = keys[2 * slot];
+            long l = keys[2 * slot + 1];
+            if (h == 0 && l == 0) {
+                return false;
+            }
+            if (h == high && l == low) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Add a hex digest to the index and append it to the log.  The record is
+     * synced to disk before this returns, as the training it marks is.
+     * @param digest 32 hex characters
+     * @throws IOException
+     */
+    public synchronized void add(String digest) throws IOException {
+        long high = parseHex(digest, 0);
+        long low = parseHex(digest, 16);
+        if (insert(high, low)) {
+            byte[] record = new byte[KEY_SIZE];
+            for (int i = 0; i < 8; i++) {
+                record[i] = (byte) (high >>> (56 - 8 * i));
+                record[8 + i] = (byte) (low >>> (56 - 8 * i));
+            }
+            out.write(record);
+            out.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Add hex digests to the index and append the new ones to the log with
+     * a single write and a single sync
+     * @param digests 32 hex characters each
+     * @throws IOException
+     */
+    public synchronized void addAll(Collection<String> digests) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream(KEY_SIZE * digests.size());
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        for (String digest : digests) {
+            long high = parseHex(digest, 0);
+            long low = parseHex(digest, 16);
+            if (insert(high, low)) {
+                recordsOut.writeLong(high);
+                recordsOut.writeLong(low);
+            }
+        }
+        if (records.size() > 0) {
+            out.write(records.toByteArray());
+            out.getChannel().force(false);
+        }
+    }
+
+    /**
+     * @return true if the key was not in the table yet
+     */
+    private synchronized boolean insert(long high, long low) {
+        if (bloomFilter != null) {
+            bloomFilter.add(high, low);
+        }
+        if (high == 0 && low == 0) {
+            boolean added = !containsZero;
+            containsZero = true;
+            return added;
+        }
+        int slot = slotOf(high, low) & mask;
+        while (true) {
+            long h = keys[2 * slot];
+            long l = keys[2 * slot + 1];
+            if (h == 0 && l == 0) {
+                break;
+            }
+            if (h == high && l == low) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[2 * slot] = high;
+        keys[2 * slot + 1] = low;
+        if (++size > (mask + 1) * LOAD_FACTOR) {
+            rehash();
+        }
+        return true;
+    }
+
+    private void rehash() {
+        long[] old = keys;
+        int capacity = (mask + 1) << 1;
+        keys = new long[2 * capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i] != 0 || old[i + 1] != 0) {
+                int slot = slotOf(old[i], old[i + 1]) & mask;
+                while (keys[2 * slot] != 0 || keys[2 * slot + 1] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[2 * slot] = old[i];
+                keys[2 * slot + 1] = old[i + 1];
+            }
+        }
+    }
+
+    /**
+     * Number of digests in the index
+     * @return
+     */
+    public synchronized int size() {
+        return size + (containsZero ? 1 : 0);
+    }
+
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Bloom filter over digests.  Bits are set with atomic operations so
+     * lookups need no lock.
+     */
+    static class BloomFilter {
+        private static final int HASHES = 4;
+        private final AtomicLongArray bits;
+        private final long bitCount;
+
+        BloomFilter(long bitCount) {
+            this.bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) >>> 6));
+            this.bitCount = 64L * bits.length();
+        }
+
+        // double hashing over the two halves of the digest
+        private long bit(long high, long low, int i) {
+            long combined = low + i * (high | 1);
+            return (combined & Long.MAX_VALUE) % bitCount;
+        }
+
+        void add(long high, long low) {
+            for (int i = 0; i < HASHES; i++) {
+                long bit = bit(high, low, i);
+                int word = (int) (bit >>> 6);
+                long mask = 1L << bit;
+                long current;
+                while (((current = bits.get(word)) & mask) == 0
+                        && !bits.compareAndSet(word, current, current | mask)) {
+                    // retry
+                }
+            }
+        }
+
+        boolean mightContain(long high, long low) {
+            for (int i = 0; i < HASHES; i++) {
+                long bit = bit(high, low, i);
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
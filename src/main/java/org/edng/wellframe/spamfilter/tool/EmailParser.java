@@ -1,28 +1,210 @@
 package org.edng.wellframe.spamfilter.tool;
 
 import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.ContentType;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.SharedByteArrayInputStream;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Properties;
+
 /**
+ * Extracts the readable text of an email message.
+ *
+ * Messages are parsed with javax.mail over a shared byte array, so parts are
+ * views into the message rather than copies.  The multipart structure is
+ * walked and only text parts are decoded (quoted-printable and base64
+ * included); attachments and other non-text parts are skipped without being
+ * decoded.  Of the alternatives of a multipart/alternative the plain text is
+ * preferred.  Decoded text is capped at mail.maxTextChars.
+ *
+ * Input that does not start with a header line is treated as a bare body.
+ *
+ * A message given as a String has been decoded to characters already, so
+ * parts that are not base64 or quoted-printable are read back in the UTF-8
+ * they were encoded with, whatever charset they declare.
+ *
  * Created by ed on 2/9/15.
  */
 @Component
 public class EmailParser {
     protected Logger log = Logger.getLogger(FileHandler.class);
 
+    private static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+    @Resource
+    private Environment environment;
+
+    private final Session session = Session.getInstance(new Properties());
+    private int maxTextChars = 256 * 1024;
+
     public EmailParser() {
 
     }
 
+    @PostConstruct
+    public void init() {
+        maxTextChars = environment.getProperty("mail.maxTextChars", Integer.class, maxTextChars);
+    }
+
     /**
-     * Poor man's approach in extract email body by delimiting
-     * by \n\n
+     * Extract the text of a message
      * @param message Email message in RFC822 format
      * @return Email body
      */
     public String getBody(String message) {
-        String lineSeparator = System.getProperty("line.separator");
-        int offset = message.indexOf(lineSeparator+lineSeparator);
-        return offset > 0 ? message.substring(offset) : message;
+        return getBody(message.getBytes(ModelFile.UTF8), ModelFile.UTF8);
+    }
+
+    /**
+     * Extract the text of a message
+     * @param message Raw bytes of an email message in RFC822 format
+     * @return Email body
+     */
+    public String getBody(byte[] message) {
+        return getBody(message, null);
+    }
+
+    /**
+     * @param sourceCharset Charset the message was encoded to bytes with,
+     *                      null if the bytes are raw
+     */
+    private String getBody(byte[] message, Charset sourceCharset) {
+        if (!startsWithHeader(message)) {
+            return cap(new String(message, ModelFile.UTF8));
+        }
+        try {
+            MimeMessage mimeMessage = new MimeMessage(session, new SharedByteArrayInputStream(message));
+            StringBuilder text = new StringBuilder();
+            appendText(mimeMessage, sourceCharset, text);
+            return text.toString();
+        } catch (MessagingException | IOException e) {
+            log.debug("Failed to parse MIME structure, splitting on first blank line: " + e.getMessage());
+            return cap(splitBody(new String(message, ModelFile.UTF8)));
+        }
+    }
+
+    /**
+     * Whether the first line looks like "Name: value"
+     */
+    private static boolean startsWithHeader(byte[] message) {
+        for (int i = 0; i < message.length; i++) {
+            int c = message[i] & 0xFF;
+            if (c == ':') {
+                return i > 0;
+            }
+            // header names are printable ASCII other than space and colon
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Everything after the first blank line, for LF and CRLF line endings
+     */
+    private static String splitBody(String message) {
+        int lf = message.indexOf("\n\n");
+        int crlf = message.indexOf("\r\n\r\n");
+        if (crlf >= 0 && (lf < 0 || crlf < lf)) {
+            return message.substring(crlf + 4);
+        }
+        return lf >= 0 ? message.substring(lf + 2) : message;
+    }
+
+    private String cap(String text) {
+        return text.length() > maxTextChars ? text.substring(0, maxTextChars) : text;
+    }
+
+    private void appendText(Part part, Charset sourceCharset, StringBuilder text) throws MessagingException, IOException {
+        if (text.length() >= maxTextChars || Part.ATTACHMENT.equalsIgnoreCase(part.getDisposition())) {
+            return;
+        }
+        if (part.isMimeType("multipart/*")) {
+            Object content = part.getContent();
+            if (!(content instanceof Multipart)) {
+                return;
+            }
+            Multipart multipart = (Multipart) content;
+            if (part.isMimeType("multipart/alternative")) {
+                Part preferred = null;
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    Part alternative = multipart.getBodyPart(i);
+                    if (alternative.isMimeType("text/plain")
+                            || (preferred == null && (alternative.isMimeType("text/*") || alternative.isMimeType("multipart/*")))) {
+                        preferred = alternative;
+                    }
+                }
+                if (preferred != null) {
+                    appendText(preferred, sourceCharset, text);
+                }
+            } else {
+                for (int i = 0; i < multipart.getCount(); i++) {
+                    appendText(multipart.getBodyPart(i), sourceCharset, text);
+                }
+            }
+        } else if (part.isMimeType("message/rfc822")) {
+            Object content = part.getContent();
+            if (content instanceof Part) {
+                appendText((Part) content, sourceCharset, text);
+            }
+        } else if (part.isMimeType("text/*") || part.getContentType() == null) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            appendDecoded(part, sourceCharset, text);
+        }
+    }
+
+    /**
+     * Decode a text part in its charset, reading no more than the cap allows
+     */
+    private void appendDecoded(Part part, Charset sourceCharset, StringBuilder text) throws MessagingException, IOException {
+        Charset charset = DEFAULT_CHARSET;
+        if (sourceCharset != null && !isTransferEncoded(part)) {
+            charset = sourceCharset;
+        } else {
+            try {
+                String name = new ContentType(part.getContentType()).getParameter("charset");
+                if (name != null) {
+                    charset = Charset.forName(MimeUtility.javaCharset(name));
+                }
+            } catch (Exception e) {
+                // unknown or malformed charset, keep the default
+            }
+        }
+        Reader reader = new InputStreamReader(part.getInputStream(), charset);
+        try {
+            char[] chars = new char[4096];
+            int read;
+            while (text.length() < maxTextChars
+                    && (read = reader.read(chars, 0, Math.min(chars.length, maxTextChars - text.length()))) != -1) {
+                text.append(chars, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Whether the part's bytes are base64 or quoted-printable rather than
+     * the text itself
+     */
+    private static boolean isTransferEncoded(Part part) throws MessagingException {
+        String encoding = part instanceof MimePart ? ((MimePart) part).getEncoding() : null;
+        return encoding != null && !encoding.equalsIgnoreCase("7bit") && !encoding.equalsIgnoreCase("8bit")
+                && !encoding.equalsIgnoreCase("binary");
     }
 }
@@ -4,10 +4,13 @@ import org.apache.log4j.Logger;
 import org.springframework.stereotype.Component;
 
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Properties;
+import java.util.*;
 
 /**
  * This class provides the utilities to handle all file operations
@@ -19,18 +22,41 @@ import java.util.Properties;
  * sub-directory minus the last character.  For example: file "abcde"
  * will be stored as "a/b/c/d/abcde". We will only go 5 levels deep.
  *
+ * With an archive segment size set, merged messages are archived into an
+ * {@link ArchiveStore} per spam and ham archive directory instead of the
+ * deep directory structure.  Trees archived before can be moved into it
+ * with {@link ArchiveMigrator}.
+ *
  * Created by ed on 2/7/15.
  */
 public class FileHandler {
     protected Logger log = Logger.getLogger(FileHandler.class);
 
-    private MessageDigest md5MessageDigest;
+    // files written for each trained message, named after its MD5
+    public static final String[] MESSAGE_FILE_SUFFIXES = {"_stats.properties", "_tokens.properties", ".complete"};
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    // MessageDigest is not thread safe, each thread reuses its own
+    private final ThreadLocal<MessageDigest> md5MessageDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new AssertionError("MD5 is missing!");
+            }
+        }
+    };
     private File theMessagesSpamDir;
     private File theMessagesHamDir;
     private File theMessagesSpamArchiveDir;
     private File theMessagesHamArchiveDir;
+    private long archiveSegmentBytes;
+    private ArchiveStore spamArchive;
+    private ArchiveStore hamArchive;
     private File theStatsDir;
     private File theMergedMessagesFile;
+    private long dedupBloomFilterBits;
+    private DedupIndex dedupIndex;
 
     /**
      * Constructor to set up directory structure based on preferred messages
@@ -39,13 +65,33 @@ public class FileHandler {
      * @param statsDir Where we store overall stats
      */
     public FileHandler(String messagesDir, String statsDir) {
+        this(messagesDir, statsDir, 0);
+    }
+
+    /**
+     * Constructor to set up directory structure based on preferred messages
+     * and stats directories.
+     * @param messagesDir Where we store messages and archive
+     * @param statsDir Where we store overall stats
+     * @param dedupBloomFilterBits Size of the Bloom filter in front of the merged messages index, 0 for none
+     */
+    public FileHandler(String messagesDir, String statsDir, long dedupBloomFilterBits) {
+        this(messagesDir, statsDir, dedupBloomFilterBits, 0);
+    }
+
+    /**
+     * Constructor to set up directory structure based on preferred messages
+     * and stats directories.
+     * @param messagesDir Where we store messages and archive
+     * @param statsDir Where we store overall stats
+     * @param dedupBloomFilterBits Size of the Bloom filter in front of the merged messages index, 0 for none
+     * @param archiveSegmentBytes Size of archive segments, 0 to archive into the deep directory structure
+     */
+    public FileHandler(String messagesDir, String statsDir, long dedupBloomFilterBits, long archiveSegmentBytes) {
+        this.dedupBloomFilterBits = dedupBloomFilterBits;
+        this.archiveSegmentBytes = archiveSegmentBytes;
         setMessagesDirectory(messagesDir);
         setStatsDirectory(statsDir);
-        try {
-            md5MessageDigest = MessageDigest.getInstance("MD5");
-        } catch (NoSuchAlgorithmException e) {
-            throw new AssertionError("MD5 is missing!");
-        }
     }
 
     /**
@@ -71,27 +117,57 @@ public class FileHandler {
         if (!theMessagesHamArchiveDir.exists()) {
             theMessagesHamArchiveDir.mkdirs();
         }
+        try {
+            closeArchives();
+            if (archiveSegmentBytes > 0) {
+                spamArchive = new ArchiveStore(theMessagesSpamArchiveDir, archiveSegmentBytes);
+                hamArchive = new ArchiveStore(theMessagesHamArchiveDir, archiveSegmentBytes);
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Cannot open message archive in " + dir + ": " + e.getMessage());
+        }
+    }
+
+    private void closeArchives() throws IOException {
+        if (spamArchive != null) {
+            spamArchive.close();
+            spamArchive = null;
+        }
+        if (hamArchive != null) {
+            hamArchive.close();
+            hamArchive = null;
+        }
     }
 
     /**
-     * Set up the stats directory
+     * Set up the stats directory and load the index of merged messages
      * @param dir
      */
     public void setStatsDirectory(String dir) {
         theStatsDir = new File(dir);
-        theMergedMessagesFile = new File(dir + "/messages_completed.txt");
+        theMergedMessagesFile = new File(dir + "/messages_completed.bin");
         if (!theStatsDir.exists()) {
             theStatsDir.mkdirs();
         }
-        if (!theMergedMessagesFile.exists()) {
-            try {
-                theMergedMessagesFile.createNewFile();
-            } catch (IOException e) {
-                throw new AssertionError("Cannot create messages_completed.txt on " + theMergedMessagesFile.getAbsolutePath());
+        try {
+            if (dedupIndex != null) {
+                dedupIndex.close();
             }
+            dedupIndex = new DedupIndex(theMergedMessagesFile,
+                    new File(dir + "/messages_completed.txt"), dedupBloomFilterBits);
+        } catch (IOException e) {
+            throw new AssertionError("Cannot load merged messages from " + theMergedMessagesFile.getAbsolutePath());
         }
     }
 
+    /**
+     * Stats directory
+     * @return
+     */
+    public File getStatsDirectory() {
+        return theStatsDir;
+    }
+
     /**
      * Generate MD5 from content
      * @param content
@@ -108,29 +184,42 @@ public class FileHandler {
      * @throws IOException
      */
     public boolean isMessageMerged(String messageMd5) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(theMergedMessagesFile));
-        String line;
-        while ( (line = reader.readLine()) != null ) {
-            if (line.trim().equalsIgnoreCase(messageMd5)) {
-                return true;
-            }
-        }
-        return false;
+        return dedupIndex.contains(messageMd5);
     }
 
     /**
-     * Move files into archive directory under deep directory structure
+     * Move files of a message into the archive store, or into the archive
+     * directory under deep directory structure if there is no store
      * @param messageMd5
      * @param isSpam
+     * @throws IOException
      */
-    public void moveFilesToArchive(final String messageMd5, boolean isSpam) {
+    public void moveFilesToArchive(final String messageMd5, boolean isSpam) throws IOException {
         File dir = isSpam ? theMessagesSpamDir : theMessagesHamDir;
-        File[] files = dir.listFiles(new FilenameFilter() {
-            @Override
-            public boolean accept(File file, String s) {
-                return s.startsWith(messageMd5);
+        ArchiveStore archive = isSpam ? spamArchive : hamArchive;
+        // the file names are known, so the directory is never listed
+        List<File> files = new ArrayList<File>(MESSAGE_FILE_SUFFIXES.length);
+        for (String suffix : MESSAGE_FILE_SUFFIXES) {
+            File file = new File(dir, messageMd5 + suffix);
+            if (file.exists()) {
+                files.add(file);
             }
-        });
+        }
+        if (archive != null) {
+            Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+            for (File file : files) {
+                contents.put(file.getName(), Files.readAllBytes(file.toPath()));
+            }
+            archive.append(messageMd5, contents);
+            // the record must be out of the process before the files go
+            archive.flush();
+            for (File file : files) {
+                if (!file.delete()) {
+                    log.warn("Failed to delete archived file " + file);
+                }
+            }
+            return;
+        }
         File archiveDir = isSpam ? theMessagesSpamArchiveDir : theMessagesHamArchiveDir;
         // pull deep directory structure
         File newDir = setupDirectoryHierarchy(messageMd5, archiveDir);
@@ -140,6 +229,18 @@ public class FileHandler {
         }
     }
 
+    /**
+     * Files of an archived message from the archive store
+     * @param messageMd5
+     * @param isSpam
+     * @return File contents keyed by file name, or null if the message is not in the store
+     * @throws IOException
+     */
+    public Map<String, byte[]> loadArchivedMessage(String messageMd5, boolean isSpam) throws IOException {
+        ArchiveStore archive = isSpam ? spamArchive : hamArchive;
+        return archive == null ? null : archive.get(messageMd5);
+    }
+
     /**
      * Store processed message MD5 into merged messages file so we can check if message
      * has been processed prior.
@@ -147,9 +248,16 @@ public class FileHandler {
      * @throws IOException
      */
     public void markMessageMerged(String messageMd5) throws IOException {
-        PrintWriter printWriter = new PrintWriter(new FileOutputStream(theMergedMessagesFile, true));
-        printWriter.println(messageMd5);
-        printWriter.close();
+        dedupIndex.add(messageMd5);
+    }
+
+    /**
+     * Store the MD5s of many processed messages in one write
+     * @param messageMd5s
+     * @throws IOException
+     */
+    public void markMessagesMerged(Collection<String> messageMd5s) throws IOException {
+        dedupIndex.addAll(messageMd5s);
     }
 
     /**
@@ -205,7 +313,12 @@ public class FileHandler {
     public void loadMessageProperties(Properties properties, String filename, boolean isSpam) {
         File dir = isSpam ? theMessagesSpamDir : theMessagesHamDir;
         try {
-            properties.load(new FileInputStream(new File(dir.getAbsolutePath() + "/" + filename)));
+            InputStream in = new FileInputStream(new File(dir.getAbsolutePath() + "/" + filename));
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
         } catch (IOException e) {
             throw new AssertionError("Directory " + dir.getAbsolutePath() + " does not exist!");
         }
@@ -282,6 +395,79 @@ public class FileHandler {
         properties.load(new FileInputStream(new File(theStatsDir.getAbsolutePath() + "/" + filename)));
     }
 
+    /**
+     * Check if a file exists in stats directory
+     * @param filename
+     * @return
+     */
+    public boolean statsFileExists(String filename) {
+        return new File(theStatsDir.getAbsolutePath() + "/" + filename).exists();
+    }
+
+    /**
+     * Save stats as a binary model file in stats directory.  The model is
+     * written to a temporary file first and then renamed over the old one, so
+     * readers that have the old file mapped are not affected.  The file and
+     * the rename are synced to disk before this returns, so training log
+     * segments the model includes can be deleted afterwards.
+     * @param stats
+     * @param sequence
+     * @param filename
+     * @throws IOException
+     */
+    public void saveStatsModel(ModelStats stats, long sequence, String filename) throws IOException {
+        File file = new File(theStatsDir.getAbsolutePath() + "/" + filename);
+        File tempFile = new File(theStatsDir.getAbsolutePath() + "/" + filename + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        try {
+            ModelFile.write(stats, sequence, outputStream);
+            outputStream.getChannel().force(true);
+        } finally {
+            outputStream.close();
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(theStatsDir);
+    }
+
+    /**
+     * Sync a directory so renames in it survive a power loss
+     * @param dir
+     */
+    private void syncDirectory(File dir) {
+        try {
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // not every platform can open a directory, Windows among them
+            log.debug("Can't sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Memory-map a binary model file from stats directory
+     * @param filename
+     * @return
+     * @throws FileNotFoundException if the model file does not exist
+     * @throws IOException if the file cannot be mapped or is not a valid model
+     */
+    public ModelFile loadStatsModel(String filename) throws IOException {
+        return ModelFile.open(new File(theStatsDir.getAbsolutePath() + "/" + filename));
+    }
+
+    /**
+     * Release the merged messages file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        dedupIndex.close();
+        closeArchives();
+    }
+
     /**
      * Load a message from file system using the message's MD5 name.
      * @param md5 MD5 representation of the message
@@ -305,20 +491,21 @@ public class FileHandler {
 
     /**
      * Using Java's MessageDigest library to generate a MD5 value from a string.
-     * MD5 value is return as a hexadecimal string.  This method is synchronized
-     * so we can reuse the MessageDigest object.
+     * MD5 value is return as a hexadecimal string.  Each thread reuses its
+     * own MessageDigest object, so digests can be computed in parallel.
      * @param content Content to be digested to MD5
      * @return MD5 value as hexadecimal string
      */
-    protected synchronized String md5(String content) {
-        md5MessageDigest.reset();
-        md5MessageDigest.update(content.getBytes(Charset.forName("UTF8")));
-        byte[] resultByte = md5MessageDigest.digest();
-        StringBuilder stringBuilder = new StringBuilder();
-        for (byte b : resultByte) {
-            stringBuilder.append(String.format("%02X", b));
+    protected String md5(String content) {
+        MessageDigest messageDigest = md5MessageDigest.get();
+        messageDigest.reset();
+        byte[] resultByte = messageDigest.digest(content.getBytes(ModelFile.UTF8));
+        char[] hex = new char[2 * resultByte.length];
+        for (int i = 0; i < resultByte.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(resultByte[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[resultByte[i] & 0xF];
         }
-        return stringBuilder.toString();
+        return new String(hex);
     }
 
     /**
@@ -0,0 +1,103 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Command line tool to measure how a vocabulary model would fare hashed into
+ * a {@link HashedTokenStore}, to help choose model.hashBits.
+ *
+ * For each number of bits it reports the memory taken by the counts and the
+ * scoring table, how many buckets are used, the share of tokens and of token
+ * occurrences that share a bucket with another token, and how far the
+ * log-likelihood ratio of a token moves on average when its counts are merged
+ * with those of the tokens it collides with.
+ */
+public class HashCollisionReport {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            printHelp();
+            return;
+        }
+
+        File file = new File(args[0], NaiveBayesSpamFilter.MODEL_FILE);
+        if (!file.exists()) {
+            System.out.println("Directory " + args[0] + " has no " + NaiveBayesSpamFilter.MODEL_FILE);
+            return;
+        }
+        ModelStats stats = ModelFile.open(file).getStats();
+        if (stats.getTokens() instanceof HashedTokenStore) {
+            System.out.println("Model is already hashed, collisions can only be measured against token strings");
+            return;
+        }
+
+        List<Integer> bitsList = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++) {
+            bitsList.add(Integer.parseInt(args[i]));
+        }
+        if (bitsList.isEmpty()) {
+            for (int bits = 16; bits <= 24; bits += 2) {
+                bitsList.add(bits);
+            }
+        }
+
+        TokenStore tokens = stats.getTokens();
+        int[] hashes = new int[tokens.size()];
+        long occurrences = 0;
+        for (int id = 0; id < hashes.length; id++) {
+            hashes[id] = TokenVocabulary.hash(tokens.token(id));
+            occurrences += tokens.spamCount(id) + tokens.hamCount(id);
+        }
+        System.out.println(String.format("%s: %d tokens, %d occurrences, %.1f MB",
+                file, hashes.length, occurrences, file.length() / 1048576d));
+        System.out.println(String.format("%5s %10s %10s %12s %12s %12s %14s",
+                "bits", "buckets", "memoryMB", "bucketsUsed", "tokensColl%", "occurColl%", "meanLogDrift"));
+
+        LogSpaceScorer exact = new LogSpaceScorer(stats.getTotalSpam(), stats.getTotalHam(),
+                stats.getTotalSpamTokens(), stats.getTotalHamTokens(), tokens);
+        for (int bits : bitsList) {
+            HashedTokenStore hashed = new HashedTokenStore(bits);
+            hashed.addAll(tokens);
+            LogSpaceScorer scorer = new LogSpaceScorer(stats.getTotalSpam(), stats.getTotalHam(),
+                    stats.getTotalSpamTokens(), stats.getTotalHamTokens(), hashed);
+
+            int mask = hashed.size() - 1;
+            int[] tokensPerBucket = new int[hashed.size()];
+            for (int hash : hashes) {
+                tokensPerBucket[hash & mask]++;
+            }
+            long bucketsUsed = 0;
+            for (int count : tokensPerBucket) {
+                if (count > 0) {
+                    bucketsUsed++;
+                }
+            }
+            long collidingTokens = 0;
+            long collidingOccurrences = 0;
+            double drift = 0;
+            for (int id = 0; id < hashes.length; id++) {
+                long count = tokens.spamCount(id) + tokens.hamCount(id);
+                if (tokensPerBucket[hashes[id] & mask] > 1) {
+                    collidingTokens++;
+                    collidingOccurrences += count;
+                    String token = tokens.token(id);
+                    drift += count * Math.abs(scorer.logRatio(token) - exact.logRatio(token));
+                }
+            }
+            System.out.println(String.format("%5d %10d %10.1f %12d %12.2f %12.2f %14.4f",
+                    bits, hashed.size(), (hashed.heapBytes() + scorer.heapBytes()) / 1048576d, bucketsUsed,
+                    percent(collidingTokens, hashes.length), percent(collidingOccurrences, occurrences),
+                    occurrences == 0 ? 0d : drift / occurrences));
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0d : 100d * part / whole;
+    }
+
+    public static void printHelp() {
+        System.out.println("HashCollisionReport <stats directory> [bits ...]");
+    }
+}
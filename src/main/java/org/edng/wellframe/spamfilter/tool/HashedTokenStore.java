@@ -0,0 +1,132 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * Fixed-size token counts addressed by hashing the token, with no token
+ * strings kept at all.
+ *
+ * The ID of a token is its {@link TokenVocabulary#hash(CharSequence)} masked
+ * to the number of buckets, so every token has an ID and tokens that share a
+ * bucket share their counts.  Memory is two long arrays of 2^bits entries no
+ * matter how many distinct tokens are trained, which bounds the model when
+ * spam is full of random one-off tokens.
+ *
+ * Counts of a store with more buckets can be folded into one with fewer,
+ * because a smaller mask keeps a subset of the same hash bits.  Stores with
+ * token strings are hashed as they are added.
+ *
+ * This class is not thread safe.
+ */
+public class HashedTokenStore implements MutableTokenStore {
+    public static final int MAX_BITS = 30;
+
+    private final int bits;
+    private final int mask;
+    private final long[] spamCounts;
+    private final long[] hamCounts;
+
+    /**
+     * @param bits Number of hash bits; the store has 2^bits buckets
+     */
+    public HashedTokenStore(int bits) {
+        this(new long[checkedSize(bits)], new long[checkedSize(bits)]);
+    }
+
+    HashedTokenStore(long[] spamCounts, long[] hamCounts) {
+        this.bits = Integer.numberOfTrailingZeros(spamCounts.length);
+        this.mask = spamCounts.length - 1;
+        this.spamCounts = spamCounts;
+        this.hamCounts = hamCounts;
+    }
+
+    private static int checkedSize(int bits) {
+        if (bits < 1 || bits > MAX_BITS) {
+            throw new IllegalArgumentException("Hash bits must be between 1 and " + MAX_BITS + ": " + bits);
+        }
+        return 1 << bits;
+    }
+
+    /**
+     * Bucket of a token.  Never -1: unseen tokens land in some bucket too.
+     * @param token
+     * @return
+     */
+    @Override
+    public int indexOf(CharSequence token) {
+        return TokenVocabulary.hash(token) & mask;
+    }
+
+    @Override
+    public int add(CharSequence token, long spamDelta, long hamDelta) {
+        int bucket = indexOf(token);
+        spamCounts[bucket] += spamDelta;
+        hamCounts[bucket] += hamDelta;
+        return bucket;
+    }
+
+    /**
+     * Add every count of another store.  Hashed stores with at least as many
+     * buckets are folded bucket by bucket; other stores are hashed token by
+     * token.
+     * @param other
+     * @throws IllegalArgumentException if other is hashed into fewer buckets
+     */
+    @Override
+    public void addAll(TokenStore other) {
+        if (other instanceof HashedTokenStore) {
+            HashedTokenStore hashed = (HashedTokenStore) other;
+            if (hashed.bits < bits) {
+                throw new IllegalArgumentException("Cannot spread " + hashed.bits + " hash bits over " + bits);
+            }
+            for (int id = 0; id < hashed.spamCounts.length; id++) {
+                spamCounts[id & mask] += hashed.spamCounts[id];
+                hamCounts[id & mask] += hashed.hamCounts[id];
+            }
+        } else {
+            for (int id = 0; id < other.size(); id++) {
+                add(other.token(id), other.spamCount(id), other.hamCount(id));
+            }
+        }
+    }
+
+    @Override
+    public HashedTokenStore copy() {
+        return new HashedTokenStore(spamCounts.clone(), hamCounts.clone());
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Number of buckets
+     * @return
+     */
+    @Override
+    public int size() {
+        return spamCounts.length;
+    }
+
+    /**
+     * Hashed stores keep no token strings
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public String token(int id) {
+        throw new UnsupportedOperationException("Hashed token store has no token strings");
+    }
+
+    @Override
+    public long spamCount(int id) {
+        return spamCounts[id];
+    }
+
+    @Override
+    public long hamCount(int id) {
+        return hamCounts[id];
+    }
+
+    @Override
+    public long heapBytes() {
+        return 16L * spamCounts.length;
+    }
+}
@@ -1,27 +1,66 @@
 package org.edng.wellframe.spamfilter.tool;
 
 import de.l3s.boilerpipe.BoilerpipeProcessingException;
+import de.l3s.boilerpipe.document.TextDocument;
 import de.l3s.boilerpipe.extractors.ArticleExtractor;
+import de.l3s.boilerpipe.sax.BoilerpipeHTMLContentHandler;
 import org.apache.log4j.Logger;
 import org.jsoup.Jsoup;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Locale;
 
 /**
  * This class uses Boilerpipe libray (https://code.google.com/p/boilerpipe/)
  * and Jsoup to extract text from HTML.
  *
+ * Bodies without markup are returned as they are.  HTML is parsed once with
+ * Jsoup and the resulting DOM is fed to boilerpipe as SAX events, so the
+ * Jsoup fallback reuses the same document instead of parsing again.
+ *
+ * Input longer than extract.maxHtmlChars is cut off before parsing, which
+ * bounds the parse.  extract.maxMillis is counted from the start of the
+ * parse: once it has passed, boilerpipe is skipped, or abandoned while it is
+ * being fed, for the plain Jsoup text of the document.
+ *
  * Created by ed on 2/7/15.
  */
 @Component
 public class HtmlTextExtractor {
     protected Logger log = Logger.getLogger(FileHandler.class);
 
+    // how far into a body to look for a tag
+    private static final int MARKUP_SCAN_CHARS = 4096;
+
+    @Resource
+    private Environment environment;
+
     private ArticleExtractor articleExtractor;
+    private int maxHtmlChars = 1 << 20;
+    private long maxMillis = 200;
 
     public HtmlTextExtractor() {
         articleExtractor = ArticleExtractor.INSTANCE;
     }
 
+    @PostConstruct
+    public void init() {
+        maxHtmlChars = environment.getProperty("extract.maxHtmlChars", Integer.class, maxHtmlChars);
+        maxMillis = environment.getProperty("extract.maxMillis", Long.class, maxMillis);
+    }
+
     /**
      * Extract text from HTML first with BoilerPipe, then with
      * Jsoup.
@@ -29,18 +68,116 @@ public class HtmlTextExtractor {
      * @return Extracted text from HTML string
      */
     public String getTextByHtml(String html) {
+        if (!hasMarkup(html)) {
+            return html;
+        }
+        if (html.length() > maxHtmlChars) {
+            log.debug("Truncating HTML of " + html.length() + " chars to " + maxHtmlChars);
+            html = html.substring(0, maxHtmlChars);
+        }
+        long deadline = System.currentTimeMillis() + maxMillis;
+        Document document = Jsoup.parse(html);
         String text = null;
         try {
-            text = articleExtractor.getText(html);
-        } catch (BoilerpipeProcessingException e) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new DeadlineExceededException();
+            }
+            text = articleExtractor.getText(toTextDocument(document, deadline));
+        } catch (BoilerpipeProcessingException | SAXException e) {
+            text = null;
+        } catch (DeadlineExceededException e) {
+            log.debug("Boilerpipe took longer than " + maxMillis + "ms, using plain text");
             text = null;
         }
         if (text == null || text.isEmpty()) {
-            text = Jsoup.parse(html).text();
+            text = document.text();
         }
         if (text == null || text.isEmpty()) {
             return html;
         }
         return text;
     }
+
+    /**
+     * Whether a body looks like markup: a '<' followed by a letter, '/' or
+     * '!' and closed by a '>' somewhere after it, within the first few
+     * kilobytes.
+     * @param body
+     * @return
+     */
+    public static boolean hasMarkup(String body) {
+        int limit = Math.min(body.length(), MARKUP_SCAN_CHARS);
+        for (int i = body.indexOf('<'); i >= 0 && i + 1 < limit; i = body.indexOf('<', i + 1)) {
+            char c = body.charAt(i + 1);
+            if ((c < 128 && Character.isLetter(c)) || c == '/' || c == '!') {
+                return body.indexOf('>', i + 2) > 0;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replay a Jsoup document as the SAX events boilerpipe builds its text
+     * blocks from.  Tag names are upper case, as NekoHTML reports them.
+     */
+    private static TextDocument toTextDocument(Document document, final long deadline) throws SAXException {
+        final BoilerpipeHTMLContentHandler handler = new BoilerpipeHTMLContentHandler();
+        handler.startDocument();
+        try {
+            new NodeTraversor(new NodeVisitor() {
+                private int visited;
+
+                @Override
+                public void head(Node node, int depth) {
+                    if ((++visited & 255) == 0 && System.currentTimeMillis() > deadline) {
+                        throw new DeadlineExceededException();
+                    }
+                    try {
+                        if (node instanceof Element) {
+                            Element element = (Element) node;
+                            String name = element.tagName().toUpperCase(Locale.ROOT);
+                            AttributesImpl attributes = new AttributesImpl();
+                            for (Attribute attribute : element.attributes()) {
+                                attributes.addAttribute("", attribute.getKey(), attribute.getKey(), "CDATA", attribute.getValue());
+                            }
+                            handler.startElement("", name, name, attributes);
+                        } else if (node instanceof TextNode) {
+                            char[] chars = ((TextNode) node).getWholeText().toCharArray();
+                            handler.characters(chars, 0, chars.length);
+                        }
+                    } catch (SAXException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+
+                @Override
+                public void tail(Node node, int depth) {
+                    if (node instanceof Element) {
+                        String name = ((Element) node).tagName().toUpperCase(Locale.ROOT);
+                        try {
+                            handler.endElement("", name, name);
+                        } catch (SAXException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                }
+            }).traverse(document);
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof SAXException) {
+                throw (SAXException) e.getCause();
+            }
+            throw e;
+        }
+        handler.endDocument();
+        if (System.currentTimeMillis() > deadline) {
+            throw new DeadlineExceededException();
+        }
+        return handler.toTextDocument();
+    }
+
+    private static class DeadlineExceededException extends RuntimeException {
+        DeadlineExceededException() {
+            super(null, null, false, false);
+        }
+    }
 }
@@ -0,0 +1,274 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+
+/**
+ * Scores token streams in log space using primitive doubles.
+ *
+ * Every known token is compiled once into a single log-likelihood ratio
+ *
+ *   log((spam_count + 1) / (total_spam_tokens + 1)) - log((ham_count + 1) / (total_ham_tokens + 1))
+ *
+ * so scoring a token is one table lookup and one addition.  Tokens that were
+ * never seen share the ratio computed with a count of zero, except in a
+ * {@link PrunedTokenStore} where tokens outside the exact vocabulary are
+ * scored from their count-min sketch estimates.  The class
+ * posteriors are normalised with log-sum-exp, which keeps long messages from
+ * underflowing to zero the way a product of probabilities does.
+ *
+ * {@link #discriminativeScore} instead sums only the N distinct tokens with
+ * the largest absolute ratio, as Paul Graham's filter does, and can stop
+ * reading a message once the evidence is conclusive, which bounds the cost
+ * of very long messages.
+ *
+ * The table is kept in a direct buffer when the tokens are in an
+ * {@link OffHeapTokenStore}, so an off-heap model stays off the heap.
+ *
+ * A scorer is compiled once per {@link ModelSnapshot} and is safe to share
+ * between threads as long as its token store is not modified.
+ */
+public class LogSpaceScorer {
+    private final double logSpamPrior;
+    private final double logHamPrior;
+    private final double unknownTokenLogRatio;
+    private final double logSpamDenominator;
+    private final double logHamDenominator;
+    private final TokenStore tokens;
+    private final CountMinSketch tail;
+    private final DoubleBuffer tokenLogRatios;
+
+    /**
+     * Compile the log-likelihood ratio table from raw counts.
+     * @param totalSpam Number of spam messages merged
+     * @param totalHam Number of ham messages merged
+     * @param totalSpamTokens Number of tokens seen in spam messages
+     * @param totalHamTokens Number of tokens seen in ham messages
+     * @param tokens Per token counts
+     */
+    public LogSpaceScorer(long totalSpam, long totalHam, long totalSpamTokens, long totalHamTokens,
+                          TokenStore tokens) {
+        long totalMessages = totalSpam + totalHam;
+        if (totalMessages > 0) {
+            logSpamPrior = Math.log((double) totalSpam / totalMessages);
+            logHamPrior = Math.log((double) totalHam / totalMessages);
+        } else {
+            // no evidence either way
+            logSpamPrior = Math.log(0.5);
+            logHamPrior = Math.log(0.5);
+        }
+
+        logSpamDenominator = Math.log(totalSpamTokens + 1d);
+        logHamDenominator = Math.log(totalHamTokens + 1d);
+        unknownTokenLogRatio = logHamDenominator - logSpamDenominator;
+
+        this.tokens = tokens;
+        this.tail = tokens instanceof PrunedTokenStore ? ((PrunedTokenStore) tokens).getTail() : null;
+        if (tokens instanceof OffHeapTokenStore) {
+            tokenLogRatios = ByteBuffer.allocateDirect(8 * tokens.size()).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+        } else {
+            tokenLogRatios = DoubleBuffer.allocate(tokens.size());
+        }
+        for (int id = 0; id < tokenLogRatios.capacity(); id++) {
+            tokenLogRatios.put(id, logRatio(tokens.spamCount(id), tokens.hamCount(id),
+                    logSpamDenominator, logHamDenominator));
+        }
+    }
+
+    private static double logRatio(long spamCount, long hamCount,
+                                   double logSpamDenominator, double logHamDenominator) {
+        return (Math.log(spamCount + 1d) - logSpamDenominator) - (Math.log(hamCount + 1d) - logHamDenominator);
+    }
+
+    /**
+     * Log-likelihood ratio of spam over ham for a single token
+     * @param token
+     * @return
+     */
+    public double logRatio(CharSequence token) {
+        return logRatio(tokens.indexOf(token), token);
+    }
+
+    private double logRatio(int id, CharSequence token) {
+        if (id >= 0 && id < tokenLogRatios.capacity()) {
+            return tokenLogRatios.get(id);
+        }
+        if (tail != null) {
+            int hash = TokenVocabulary.hash(token);
+            return logRatio(tail.spamEstimate(hash), tail.hamEstimate(hash), logSpamDenominator, logHamDenominator);
+        }
+        return unknownTokenLogRatio;
+    }
+
+    /**
+     * Sum the log-likelihood ratios of every token produced by the filter
+     * and turn the result into a spam probability.
+     * @param termFilter Source of tokens
+     * @return Probability between 0 and 1 that the tokens come from spam
+     */
+    public float spamProbability(TermFilter termFilter) {
+        double sum = 0d;
+        while (termFilter.next()) {
+            sum += logRatio(termFilter);
+        }
+        return probability(sum);
+    }
+
+    /**
+     * Score a message by the topN distinct tokens with the largest absolute
+     * log-likelihood ratio.  Once topN tokens have been collected, reading
+     * stops as soon as their log odds of spam over ham, priors included,
+     * reach exitLogOdds either way, or once maxTokens tokens have been read.
+     * @param termFilter Source of tokens
+     * @param topN Number of tokens the score is made of, 0 or less to sum
+     *             every token as {@link #spamProbability} does
+     * @param exitLogOdds Log odds at which the evidence is conclusive, 0 to read every token
+     * @param maxTokens Most tokens to read, 0 for no limit
+     * @return
+     */
+    public Score discriminativeScore(TermFilter termFilter, int topN, double exitLogOdds, int maxTokens) {
+        if (topN <= 0) {
+            double sum = 0d;
+            int examined = 0;
+            while (termFilter.next()) {
+                examined++;
+                sum += logRatio(termFilter);
+            }
+            return new Score(probability(sum), examined, false);
+        }
+        // min-heap on absolute ratio of the strongest tokens so far
+        int[] ids = new int[topN];
+        double[] ratios = new double[topN];
+        // text of the unknown and tail tokens, which have no ID of their own
+        String[] texts = new String[topN];
+        int size = 0;
+        double sum = 0d;
+        int examined = 0;
+        boolean earlyExit = false;
+        while (termFilter.next()) {
+            examined++;
+            int id = tokens.indexOf(termFilter);
+            double ratio = logRatio(id, termFilter);
+            if (size < topN || Math.abs(ratio) > Math.abs(ratios[0])) {
+                if (!contains(ids, texts, size, id, termFilter)) {
+                    String text = id < 0 ? termFilter.toString() : null;
+                    if (size < topN) {
+                        ids[size] = id;
+                        ratios[size] = ratio;
+                        texts[size] = text;
+                        siftUp(ids, ratios, texts, size++);
+                    } else {
+                        sum -= ratios[0];
+                        ids[0] = id;
+                        ratios[0] = ratio;
+                        texts[0] = text;
+                        siftDown(ids, ratios, texts, size);
+                    }
+                    sum += ratio;
+                }
+            }
+            if (size == topN && exitLogOdds > 0 && Math.abs(logSpamPrior - logHamPrior + sum) >= exitLogOdds) {
+                earlyExit = true;
+                break;
+            }
+            if (examined == maxTokens) {
+                earlyExit = termFilter.next();
+                break;
+            }
+        }
+        return new Score(probability(sum), examined, earlyExit);
+    }
+
+    /**
+     * Whether a token is already among the first size entries.  Known tokens
+     * are compared by ID, unknown and tail tokens by their text.
+     */
+    private static boolean contains(int[] ids, String[] texts, int size, int id, CharSequence token) {
+        for (int i = 0; i < size; i++) {
+            if (id >= 0 ? ids[i] == id : ids[i] < 0 && texts[i].contentEquals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void siftUp(int[] ids, double[] ratios, String[] texts, int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (Math.abs(ratios[parent]) <= Math.abs(ratios[i])) {
+                return;
+            }
+            swap(ids, ratios, texts, parent, i);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int[] ids, double[] ratios, String[] texts, int size) {
+        int i = 0;
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < size && Math.abs(ratios[left]) < Math.abs(ratios[smallest])) {
+                smallest = left;
+            }
+            if (right < size && Math.abs(ratios[right]) < Math.abs(ratios[smallest])) {
+                smallest = right;
+            }
+            if (smallest == i) {
+                return;
+            }
+            swap(ids, ratios, texts, smallest, i);
+            i = smallest;
+        }
+    }
+
+    private static void swap(int[] ids, double[] ratios, String[] texts, int i, int j) {
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        double ratio = ratios[i];
+        ratios[i] = ratios[j];
+        ratios[j] = ratio;
+        String text = texts[i];
+        texts[i] = texts[j];
+        texts[j] = text;
+    }
+
+    /**
+     * Normalise accumulated evidence with log-sum-exp:
+     *
+     *   P(spam) = exp(ls - m) / (exp(ls - m) + exp(lh - m)), m = max(ls, lh)
+     *
+     * where ls is the spam log prior plus the summed ratios and lh is the ham
+     * log prior.
+     * @param logRatioSum Sum of token log-likelihood ratios
+     * @return
+     */
+    public float probability(double logRatioSum) {
+        double logSpam = logSpamPrior + logRatioSum;
+        double logHam = logHamPrior;
+        double max = Math.max(logSpam, logHam);
+        double spam = Math.exp(logSpam - max);
+        double ham = Math.exp(logHam - max);
+        return (float) (spam / (spam + ham));
+    }
+
+    /**
+     * Number of distinct tokens in the table
+     * @return
+     */
+    public int size() {
+        return tokenLogRatios.capacity();
+    }
+
+    /**
+     * Approximate bytes of heap held by the ratio table
+     * @return
+     */
+    public long heapBytes() {
+        // the tail is counted with the token store
+        return tokenLogRatios.isDirect() ? 0 : 8L * tokenLogRatios.capacity();
+    }
+}
@@ -0,0 +1,151 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only {@link TokenStore} over a buffer in {@link ModelFile} format,
+ * typically a memory-mapped file.
+ *
+ * Lookups hash the token and compare it against the stored UTF-8 bytes in
+ * place, so no String is created per lookup.  Only absolute reads are used
+ * on the buffer, which makes the store safe to share between threads.
+ */
+public class MappedTokenStore implements TokenStore {
+    private final ByteBuffer buffer;
+    private final int tokenCount;
+    private final int mask;
+    private final int slotsOffset;
+    private final int entriesOffset;
+    private final int stringsOffset;
+    private final int stringsLength;
+
+    MappedTokenStore(ByteBuffer buffer, int tokenCount, int slotCount, int stringsLength) {
+        this.buffer = buffer;
+        this.tokenCount = tokenCount;
+        this.mask = slotCount - 1;
+        this.slotsOffset = ModelFile.HEADER_SIZE;
+        this.entriesOffset = slotsOffset + 4 * slotCount;
+        this.stringsOffset = entriesOffset + ModelFile.ENTRY_SIZE * tokenCount;
+        this.stringsLength = stringsLength;
+    }
+
+    @Override
+    public int indexOf(CharSequence token) {
+        int h = TokenVocabulary.hash(token);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int id = buffer.getInt(slotsOffset + 4 * slot);
+            if (id == -1) {
+                return -1;
+            }
+            if (buffer.getInt(entryOffset(id) + 16) == h
+                    && utf8Equals(buffer, stringsOffset + stringStart(id), stringsOffset + stringEnd(id), token)) {
+                return id;
+            }
+        }
+    }
+
+    private int entryOffset(int id) {
+        return entriesOffset + ModelFile.ENTRY_SIZE * id;
+    }
+
+    private int stringStart(int id) {
+        return buffer.getInt(entryOffset(id) + 20);
+    }
+
+    private int stringEnd(int id) {
+        return id + 1 < tokenCount ? stringStart(id + 1) : stringsLength;
+    }
+
+    /**
+     * Compare UTF-8 bytes in a buffer against a char sequence by encoding
+     * the chars on the fly.
+     * @param buffer
+     * @param position Start of the bytes
+     * @param end End of the bytes, exclusive
+     * @param token
+     * @return
+     */
+    static boolean utf8Equals(ByteBuffer buffer, int position, int end, CharSequence token) {
+        for (int i = 0; i < token.length(); i++) {
+            int c = token.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < token.length()
+                    && Character.isLowSurrogate(token.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, token.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                // unpaired surrogates are written as '?' by the UTF-8 encoder
+                c = '?';
+            }
+            if (c < 0x80) {
+                if (position >= end || buffer.get(position++) != (byte) c) return false;
+            } else if (c < 0x800) {
+                if (position + 2 > end
+                        || buffer.get(position++) != (byte) (0xC0 | (c >> 6))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            } else if (c < 0x10000) {
+                if (position + 3 > end
+                        || buffer.get(position++) != (byte) (0xE0 | (c >> 12))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            } else {
+                if (position + 4 > end
+                        || buffer.get(position++) != (byte) (0xF0 | (c >> 18))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 12) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | ((c >> 6) & 0x3F))
+                        || buffer.get(position++) != (byte) (0x80 | (c & 0x3F))) return false;
+            }
+        }
+        return position == end;
+    }
+
+    @Override
+    public int size() {
+        return tokenCount;
+    }
+
+    @Override
+    public String token(int id) {
+        int start = stringStart(id);
+        byte[] bytes = new byte[stringEnd(id) - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(stringsOffset + start + i);
+        }
+        return new String(bytes, ModelFile.UTF8);
+    }
+
+    @Override
+    public long spamCount(int id) {
+        return buffer.getLong(entryOffset(id));
+    }
+
+    @Override
+    public long hamCount(int id) {
+        return buffer.getLong(entryOffset(id) + 8);
+    }
+
+    /**
+     * The sections of the model file, for copying them as a whole
+     */
+    ByteBuffer slots() {
+        return section(slotsOffset, entriesOffset);
+    }
+
+    ByteBuffer entries() {
+        return section(entriesOffset, stringsOffset);
+    }
+
+    ByteBuffer strings() {
+        return section(stringsOffset, stringsOffset + stringsLength);
+    }
+
+    private ByteBuffer section(int start, int end) {
+        ByteBuffer section = buffer.duplicate();
+        section.limit(end).position(start);
+        return section.slice();
+    }
+
+    @Override
+    public long heapBytes() {
+        // everything lives in the buffer
+        return 0;
+    }
+}
@@ -0,0 +1,558 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Builds a model file offline with bounded memory, from corpora of spam and
+ * ham messages and from model files built elsewhere.
+ *
+ * Messages are tokenized by a pool of workers into partial vocabularies.
+ * Whenever a partial holds builder.runTokens tokens it is sorted and spilled
+ * to disk as a run of (token, spam count, ham count) records, so the heap
+ * only ever holds one partial per worker.  Input models are streamed into
+ * runs the same way.  Runs are then k-way merged, at most builder.fanIn at
+ * a time, into a single sorted stream with the counts of equal tokens added
+ * up.
+ *
+ * The merged stream is written to temporary entry and string sections, and
+ * the slot table of the model file is filled in a memory-mapped region of
+ * the output, so writing the model does not need the vocabulary in the heap
+ * either.  The result is a version 1 {@link ModelFile} with sequence 0; it
+ * is renamed into place once complete.
+ *
+ * Run layout: per token int UTF-8 length, UTF-8 bytes, long spam count,
+ * long ham count, in ascending token order.
+ */
+@Component
+public class ModelBuilder {
+    protected Logger log = Logger.getLogger(ModelBuilder.class);
+
+    @Resource
+    private EmailParser emailParser;
+    @Resource
+    private HtmlTextExtractor htmlTextExtractor;
+    @Resource
+    private Environment environment;
+
+    private static final File END = new File("");
+
+    private int runTokens = 2000000;
+    private int fanIn = 64;
+    private int workers;
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 2) {
+            printHelp();
+            return;
+        }
+        List<File> spamDirs = new ArrayList<File>();
+        List<File> hamDirs = new ArrayList<File>();
+        List<File> models = new ArrayList<File>();
+        for (int i = 1; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("spam:")) {
+                spamDirs.add(new File(arg.substring("spam:".length())));
+            } else if (arg.startsWith("ham:")) {
+                hamDirs.add(new File(arg.substring("ham:".length())));
+            } else if (arg.startsWith("model:")) {
+                models.add(new File(arg.substring("model:".length())));
+            } else {
+                printHelp();
+                return;
+            }
+        }
+
+        // load Spring context
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext();
+        ctx.register(ApplicationConfiguration.class);
+        ctx.refresh();
+
+        ModelBuilder modelBuilder = ctx.getBean(ModelBuilder.class);
+        modelBuilder.build(new File(args[0]), spamDirs, hamDirs, models, System.out);
+        ctx.close();
+    }
+
+    public static void printHelp() {
+        System.out.println("ModelBuilder <output model file> [spam:<directory>] [ham:<directory>] [model:<model file>] ...");
+    }
+
+    @PostConstruct
+    public void init() {
+        runTokens = environment.getProperty("builder.runTokens", Integer.class, runTokens);
+        fanIn = environment.getProperty("builder.fanIn", Integer.class, fanIn);
+        workers = environment.getProperty("builder.workers", Integer.class, 0);
+    }
+
+    public void setRunTokens(int runTokens) {
+        this.runTokens = runTokens;
+    }
+
+    public void setFanIn(int fanIn) {
+        this.fanIn = fanIn;
+    }
+
+    /**
+     * Build a model file
+     * @param output Model file to write; it is replaced once the new one is complete
+     * @param spamDirs Directory trees of spam messages
+     * @param hamDirs Directory trees of ham messages
+     * @param models Model files to combine, in version 1 or 3 format
+     * @param progress Where progress is reported
+     * @return Totals of the model; the token counts are only in the file
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public synchronized ModelStats build(File output, List<File> spamDirs, List<File> hamDirs, List<File> models,
+                                         PrintStream progress) throws IOException, InterruptedException {
+        File absoluteOutput = output.getAbsoluteFile();
+        absoluteOutput.getParentFile().mkdirs();
+        File tempDir = Files.createTempDirectory(absoluteOutput.getParentFile().toPath(), "model-build").toFile();
+        try {
+            ModelStats totals = new ModelStats();
+            List<File> runs = Collections.synchronizedList(new ArrayList<File>());
+            RunWriter runWriter = new RunWriter(tempDir, runs);
+            for (File dir : spamDirs) {
+                ingest(dir, true, totals, runWriter, progress);
+            }
+            for (File dir : hamDirs) {
+                ingest(dir, false, totals, runWriter, progress);
+            }
+            for (File model : models) {
+                addModel(model, totals, runWriter, progress);
+            }
+            progress.println("Merging " + runs.size() + " runs");
+            List<File> remaining = new ArrayList<File>(runs);
+            while (remaining.size() > fanIn) {
+                List<File> next = new ArrayList<File>();
+                for (int i = 0; i < remaining.size(); i += fanIn) {
+                    List<File> group = remaining.subList(i, Math.min(remaining.size(), i + fanIn));
+                    File merged = runWriter.newRunFile();
+                    DataOutputStream out = openOutput(merged);
+                    try {
+                        merge(group, new RunSink(out));
+                    } finally {
+                        out.close();
+                    }
+                    for (File run : group) {
+                        run.delete();
+                    }
+                    next.add(merged);
+                }
+                remaining = next;
+            }
+            long tokens = writeModel(absoluteOutput, tempDir, remaining, totals);
+            progress.println("Built " + output + " with " + tokens + " tokens: " + totals);
+            return totals;
+        } finally {
+            File[] files = tempDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            tempDir.delete();
+        }
+    }
+
+    /**
+     * Tokenize every message under a directory into runs
+     */
+    private void ingest(File dir, final boolean isSpam, final ModelStats totals, final RunWriter runWriter,
+                        PrintStream progress) throws IOException, InterruptedException {
+        int threads = workers > 0 ? workers : Runtime.getRuntime().availableProcessors();
+        final int partialTokens = Math.max(1, runTokens / threads);
+        final BlockingQueue<File> queue = new ArrayBlockingQueue<File>(threads * 64);
+        final TokenStore stopWords = TermFilter.compileStopWords(
+                new HashSet<String>(Arrays.asList(NaiveBayesSpamFilter.STOP_WORDS)));
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        long messages = 0;
+        try {
+            for (int i = 0; i < threads; i++) {
+                futures.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return work(queue, isSpam, stopWords, totals, runWriter, partialTokens);
+                    }
+                }));
+            }
+            Deque<File> pending = new ArrayDeque<File>();
+            pending.push(dir);
+            while (!pending.isEmpty()) {
+                File[] files = pending.pop().listFiles();
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isDirectory()) {
+                        pending.push(file);
+                    } else {
+                        offer(queue, file, futures);
+                    }
+                }
+            }
+            for (int i = 0; i < threads; i++) {
+                offer(queue, END, futures);
+            }
+            for (Future<Long> future : futures) {
+                messages += future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read " + dir, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        progress.println("Read " + messages + (isSpam ? " spam" : " ham") + " messages from " + dir
+                + ", " + runWriter.runs.size() + " runs so far");
+    }
+
+    /**
+     * Queue a file for the workers, failing if a worker died
+     */
+    private static void offer(BlockingQueue<File> queue, File file, List<Future<Long>> futures)
+            throws InterruptedException, ExecutionException {
+        while (!queue.offer(file, 1, TimeUnit.SECONDS)) {
+            for (Future<Long> future : futures) {
+                if (future.isDone()) {
+                    future.get();
+                }
+            }
+        }
+    }
+
+    private long work(BlockingQueue<File> queue, boolean isSpam, TokenStore stopWords, ModelStats totals,
+                      RunWriter runWriter, int partialTokens) throws IOException, InterruptedException {
+        TermFilter termFilter = new TermFilter(stopWords);
+        TokenVocabulary partial = new TokenVocabulary();
+        long messages = 0;
+        long tokens = 0;
+        File file;
+        while ( (file = queue.take()) != END ) {
+            try {
+                String content = htmlTextExtractor.getTextByHtml(emailParser.getBody(Files.readAllBytes(file.toPath())));
+                termFilter.reset(content);
+                while (termFilter.next()) {
+                    partial.add(termFilter, isSpam ? 1 : 0, isSpam ? 0 : 1);
+                    tokens++;
+                }
+                messages++;
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to read " + file + ": " + e.getMessage());
+            }
+            if (partial.size() >= partialTokens) {
+                runWriter.spill(partial);
+                partial = new TokenVocabulary();
+            }
+        }
+        runWriter.spill(partial);
+        synchronized (totals) {
+            totals.addMessages(isSpam, messages, tokens);
+        }
+        return messages;
+    }
+
+    /**
+     * Stream the tokens of a model file into runs
+     */
+    private void addModel(File file, ModelStats totals, RunWriter runWriter, PrintStream progress) throws IOException {
+        ModelStats stats = ModelFile.open(file).getStats();
+        TokenStore tokens = stats.getTokens();
+        if (tokens instanceof HashedTokenStore) {
+            throw new IOException("Model " + file + " is hashed and has no tokens to combine");
+        }
+        if (tokens instanceof PrunedTokenStore) {
+            log.warn("Model " + file + " is pruned, only its " + ((PrunedTokenStore) tokens).getExact().size()
+                    + " exact tokens are combined");
+            tokens = ((PrunedTokenStore) tokens).getExact();
+        }
+        TokenVocabulary partial = new TokenVocabulary();
+        for (int id = 0; id < tokens.size(); id++) {
+            partial.add(tokens.token(id), tokens.spamCount(id), tokens.hamCount(id));
+            if (partial.size() >= runTokens) {
+                runWriter.spill(partial);
+                partial = new TokenVocabulary();
+            }
+        }
+        runWriter.spill(partial);
+        totals.addAll(new ModelStats(stats.getTotalSpam(), stats.getTotalHam(),
+                stats.getTotalSpamTokens(), stats.getTotalHamTokens(), new TokenVocabulary()));
+        progress.println("Read " + tokens.size() + " tokens from " + file + ", " + runWriter.runs.size() + " runs so far");
+    }
+
+    /**
+     * Merge sorted runs into a sink, adding up the counts of equal tokens
+     */
+    private static void merge(List<File> runs, TokenSink sink) throws IOException {
+        PriorityQueue<RunReader> readers = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+        try {
+            for (File run : runs) {
+                RunReader reader = new RunReader(run);
+                if (reader.next()) {
+                    readers.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+            while (!readers.isEmpty()) {
+                RunReader reader = readers.poll();
+                String token = reader.token;
+                long spamCount = reader.spamCount;
+                long hamCount = reader.hamCount;
+                advance(readers, reader);
+                while (!readers.isEmpty() && readers.peek().token.equals(token)) {
+                    RunReader same = readers.poll();
+                    spamCount += same.spamCount;
+                    hamCount += same.hamCount;
+                    advance(readers, same);
+                }
+                sink.accept(token, spamCount, hamCount);
+            }
+        } finally {
+            for (RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    private static void advance(PriorityQueue<RunReader> readers, RunReader reader) throws IOException {
+        if (reader.next()) {
+            readers.add(reader);
+        } else {
+            reader.close();
+        }
+    }
+
+    /**
+     * Merge the last runs into entry and string sections, lay out the slot
+     * table in a mapped region of the output and append the sections
+     * @return Number of tokens
+     */
+    private long writeModel(File output, File tempDir, List<File> runs, ModelStats totals) throws IOException {
+        File entriesFile = new File(tempDir, "entries");
+        File stringsFile = new File(tempDir, "strings");
+        DataOutputStream entries = openOutput(entriesFile);
+        DataOutputStream strings = openOutput(stringsFile);
+        SectionSink sections = new SectionSink(entries, strings);
+        try {
+            merge(runs, sections);
+        } finally {
+            entries.close();
+            strings.close();
+        }
+        int tokenCount = sections.tokenCount;
+        int slotCount = Integer.highestOneBit(Math.max(16, tokenCount * 2) - 1) << 1;
+        long slotsOffset = ModelFile.HEADER_SIZE;
+        long entriesOffset = slotsOffset + 4L * slotCount;
+        long stringsOffset = entriesOffset + (long) ModelFile.ENTRY_SIZE * tokenCount;
+        long length = stringsOffset + sections.stringsLength;
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Model too large for a single model file");
+        }
+
+        File tempFile = new File(output.getPath() + ".tmp");
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        try {
+            file.setLength(0);
+            file.setLength(length);
+            FileChannel channel = file.getChannel();
+            ByteArrayOutputStream header = new ByteArrayOutputStream(ModelFile.HEADER_SIZE);
+            ModelFile.writeHeader(new DataOutputStream(header), ModelFile.VERSION, totals, 0,
+                    tokenCount, slotCount, sections.stringsLength);
+            channel.write(ByteBuffer.wrap(header.toByteArray()), 0);
+
+            MappedByteBuffer slots = channel.map(FileChannel.MapMode.READ_WRITE, slotsOffset, 4L * slotCount);
+            for (int slot = 0; slot < slotCount; slot++) {
+                slots.putInt(4 * slot, -1);
+            }
+            int mask = slotCount - 1;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entriesFile), 65536));
+            try {
+                for (int id = 0; id < tokenCount; id++) {
+                    in.readLong();
+                    in.readLong();
+                    int slot = in.readInt() & mask;
+                    in.readInt();
+                    while (slots.getInt(4 * slot) != -1) {
+                        slot = (slot + 1) & mask;
+                    }
+                    slots.putInt(4 * slot, id);
+                }
+            } finally {
+                in.close();
+            }
+            slots.force();
+            transfer(entriesFile, channel, entriesOffset);
+            transfer(stringsFile, channel, stringsOffset);
+            channel.force(true);
+        } finally {
+            file.close();
+        }
+        Files.move(tempFile.toPath(), output.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return tokenCount;
+    }
+
+    private static void transfer(File source, FileChannel target, long position) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            long done = 0;
+            while (done < size) {
+                done += channel.transferTo(done, size - done, target.position(position + done));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static DataOutputStream openOutput(File file) throws FileNotFoundException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+    }
+
+    /**
+     * Sorts partial vocabularies and writes them out as runs
+     */
+    private static class RunWriter {
+        private final File dir;
+        private final List<File> runs;
+        private int next;
+
+        RunWriter(File dir, List<File> runs) {
+            this.dir = dir;
+            this.runs = runs;
+        }
+
+        synchronized File newRunFile() {
+            return new File(dir, "run-" + next++);
+        }
+
+        void spill(final TokenVocabulary partial) throws IOException {
+            if (partial.size() == 0) {
+                return;
+            }
+            Integer[] order = new Integer[partial.size()];
+            for (int id = 0; id < order.length; id++) {
+                order[id] = id;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return partial.token(a).compareTo(partial.token(b));
+                }
+            });
+            File run = newRunFile();
+            DataOutputStream out = openOutput(run);
+            try {
+                RunSink sink = new RunSink(out);
+                for (int id : order) {
+                    sink.accept(partial.token(id), partial.spamCount(id), partial.hamCount(id));
+                }
+            } finally {
+                out.close();
+            }
+            runs.add(run);
+        }
+    }
+
+    private interface TokenSink {
+        void accept(String token, long spamCount, long hamCount) throws IOException;
+    }
+
+    private static class RunSink implements TokenSink {
+        private final DataOutputStream out;
+
+        RunSink(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void accept(String token, long spamCount, long hamCount) throws IOException {
+            byte[] bytes = token.getBytes(ModelFile.UTF8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeLong(spamCount);
+            out.writeLong(hamCount);
+        }
+    }
+
+    /**
+     * Writes merged tokens as the entry and string sections of a model file
+     */
+    private static class SectionSink implements TokenSink {
+        private final DataOutputStream entries;
+        private final DataOutputStream strings;
+        private int tokenCount;
+        private long stringsLength;
+
+        SectionSink(DataOutputStream entries, DataOutputStream strings) {
+            this.entries = entries;
+            this.strings = strings;
+        }
+
+        @Override
+        public void accept(String token, long spamCount, long hamCount) throws IOException {
+            if (tokenCount == Integer.MAX_VALUE || stringsLength > Integer.MAX_VALUE) {
+                throw new IOException("Model too large for a single model file");
+            }
+            byte[] bytes = token.getBytes(ModelFile.UTF8);
+            entries.writeLong(spamCount);
+            entries.writeLong(hamCount);
+            entries.writeInt(TokenVocabulary.hash(token));
+            entries.writeInt((int) stringsLength);
+            strings.write(bytes);
+            stringsLength += bytes.length;
+            tokenCount++;
+        }
+    }
+
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        String token;
+        long spamCount;
+        long hamCount;
+
+        RunReader(File run) throws FileNotFoundException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 65536));
+        }
+
+        boolean next() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            token = new String(bytes, ModelFile.UTF8);
+            spamCount = in.readLong();
+            hamCount = in.readLong();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader other) {
+            return token.compareTo(other.token);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.File;
+
+/**
+ * Command line tool to convert a stats directory from the properties files
+ * layout (stats.properties, spamtokens.properties, hamtokens.properties) to
+ * the binary model file.  The properties files are left in place.
+ */
+public class ModelConverter {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            printHelp();
+            return;
+        }
+
+        File dir = new File(args[0]);
+        if (!new File(dir, "stats.properties").exists()) {
+            System.out.println("Directory " + dir + " has no stats.properties to convert");
+            return;
+        }
+
+        // load Spring context
+        AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext();
+        ctx.register(ApplicationConfiguration.class);
+        ctx.refresh();
+
+        // load beans
+        NaiveBayesSpamFilter naiveBayesSpamFilter = ctx.getBean(NaiveBayesSpamFilter.class);
+        FileHandler fileHandler = ctx.getBean(FileHandler.class);
+
+        fileHandler.setStatsDirectory(dir.getPath());
+        ModelStats stats = naiveBayesSpamFilter.convertLegacyStats();
+        System.out.println("Converted " + dir + ": " + stats);
+        ctx.close();
+    }
+
+    public static void printHelp() {
+        System.out.println("ModelConverter <stats directory>");
+    }
+}
@@ -0,0 +1,343 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Versioned binary model format.  The file is laid out so it can be memory
+ * mapped and served straight away without parsing:
+ *
+ * <pre>
+ * header    64 bytes
+ *   int   magic            "SFMD"
+ *   int   version
+ *   long  totalSpam
+ *   long  totalHam
+ *   long  totalSpamTokens
+ *   long  totalHamTokens
+ *   long  sequence         last training log record included
+ *   int   tokenCount
+ *   int   slotCount        power of two
+ *   long  stringsLength
+ * slots     int[slotCount]  token ID, -1 if empty (open addressing, linear probing)
+ * entries   tokenCount * 24 bytes
+ *   long  spamCount
+ *   long  hamCount
+ *   int   hash             {@link TokenVocabulary#hash(CharSequence)}
+ *   int   stringOffset     into the strings section
+ * strings   UTF-8 token bytes, in ID order
+ * </pre>
+ *
+ * All values are big endian.  The length of a token's bytes is the distance
+ * to the next token's offset.  A single mapping is limited to 2 GB, which
+ * bounds the size of one model file.
+ *
+ * Models in a {@link HashedTokenStore} are written as version 2, which has
+ * no slots or strings:
+ *
+ * <pre>
+ * header    64 bytes, as above with tokenCount the number of buckets and
+ *           slotCount and stringsLength 0
+ * spam      long[tokenCount]  spam count of each bucket
+ * ham       long[tokenCount]  ham count of each bucket
+ * </pre>
+ *
+ * Hashed models are read into the heap when opened; their size is fixed by
+ * the number of buckets.
+ *
+ * Models in a {@link PrunedTokenStore} are written as version 3: the exact
+ * tokens in the version 1 layout, followed by the tail sketch:
+ *
+ * <pre>
+ * sketch
+ *   int   topK
+ *   int   depth
+ *   int   widthBits
+ *   int   reserved
+ *   long  spam cells[depth * 2^widthBits]
+ *   long  ham cells[depth * 2^widthBits]
+ * </pre>
+ *
+ * The exact tokens are mapped like a version 1 model and the sketch is read
+ * into the heap.
+ */
+public class ModelFile {
+    public static final int MAGIC = 0x53464D44;
+    public static final int VERSION = 1;
+    public static final int HASHED_VERSION = 2;
+    public static final int PRUNED_VERSION = 3;
+    static final int HEADER_SIZE = 64;
+    static final int ENTRY_SIZE = 24;
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final ModelStats stats;
+    private final long sequence;
+
+    private ModelFile(ModelStats stats, long sequence) {
+        this.stats = stats;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Open a model from a buffer holding the whole file.  Token counts are
+     * read from the buffer on demand; nothing is copied.
+     * @param buffer
+     * @return
+     * @throws IOException if the buffer does not hold a supported model
+     */
+    public static ModelFile open(ByteBuffer buffer) throws IOException {
+        buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a model file");
+        }
+        int version = buffer.getInt(4);
+        if (version == HASHED_VERSION) {
+            return openHashed(buffer);
+        }
+        if (version != VERSION && version != PRUNED_VERSION) {
+            throw new IOException("Unsupported model file version " + version);
+        }
+        int tokenCount = buffer.getInt(48);
+        int slotCount = buffer.getInt(52);
+        long stringsLength = buffer.getLong(56);
+        long expected = HEADER_SIZE + 4L * slotCount + (long) ENTRY_SIZE * tokenCount + stringsLength;
+        if (buffer.capacity() < expected || Integer.bitCount(slotCount) != 1) {
+            throw new IOException("Truncated or corrupt model file");
+        }
+        TokenStore tokens = new MappedTokenStore(buffer, tokenCount, slotCount, (int) stringsLength);
+        if (version == PRUNED_VERSION) {
+            tokens = openTail(buffer, expected, tokens);
+        }
+        ModelStats stats = new ModelStats(buffer.getLong(8), buffer.getLong(16),
+                buffer.getLong(24), buffer.getLong(32), tokens);
+        return new ModelFile(stats, buffer.getLong(40));
+    }
+
+    /**
+     * Memory-map a model file.  The mapping stays valid after the file is
+     * closed.
+     * @param file
+     * @return
+     * @throws FileNotFoundException if the file does not exist
+     * @throws IOException if the file cannot be mapped, is larger than a
+     *                     single mapping, or is not a valid model
+     */
+    public static ModelFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            long length = randomAccessFile.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("Model file " + file + " is " + length + " bytes, more than the "
+                        + Integer.MAX_VALUE + " that can be mapped");
+            }
+            return open(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length));
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static PrunedTokenStore openTail(ByteBuffer buffer, long offset, TokenStore exact) throws IOException {
+        if (buffer.capacity() < offset + 16) {
+            throw new IOException("Truncated or corrupt model file");
+        }
+        int topK = buffer.getInt((int) offset);
+        int depth = buffer.getInt((int) offset + 4);
+        int widthBits = buffer.getInt((int) offset + 8);
+        int cellCount;
+        try {
+            cellCount = CountMinSketch.checkedSize(depth, widthBits);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt model file: " + e.getMessage());
+        }
+        if (topK < 1 || buffer.capacity() < offset + 16 + 16L * cellCount) {
+            throw new IOException("Truncated or corrupt model file");
+        }
+        long[] spamCells = new long[cellCount];
+        long[] hamCells = new long[cellCount];
+        buffer.position((int) offset + 16);
+        LongBuffer cells = buffer.asLongBuffer();
+        cells.get(spamCells);
+        cells.get(hamCells);
+        return new PrunedTokenStore(topK, exact, new CountMinSketch(depth, widthBits, spamCells, hamCells));
+    }
+
+    private static ModelFile openHashed(ByteBuffer buffer) throws IOException {
+        int buckets = buffer.getInt(48);
+        if (Integer.bitCount(buckets) != 1 || buckets > 1 << HashedTokenStore.MAX_BITS
+                || buffer.capacity() < HEADER_SIZE + 16L * buckets) {
+            throw new IOException("Truncated or corrupt model file");
+        }
+        long[] spamCounts = new long[buckets];
+        long[] hamCounts = new long[buckets];
+        buffer.position(HEADER_SIZE);
+        LongBuffer counts = buffer.asLongBuffer();
+        counts.get(spamCounts);
+        counts.get(hamCounts);
+        ModelStats stats = new ModelStats(buffer.getLong(8), buffer.getLong(16),
+                buffer.getLong(24), buffer.getLong(32), new HashedTokenStore(spamCounts, hamCounts));
+        return new ModelFile(stats, buffer.getLong(40));
+    }
+
+    /**
+     * Write stats to a stream in model file format
+     * @param stats
+     * @param sequence
+     * @param outputStream
+     * @throws IOException
+     */
+    public static void write(ModelStats stats, long sequence, OutputStream outputStream) throws IOException {
+        if (stats.getTokens() instanceof HashedTokenStore) {
+            writeHashed(stats, sequence, outputStream);
+            return;
+        }
+        if (stats.getTokens() instanceof OffHeapTokenStore) {
+            writeOffHeap(stats, sequence, outputStream);
+            return;
+        }
+        TokenStore tokens = stats.getTokens();
+        PrunedTokenStore pruned = null;
+        if (tokens instanceof PrunedTokenStore) {
+            pruned = (PrunedTokenStore) tokens;
+            tokens = pruned.getExact();
+        }
+        int tokenCount = tokens.size();
+        int slotCount = Integer.highestOneBit(Math.max(16, tokenCount * 2) - 1) << 1;
+        int mask = slotCount - 1;
+
+        // lay out slots and string offsets
+        int[] slots = new int[slotCount];
+        Arrays.fill(slots, -1);
+        int[] hashes = new int[tokenCount];
+        int[] offsets = new int[tokenCount];
+        long stringsLength = 0;
+        for (int id = 0; id < tokenCount; id++) {
+            String token = tokens.token(id);
+            hashes[id] = TokenVocabulary.hash(token);
+            int slot = hashes[id] & mask;
+            while (slots[slot] != -1) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+            offsets[id] = (int) stringsLength;
+            stringsLength += utf8Length(token);
+            if (stringsLength > Integer.MAX_VALUE) {
+                throw new IOException("Model too large for a single model file");
+            }
+        }
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
+        writeHeader(out, pruned == null ? VERSION : PRUNED_VERSION, stats, sequence, tokenCount, slotCount, stringsLength);
+        for (int slot : slots) {
+            out.writeInt(slot);
+        }
+        for (int id = 0; id < tokenCount; id++) {
+            out.writeLong(tokens.spamCount(id));
+            out.writeLong(tokens.hamCount(id));
+            out.writeInt(hashes[id]);
+            out.writeInt(offsets[id]);
+        }
+        for (int id = 0; id < tokenCount; id++) {
+            out.write(tokens.token(id).getBytes(UTF8));
+        }
+        if (pruned != null) {
+            writeTail(out, pruned);
+        }
+        out.flush();
+    }
+
+    private static void writeTail(DataOutputStream out, PrunedTokenStore pruned) throws IOException {
+        CountMinSketch tail = pruned.getTail();
+        int cellCount = tail.getDepth() << tail.getWidthBits();
+        out.writeInt(pruned.getTopK());
+        out.writeInt(tail.getDepth());
+        out.writeInt(tail.getWidthBits());
+        out.writeInt(0);
+        for (int i = 0; i < cellCount; i++) {
+            out.writeLong(tail.spamCell(i));
+        }
+        for (int i = 0; i < cellCount; i++) {
+            out.writeLong(tail.hamCell(i));
+        }
+    }
+
+    /**
+     * The store's buffers are already in model file layout, dump them as they are
+     */
+    private static void writeOffHeap(ModelStats stats, long sequence, OutputStream outputStream) throws IOException {
+        OffHeapTokenStore tokens = (OffHeapTokenStore) stats.getTokens();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
+        writeHeader(out, VERSION, stats, sequence, tokens.size(), tokens.slotCount(), tokens.stringsLength());
+        tokens.writeSections(out);
+        out.flush();
+    }
+
+    private static void writeHashed(ModelStats stats, long sequence, OutputStream outputStream) throws IOException {
+        TokenStore tokens = stats.getTokens();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream, 65536));
+        writeHeader(out, HASHED_VERSION, stats, sequence, tokens.size(), 0, 0);
+        for (int id = 0; id < tokens.size(); id++) {
+            out.writeLong(tokens.spamCount(id));
+        }
+        for (int id = 0; id < tokens.size(); id++) {
+            out.writeLong(tokens.hamCount(id));
+        }
+        out.flush();
+    }
+
+    static void writeHeader(DataOutputStream out, int version, ModelStats stats, long sequence,
+                                    int tokenCount, int slotCount, long stringsLength) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(version);
+        out.writeLong(stats.getTotalSpam());
+        out.writeLong(stats.getTotalHam());
+        out.writeLong(stats.getTotalSpamTokens());
+        out.writeLong(stats.getTotalHamTokens());
+        out.writeLong(sequence);
+        out.writeInt(tokenCount);
+        out.writeInt(slotCount);
+        out.writeLong(stringsLength);
+    }
+
+    /**
+     * Number of bytes {@link String#getBytes(Charset)} produces for a string in UTF-8
+     * @param s
+     * @return
+     */
+    static int utf8Length(CharSequence s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogates are encoded as '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    public ModelStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Sequence number of the last training log record included in the model
+     * @return
+     */
+    public long getSequence() {
+        return sequence;
+    }
+}
@@ -0,0 +1,89 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Immutable compiled model: stats, stop words and the log-likelihood ratio
+ * table built from them.
+ *
+ * Scoring threads read the current snapshot through a single volatile
+ * reference and never lock.  Writers build the next {@link ModelStats} from a
+ * copy and publish a new snapshot, so readers always see consistent totals
+ * and counts.
+ */
+public class ModelSnapshot {
+    private static final AtomicLong generations = new AtomicLong();
+
+    private final ModelStats stats;
+    private final Set<String> stopWordSet;
+    private final TokenStore stopWords;
+    private final LogSpaceScorer scorer;
+    private final long sequence;
+    private final long generation;
+
+    /**
+     * @param stats Stats to compile; the snapshot takes ownership and they must not be modified afterwards
+     * @param stopWordSet Stop words used when tokenizing messages
+     * @param sequence Sequence number of the last training log record included in stats
+     */
+    public ModelSnapshot(ModelStats stats, Set<String> stopWordSet, long sequence) {
+        this.stats = stats;
+        this.sequence = sequence;
+        this.generation = generations.incrementAndGet();
+        this.stopWordSet = Collections.unmodifiableSet(new HashSet<String>(stopWordSet));
+        this.stopWords = TermFilter.compileStopWords(stopWordSet);
+        this.scorer = new LogSpaceScorer(stats.getTotalSpam(), stats.getTotalHam(),
+                stats.getTotalSpamTokens(), stats.getTotalHamTokens(), stats.getTokens());
+    }
+
+    /**
+     * Probability that a message is spam according to this snapshot
+     * @param message
+     * @return
+     */
+    public float spamProbability(String message) {
+        return scorer.spamProbability(newTermFilter().reset(message));
+    }
+
+    /**
+     * Stats of this snapshot.  They are shared with the snapshot and must be
+     * treated as read-only; use {@link ModelStats#copy()} to build on them.
+     * @return
+     */
+    public ModelStats getStats() {
+        return stats;
+    }
+
+    /**
+     * New tokenizer using the stop words of this snapshot
+     * @return
+     */
+    public TermFilter newTermFilter() {
+        return new TermFilter(stopWords);
+    }
+
+    public Set<String> getStopWordSet() {
+        return stopWordSet;
+    }
+
+    public LogSpaceScorer getScorer() {
+        return scorer;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Number that is unique to this snapshot within the process and grows
+     * with every snapshot created.  Unlike the sequence it also changes when
+     * stats are cleared or reloaded.
+     * @return
+     */
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -0,0 +1,121 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * Mutable message totals and per token counts that make up a model.
+ *
+ * Stats are built up off to the side, for example while merging trained
+ * messages, and then handed to a {@link ModelSnapshot} which takes ownership
+ * of them.
+ *
+ * Token counts may be backed by a read-only {@link TokenStore}, such as a
+ * memory-mapped model file; they are copied into a {@link TokenVocabulary}
+ * the first time they are modified.  Counts in a {@link HashedTokenStore}
+ * stay hashed.  This class is not thread safe.
+ */
+public class ModelStats {
+    private long totalSpam;
+    private long totalHam;
+    private long totalSpamTokens;
+    private long totalHamTokens;
+    private TokenStore tokens;
+
+    public ModelStats() {
+        this(0, 0, 0, 0, new TokenVocabulary());
+    }
+
+    public ModelStats(long totalSpam, long totalHam, long totalSpamTokens, long totalHamTokens,
+                      TokenStore tokens) {
+        this.totalSpam = totalSpam;
+        this.totalHam = totalHam;
+        this.totalSpamTokens = totalSpamTokens;
+        this.totalHamTokens = totalHamTokens;
+        this.tokens = tokens;
+    }
+
+    /**
+     * Count messages and their total number of tokens
+     * @param isSpam
+     * @param messages Number of messages
+     * @param tokens Number of tokens across those messages
+     */
+    public void addMessages(boolean isSpam, long messages, long tokens) {
+        if (isSpam) {
+            totalSpam += messages;
+            totalSpamTokens += tokens;
+        } else {
+            totalHam += messages;
+            totalHamTokens += tokens;
+        }
+    }
+
+    /**
+     * Count occurrences of a token
+     * @param token
+     * @param isSpam
+     * @param count
+     */
+    public void addTokenCount(CharSequence token, boolean isSpam, long count) {
+        if (isSpam) {
+            mutableTokens().add(token, count, 0);
+        } else {
+            mutableTokens().add(token, 0, count);
+        }
+    }
+
+    /**
+     * Add totals and token counts of other stats into these
+     * @param other
+     */
+    public void addAll(ModelStats other) {
+        totalSpam += other.totalSpam;
+        totalHam += other.totalHam;
+        totalSpamTokens += other.totalSpamTokens;
+        totalHamTokens += other.totalHamTokens;
+        mutableTokens().addAll(other.tokens);
+    }
+
+    private MutableTokenStore mutableTokens() {
+        if (!(tokens instanceof MutableTokenStore)) {
+            TokenVocabulary vocabulary = new TokenVocabulary(tokens.size());
+            vocabulary.addAll(tokens);
+            tokens = vocabulary;
+        }
+        return (MutableTokenStore) tokens;
+    }
+
+    /**
+     * Deep copy that can be modified without affecting these stats
+     * @return
+     */
+    public ModelStats copy() {
+        // read-only stores are shared until the copy is first modified
+        TokenStore copy = tokens instanceof MutableTokenStore ? ((MutableTokenStore) tokens).copy() : tokens;
+        return new ModelStats(totalSpam, totalHam, totalSpamTokens, totalHamTokens, copy);
+    }
+
+    public long getTotalSpam() {
+        return totalSpam;
+    }
+
+    public long getTotalHam() {
+        return totalHam;
+    }
+
+    public long getTotalSpamTokens() {
+        return totalSpamTokens;
+    }
+
+    public long getTotalHamTokens() {
+        return totalHamTokens;
+    }
+
+    public TokenStore getTokens() {
+        return tokens;
+    }
+
+    @Override
+    public String toString() {
+        return "totalSpam=" + totalSpam + ",totalHam=" + totalHam + ",totalSpamTokens=" + totalSpamTokens
+                + ",totalHamTokens=" + totalHamTokens + ",tokens=" + tokens.size();
+    }
+}
@@ -0,0 +1,28 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * {@link TokenStore} whose counts can be added to.
+ */
+public interface MutableTokenStore extends TokenStore {
+
+    /**
+     * Add to the counts of a token
+     * @param token
+     * @param spamDelta Amount added to spam count
+     * @param hamDelta Amount added to ham count
+     * @return ID the counts were added to
+     */
+    int add(CharSequence token, long spamDelta, long hamDelta);
+
+    /**
+     * Add every count of another store into this one
+     * @param other
+     */
+    void addAll(TokenStore other);
+
+    /**
+     * Deep copy that can be modified without affecting this store
+     * @return
+     */
+    MutableTokenStore copy();
+}
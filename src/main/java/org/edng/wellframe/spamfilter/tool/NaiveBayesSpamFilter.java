@@ -1,17 +1,62 @@
 package org.edng.wellframe.spamfilter.tool;
 
 import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.io.*;
-import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Using Naive Bayes technique to detect spam messages
  *
+ * The model is held in an immutable {@link ModelSnapshot} published through a
+ * volatile reference.  Scoring reads whatever snapshot is current without
+ * locking; clearing, loading and merging stats are serialized on this object,
+ * build the next snapshot off to the side and swap it in atomically.
+ *
+ * Merged messages are recorded in a {@link TrainingLog} rather than by
+ * rewriting the model.  A background task commits the log in groups and
+ * periodically checkpoints the current snapshot into the model file; on
+ * startup the log is replayed on top of the last checkpoint.
+ *
+ * With model.hashBits set the model keeps its counts in a fixed-size
+ * {@link HashedTokenStore} instead of a vocabulary of token strings.  An
+ * existing vocabulary model is hashed when it is loaded; a hashed model can
+ * be folded into fewer buckets but never turned back into a vocabulary.
+ *
+ * With model.pruneTopK set instead, only the most frequent tokens keep exact
+ * counts in a {@link PrunedTokenStore} and the rest are counted in a
+ * count-min sketch.  Pruning happens while stats are merged and replayed, so
+ * the saved model shrinks with it.
+ *
+ * With model.offHeap set, a vocabulary model keeps its tokens and counts
+ * in an {@link OffHeapTokenStore} of direct buffers rather than in heap
+ * objects.  A loaded model is copied off-heap as it is.
+ *
+ * With training.direct set, trained messages write no per-message files.
+ * Each message is appended to the training log and its counts are added to
+ * a {@link StripedModelStats} by the training thread itself, so training
+ * scales with the number of threads.  Pending counts are folded into a new
+ * snapshot whenever one is published, at least every
+ * training.publishIntervalMillis, and always before a checkpoint.  Such
+ * messages are only marked merged once their log records are committed.
+ *
+ * With model.reloadCheckMillis set, the model file is checked that often
+ * and loaded again when it has been replaced by something else, such as a
+ * model trained offline and moved into the stats directory.  Scoring keeps
+ * using the current snapshot until the new one is published.
+ *
  * Created by ed on 2/7/15.
  */
 @Component
@@ -20,45 +65,361 @@ public class NaiveBayesSpamFilter {
 
     @Resource
     private FileHandler fileHandler;
+    @Resource
+    private Environment environment;
+    @Resource
+    private PipelineMetrics pipelineMetrics;
 
     public static final String[] STOP_WORDS = {"but", "be", "with", "such", "then", "for", "no", "will", "not", "are", "and", "their", "if", "this", "on", "into", "a", "or", "there", "in", "that", "they", "was", "is", "it", "an", "the", "as", "at", "these", "by", "to", "of"};
 
-    private Set<String> stopWordSet;
-    private long totalSpam;
-    private long totalHam;
-    private long totalSpamTokens;
-    private long totalHamTokens;
-    private Map<String, Long> spamTokenCount;
-    private Map<String, Long> hamTokenCount;
+    public static final String MODEL_FILE = "model.bin";
+
+    private volatile ModelSnapshot snapshot;
+    private volatile TrainingLog trainingLog;
+    // sequence of the last training log record appended, incremented under
+    // sequenceLock and read when publishing
+    private long sequence;
+    private final Object sequenceLock = new Object();
+    // direct training appends and adds pending counts under the read lock,
+    // publishing folds them in under the write lock, which is taken after this
+    private final ReentrantReadWriteLock trainingLock = new ReentrantReadWriteLock();
+    private StripedModelStats pending;
+    private volatile boolean directTraining;
+    private long publishIntervalMillis;
+    private volatile long lastPublishMillis;
+    // digests of directly trained messages not yet marked merged, claimed
+    // before training so a message submitted twice is trained once; they are
+    // marked in markQueue order once their log records are committed
+    private final Set<String> unmarkedMessages = new HashSet<String>();
+    private final List<String> markQueue = new ArrayList<String>();
+    // checkpoints are serialized on this lock, which is always taken before this
+    private final Object checkpointLock = new Object();
+    private long checkpointSequence;
+    private long lastCheckpointMillis;
+    private ScheduledExecutorService scheduler;
+    private PendingMerger pendingMerger;
+    // identity of the model file as last loaded or saved here, so a file
+    // replaced from outside can be told from our own checkpoints
+    private volatile String modelFileStamp;
+    private long reloadCheckMillis;
+    private volatile long reloadCount;
 
     public NaiveBayesSpamFilter() {
     }
 
     @PostConstruct
     public void init() {
+        int stripes = environment.getProperty("training.stripes", Integer.class, 0);
+        pending = new StripedModelStats(stripes > 0 ? stripes : 4 * Runtime.getRuntime().availableProcessors());
+        directTraining = environment.getProperty("training.direct", Boolean.class, false);
+        publishIntervalMillis = environment.getProperty("training.publishIntervalMillis", Long.class, 1000L);
+        reloadCheckMillis = environment.getProperty("model.reloadCheckMillis", Long.class, 0L);
+        pendingMerger = new PendingMerger(fileHandler, environment.getProperty("merge.parallelism", Integer.class, 0),
+                environment.getProperty("merge.leafMessages", Integer.class, 256));
         loadStats();
+        long commitIntervalMillis = environment.getProperty("training.log.commitIntervalMillis", Long.class, 200L);
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "training-log");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                maintainTrainingLog();
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+        if (reloadCheckMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkModelFile();
+                }
+            }, reloadCheckMillis, reloadCheckMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdown();
+        pendingMerger.shutdown();
+        try {
+            checkpoint();
+            trainingLog.close();
+            markCommittedMessages();
+        } catch (IOException | AssertionError e) {
+            log.error("Failed to checkpoint stats on shutdown", e);
+        }
+    }
+
+    /**
+     * Commit the training log when a group is due and checkpoint the model
+     * when the checkpoint interval has passed or the log has grown too large.
+     */
+    protected void maintainTrainingLog() {
+        try {
+            trainingLog.commitIfDue();
+            markCommittedMessages();
+            if (!pending.isEmpty() && System.currentTimeMillis() - lastPublishMillis >= publishIntervalMillis) {
+                publishPending();
+            }
+            long checkpointIntervalMillis = environment.getProperty("training.checkpointIntervalMillis", Long.class, 60000L);
+            long checkpointLogBytes = environment.getProperty("training.checkpointLogBytes", Long.class, 64L << 20);
+            if (System.currentTimeMillis() - lastCheckpointMillis >= checkpointIntervalMillis
+                    || trainingLog.getSegmentBytes() >= checkpointLogBytes) {
+                checkpoint();
+            }
+        } catch (Exception | AssertionError e) {
+            // keep the task scheduled, the next run retries
+            log.error("Training log maintenance failed", e);
+        }
+    }
+
+    /**
+     * Reload the model if its file has been replaced
+     */
+    protected void checkModelFile() {
+        try {
+            reloadStats(false);
+        } catch (Exception | AssertionError e) {
+            // keep serving the current model, the next check retries
+            log.error("Failed to reload replaced " + MODEL_FILE, e);
+        }
     }
 
+    /**
+     * Save the current snapshot as the model file and drop the training log
+     * records it includes.  Scoring and merging continue while the model is
+     * written.  While reload checks are enabled a model file replaced from
+     * outside is never overwritten before it has been loaded.
+     * @throws IOException
+     */
+    public void checkpoint() throws IOException {
+        synchronized (checkpointLock) {
+            lastCheckpointMillis = System.currentTimeMillis();
+            if (reloadCheckMillis > 0 && isModelFileReplaced()) {
+                log.warn("Not checkpointing over replaced " + MODEL_FILE + ", it has to be reloaded first");
+                return;
+            }
+            ModelSnapshot current;
+            List<File> sealed;
+            synchronized (this) {
+                trainingLock.writeLock().lock();
+                try {
+                    if (!pending.isEmpty()) {
+                        publish(snapshot.getStats().copy(), snapshot.getStopWordSet());
+                    }
+                    current = snapshot;
+                    if (current.getSequence() == checkpointSequence) {
+                        return;
+                    }
+                    // every record appended so far is in the current snapshot
+                    sealed = trainingLog.roll(current.getSequence() + 1);
+                } finally {
+                    trainingLock.writeLock().unlock();
+                }
+            }
+            log.info("Checkpointing stats at sequence " + current.getSequence());
+            long start = System.nanoTime();
+            saveStats(current.getStats(), current.getStopWordSet(), current.getSequence());
+            trainingLog.delete(sealed);
+            pipelineMetrics.record(PipelineMetrics.Stage.CHECKPOINT, start);
+            checkpointSequence = current.getSequence();
+        }
+    }
+
+    private TrainingLog newTrainingLog() {
+        return new TrainingLog(fileHandler.getStatsDirectory(),
+                environment.getProperty("training.log.commitBatchSize", Integer.class, 100),
+                environment.getProperty("training.log.commitIntervalMillis", Long.class, 200L));
+    }
+
+    /**
+     * Clear stats in memory and in the current stats directory, including
+     * any training log records that have not been checkpointed yet.
+     */
     public void clearStats() {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                trainingLock.writeLock().lock();
+                try {
+                    clearStatsLocked();
+                } finally {
+                    trainingLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private void clearStatsLocked() {
         log.info("Clearing stats");
-        stopWordSet = new HashSet();
-        for (String word : STOP_WORDS) {
-            stopWordSet.add(word);
+        pending.clear();
+        synchronized (unmarkedMessages) {
+            // their training is cleared with the log, so they may be trained again
+            unmarkedMessages.clear();
+            markQueue.clear();
+        }
+        ModelStats stats = newModelStats();
+        Set<String> stopWordSet = new HashSet<String>(Arrays.asList(STOP_WORDS));
+        try {
+            if (trainingLog != null) {
+                trainingLog.close();
+            }
+            trainingLog = newTrainingLog();
+            trainingLog.clear(1);
+            saveStats(stats, stopWordSet, 0);
+        } catch (IOException e) {
+            throw new AssertionError("Failed to clear stats in " + fileHandler.getStatsDirectory() + ": " + e.getMessage());
+        }
+        sequence = 0;
+        checkpointSequence = 0;
+        lastCheckpointMillis = System.currentTimeMillis();
+        publish(stats, stopWordSet);
+    }
+
+    /**
+     * Empty stats in the configured model mode
+     * @return
+     */
+    protected ModelStats newModelStats() {
+        int hashBits = environment.getProperty("model.hashBits", Integer.class, 0);
+        int pruneTopK = environment.getProperty("model.pruneTopK", Integer.class, 0);
+        if (hashBits > 0) {
+            return new ModelStats(0, 0, 0, 0, new HashedTokenStore(hashBits));
+        }
+        if (pruneTopK > 0) {
+            return new ModelStats(0, 0, 0, 0, newPrunedTokenStore(pruneTopK));
         }
-        totalSpam = 0;
-        totalHam = 0;
-        totalSpamTokens = 0;
-        totalHamTokens = 0;
-        spamTokenCount = new HashMap();
-        hamTokenCount = new HashMap();
+        if (environment.getProperty("model.offHeap", Boolean.class, false)) {
+            return new ModelStats(0, 0, 0, 0, new OffHeapTokenStore());
+        }
+        return new ModelStats();
+    }
+
+    private PrunedTokenStore newPrunedTokenStore(int topK) {
+        return new PrunedTokenStore(topK, environment.getProperty("model.sketchDepth", Integer.class, 4),
+                environment.getProperty("model.sketchWidthBits", Integer.class, 18));
+    }
+
+    /**
+     * Hash, prune or copy off-heap loaded stats as configured, if that is
+     * possible and they aren't already.  Converted stats are saved straight away so the
+     * conversion is only done once.
+     * @param stats
+     * @param stopWordSet
+     * @param modelSequence Sequence number the stats were saved with
+     * @return Stats in the configured mode, or as they were
+     */
+    private ModelStats toConfiguredMode(ModelStats stats, Set<String> stopWordSet, long modelSequence) {
+        int hashBits = environment.getProperty("model.hashBits", Integer.class, 0);
+        int pruneTopK = hashBits > 0 ? 0 : environment.getProperty("model.pruneTopK", Integer.class, 0);
+        TokenStore tokens = stats.getTokens();
+        MutableTokenStore converted;
+        if (tokens instanceof HashedTokenStore) {
+            int bits = ((HashedTokenStore) tokens).getBits();
+            if (bits == hashBits) {
+                return stats;
+            }
+            if (hashBits == 0 || hashBits > bits) {
+                log.warn("Model is hashed with " + bits + " bits and has no token strings, keeping it instead of model.hashBits=" + hashBits);
+                return stats;
+            }
+            log.info("Folding hashed model into " + (1 << hashBits) + " buckets");
+            converted = new HashedTokenStore(hashBits);
+            converted.addAll(tokens);
+        } else if (hashBits > 0) {
+            log.info("Hashing model of " + tokens.size() + " tokens into " + (1 << hashBits) + " buckets");
+            converted = new HashedTokenStore(hashBits);
+            converted.addAll(tokens);
+        } else if (tokens instanceof PrunedTokenStore) {
+            int topK = ((PrunedTokenStore) tokens).getTopK();
+            if (topK == pruneTopK) {
+                return stats;
+            }
+            if (pruneTopK == 0) {
+                log.warn("Model is pruned to " + topK + " tokens, keeping it pruned as the tail can't be restored");
+                return stats;
+            }
+            log.info("Pruning model to " + pruneTopK + " tokens");
+            converted = ((PrunedTokenStore) tokens).withTopK(pruneTopK);
+        } else if (pruneTopK > 0) {
+            log.info("Pruning model of " + tokens.size() + " tokens to " + pruneTopK);
+            converted = newPrunedTokenStore(pruneTopK);
+            converted.addAll(tokens);
+        } else if (environment.getProperty("model.offHeap", Boolean.class, false)
+                && !(tokens instanceof OffHeapTokenStore)) {
+            // same model file layout, so there is nothing to save
+            log.info("Copying model of " + tokens.size() + " tokens off-heap");
+            return new ModelStats(stats.getTotalSpam(), stats.getTotalHam(),
+                    stats.getTotalSpamTokens(), stats.getTotalHamTokens(), OffHeapTokenStore.copyOf(tokens));
+        } else {
+            return stats;
+        }
+        ModelStats convertedStats = new ModelStats(stats.getTotalSpam(), stats.getTotalHam(),
+                stats.getTotalSpamTokens(), stats.getTotalHamTokens(), converted);
+        try {
+            saveStats(convertedStats, stopWordSet, modelSequence);
+        } catch (IOException e) {
+            log.error("Failed to save converted model, it will be converted again on the next load", e);
+        }
+        return convertedStats;
+    }
+
+    /**
+     * Compile stats into a new snapshot and make it visible to scoring threads.
+     * Counts trained directly since the last snapshot are added to the stats
+     * first.  The stats must not be modified afterwards.
+     * @param stats
+     * @param stopWordSet
+     */
+    protected void publish(ModelStats stats, Set<String> stopWordSet) {
+        trainingLock.writeLock().lock();
+        try {
+            long drained = pending.drainInto(stats);
+            snapshot = new ModelSnapshot(stats, stopWordSet, sequence);
+            lastPublishMillis = System.currentTimeMillis();
+            log.debug("Published snapshot: sequence=" + sequence + ",directlyTrained=" + drained + "," + stats);
+        } finally {
+            trainingLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Publish a snapshot including the counts trained directly since the
+     * last one, if there are any, after marking the committed ones merged
+     * @throws IOException
+     */
+    public synchronized void publishPending() throws IOException {
+        markCommittedMessages();
+        if (pending.isEmpty()) {
+            return;
+        }
+        ModelSnapshot current = snapshot;
+        publish(current.getStats().copy(), current.getStopWordSet());
+    }
+
+    /**
+     * Current model snapshot.  Use a single snapshot for a unit of work that
+     * needs a consistent view of the model.
+     * @return
+     */
+    public ModelSnapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
-     * Persist stats on disk
+     * Persist stats on disk as a binary model file
      *
+     * @param stats Stats to save
+     * @param stopWordSet Stop words to save
+     * @param sequence Sequence number of the last training log record included in stats
      * @throws IOException
      */
-    protected void saveStats() throws IOException {
+    protected void saveStats(ModelStats stats, Set<String> stopWordSet, long sequence) throws IOException {
+        long start = System.nanoTime();
         log.info("Saving stats");
         // save stop words
         StringBuilder stopWordsString = new StringBuilder();
@@ -68,37 +429,38 @@ public class NaiveBayesSpamFilter {
         }
         fileHandler.saveStatsContent(stopWordsString.toString(), "stopwords.txt");
 
-        Properties properties = new Properties();
-
-        // save totals
-        properties.setProperty("totalSpam", totalSpam+"");
-        properties.setProperty("totalHam", totalHam+"");
-        properties.setProperty("totalSpamTokens", totalSpamTokens+"");
-        properties.setProperty("totalHamTokens", totalHamTokens+"");
-        fileHandler.saveStatsProperties(properties, "stats.properties");
-
-        // save spam tokens
-        properties.clear();
-        for (Map.Entry<String, Long> entry : spamTokenCount.entrySet()) {
-            properties.setProperty(entry.getKey(), entry.getValue().toString());
-        }
-        fileHandler.saveStatsProperties(properties, "spamtokens.properties");
-
-        // save ham tokens
-        properties.clear();
-        for (Map.Entry<String, Long> entry : hamTokenCount.entrySet()) {
-            properties.setProperty(entry.getKey(), entry.getValue().toString());
-        }
-        fileHandler.saveStatsProperties(properties, "hamtokens.properties");
-        log.info("Saving stats completed");
+        // save totals and tokens
+        fileHandler.saveStatsModel(stats, sequence, MODEL_FILE);
+        modelFileStamp = currentModelFileStamp();
+        pipelineMetrics.record(PipelineMetrics.Stage.SAVE, start);
+        log.info("Saving stats completed: sequence=" + sequence);
     }
 
     /**
-     * Load stats from disk to memory
+     * Load stats from disk to memory.  The binary model file is memory-mapped
+     * and served as is, then training log records newer than the model are
+     * replayed on top.  Stats directories that only have the legacy
+     * properties files are converted to a model file on the way.
      */
     public void loadStats() {
+        synchronized (checkpointLock) {
+            synchronized (this) {
+                long start = System.nanoTime();
+                trainingLock.writeLock().lock();
+                try {
+                    loadStatsLocked();
+                } finally {
+                    trainingLock.writeLock().unlock();
+                }
+                pipelineMetrics.record(PipelineMetrics.Stage.LOAD, start);
+            }
+        }
+    }
+
+    private void loadStatsLocked() {
         log.info("Loading stats");
-        clearStats();
+        modelFileStamp = currentModelFileStamp();
+        Set<String> stopWordSet = new HashSet<String>();
         // load stop words
         BufferedReader reader;
         try {
@@ -111,12 +473,121 @@ public class NaiveBayesSpamFilter {
             // leave stop word set as default
         }
         if (stopWordSet.isEmpty()) {
-            for (String word : STOP_WORDS) {
-                stopWordSet.add(word);
-            }
+            stopWordSet.addAll(Arrays.asList(STOP_WORDS));
         }
         log.info("Loaded stop words");
 
+        ModelStats stats = null;
+        long modelSequence = 0;
+        if (fileHandler.statsFileExists(MODEL_FILE)) {
+            try {
+                ModelFile modelFile = fileHandler.loadStatsModel(MODEL_FILE);
+                stats = modelFile.getStats();
+                modelSequence = modelFile.getSequence();
+                log.info("Mapped model file: sequence=" + modelSequence + "," + stats);
+            } catch (IOException e) {
+                log.error("Failed to load " + MODEL_FILE + ", falling back to properties files", e);
+            }
+        }
+        if (stats == null) {
+            stats = loadLegacyStats();
+            if (fileHandler.statsFileExists("stats.properties")) {
+                try {
+                    saveStats(stats, stopWordSet, 0);
+                    log.info("Converted properties files to " + MODEL_FILE);
+                } catch (IOException e) {
+                    log.error("Failed to convert properties files to " + MODEL_FILE, e);
+                }
+            }
+        }
+        stats = toConfiguredMode(stats, stopWordSet, modelSequence);
+
+        // directly trained counts are in the log and come back with the replay
+        pending.clear();
+        // replay training since the model was saved
+        sequence = modelSequence;
+        try {
+            if (trainingLog != null) {
+                markCommittedMessages();
+                trainingLog.close();
+            }
+            trainingLog = newTrainingLog();
+            sequence = trainingLog.replay(stats, modelSequence);
+            trainingLog.open(sequence + 1);
+        } catch (IOException e) {
+            throw new AssertionError("Failed to open training log in " + fileHandler.getStatsDirectory() + ": " + e.getMessage());
+        }
+        checkpointSequence = modelSequence;
+        lastCheckpointMillis = System.currentTimeMillis();
+        publish(stats, stopWordSet);
+        log.info("Loading stats completed");
+    }
+
+    /**
+     * Load the model file again and publish it, with the training log
+     * records newer than the model replayed on top.  The file is opened
+     * first, so a model that is still being written or is damaged is refused
+     * and the current model stays in use.
+     * @param force Reload even if the file hasn't been replaced since it was
+     *              loaded or saved here
+     * @return Whether the model was reloaded
+     * @throws IOException If the model file can't be opened
+     */
+    public boolean reloadStats(boolean force) throws IOException {
+        synchronized (checkpointLock) {
+            if (!force && !isModelFileReplaced()) {
+                return false;
+            }
+            if (fileHandler.statsFileExists(MODEL_FILE)) {
+                fileHandler.loadStatsModel(MODEL_FILE);
+            }
+            log.info(force ? "Reloading stats" : "Reloading stats, " + MODEL_FILE + " was replaced");
+            loadStats();
+            reloadCount++;
+            return true;
+        }
+    }
+
+    /**
+     * Number of times the model has been reloaded since startup
+     * @return
+     */
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    private boolean isModelFileReplaced() {
+        String stamp = currentModelFileStamp();
+        return stamp != null && !stamp.equals(modelFileStamp);
+    }
+
+    /**
+     * File key, modification time and size of the model file, or null if
+     * there is none
+     */
+    private String currentModelFileStamp() {
+        File file = new File(fileHandler.getStatsDirectory(), MODEL_FILE);
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            return attributes.fileKey() + ":" + attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load stats from the stats.properties, spamtokens.properties and
+     * hamtokens.properties layout used before the binary model file.
+     * Missing files are treated as empty.
+     * @return
+     */
+    protected ModelStats loadLegacyStats() {
+        long totalSpam = 0;
+        long totalHam = 0;
+        long totalSpamTokens = 0;
+        long totalHamTokens = 0;
+        TokenVocabulary vocabulary = new TokenVocabulary();
+
         Properties properties = new Properties();
 
         // load totals
@@ -145,9 +616,10 @@ public class NaiveBayesSpamFilter {
 
         // load spam tokens
         try {
+            properties.clear();
             fileHandler.loadStatsProperties("spamtokens.properties", properties);
             for (String token : properties.stringPropertyNames()) {
-                spamTokenCount.put(token, new Long(properties.getProperty(token)));
+                vocabulary.add(token, Long.parseLong(properties.getProperty(token)), 0);
             }
         } catch (IOException e) {
             // leave empty
@@ -156,109 +628,110 @@ public class NaiveBayesSpamFilter {
 
         // load ham tokens
         try {
+            properties.clear();
             fileHandler.loadStatsProperties("hamtokens.properties", properties);
             for (String token : properties.stringPropertyNames()) {
-                hamTokenCount.put(token, new Long(properties.getProperty(token)));
+                vocabulary.add(token, 0, Long.parseLong(properties.getProperty(token)));
             }
         } catch (IOException e) {
             // leave empty
         }
         log.info("Loaded ham tokens");
-        log.info("Loading stats completed");
+        return new ModelStats(totalSpam, totalHam, totalSpamTokens, totalHamTokens, vocabulary);
     }
 
     /**
-     * Merge processed messages stats
-     *
+     * Convert the properties files in the current stats directory to a
+     * binary model file, replacing any existing model file.
+     * @return Converted stats
      * @throws IOException
      */
-    public void mergeStats() throws IOException {
-        log.info("Merging stats");
-        mergeStatsSpam();
-        mergeStatsHam();
-        log.info("Merging stats completed");
+    public synchronized ModelStats convertLegacyStats() throws IOException {
+        ModelStats stats = loadLegacyStats();
+        saveStats(stats, snapshot.getStopWordSet(), 0);
+        return stats;
     }
 
     /**
-     * Merge spam messages stats
+     * Merge processed messages stats.  Pending messages are read in parallel
+     * by a {@link PendingMerger} and their combined counts are appended to
+     * the training log as a single record, which is committed before the
+     * messages are marked merged in one batch and archived.
      *
      * @throws IOException
      */
-    protected synchronized void mergeStatsSpam() throws IOException {
-        log.info("Merging stats spam");
-        // load outstanding spam stats
-        String[] messages = fileHandler.listMessages(true);
-        Properties properties = new Properties();
+    public synchronized void mergeStats() throws IOException {
+        long start = System.nanoTime();
+        log.info("Merging stats");
+        ModelSnapshot current = snapshot;
+        PendingMerger.Result pendingMessages = pendingMerger.collect();
+        // build the next model on a copy so scoring keeps using the current one
+        ModelStats next = current.getStats().copy();
+        List<String> merged = new ArrayList<String>(pendingMessages.merged(true));
+        merged.addAll(pendingMessages.merged(false));
+        try {
+            if (!merged.isEmpty()) {
+                applyDelta(next, pendingMessages.getDelta());
+                trainingLog.commit();
+                fileHandler.markMessagesMerged(merged);
+            }
+        } finally {
+            // publish whatever made it into the log
+            publish(next, current.getStopWordSet());
+            pipelineMetrics.record(PipelineMetrics.Stage.MERGE, start);
+        }
+        archive(pendingMessages.merged(true), true);
+        archive(pendingMessages.merged(false), false);
+        archive(pendingMessages.stale(true), true);
+        archive(pendingMessages.stale(false), false);
+        log.info("Merging stats completed: merged=" + merged.size() + ",stale="
+                + (pendingMessages.stale(true).size() + pendingMessages.stale(false).size())
+                + ",failed=" + pendingMessages.getFailed());
+    }
 
+    private void archive(List<String> messages, boolean isSpam) throws IOException {
         for (String message : messages) {
-            log.debug("message="+message);
-            totalSpam++;
-            // load stats
-            properties.clear();
-            fileHandler.loadMessageProperties(properties, message + "_stats.properties", true);
-            totalSpamTokens += new Long(properties.getProperty("totalTokens"));
-            log.debug("message="+message+": totalSpamTokens="+totalSpamTokens);
-            properties.clear();
-            fileHandler.loadMessageProperties(properties, message + "_tokens.properties", true);
-            for (String token : properties.stringPropertyNames()) {
-                if (spamTokenCount.containsKey(token)) {
-                    long count = spamTokenCount.get(token);
-                    count += new Long(properties.getProperty(token));
-                    spamTokenCount.put(token, count);
-                } else {
-                    spamTokenCount.put(token,
-                            new Long(properties.getProperty(token)));
-                }
-            }
-            fileHandler.moveFilesToArchive(message, true);
-            log.debug("message="+message+": Moved to archive");
-            fileHandler.markMessageMerged(message);
-            log.debug("message="+message+": Marked merged");
-            saveStats();
-            log.debug("message="+message+": Stats saved");
+            fileHandler.moveFilesToArchive(message, isSpam);
         }
-        log.info("Merging stats spam completed");
     }
 
     /**
-     * Merge ham message stats
-     *
+     * Merge counts that were gathered without per-message files, such as by
+     * {@link BulkIngester}.  The delta goes into the training log as a single
+     * record, which is committed before any of the messages is marked merged.
+     * @param delta Totals and token counts of all the messages
+     * @param messageMd5s Messages included in the delta
      * @throws IOException
      */
-    protected synchronized void mergeStatsHam() throws IOException {
-        log.info("Merging stats ham");
-        // load outstanding spam stats
-        String[] messages = fileHandler.listMessages(false);
-        Properties properties = new Properties();
+    public synchronized void mergeDelta(ModelStats delta, Collection<String> messageMd5s) throws IOException {
+        long start = System.nanoTime();
+        log.info("Merging delta of " + messageMd5s.size() + " messages: " + delta);
+        ModelSnapshot current = snapshot;
+        ModelStats next = current.getStats().copy();
+        try {
+            applyDelta(next, delta);
+            trainingLog.commit();
+            fileHandler.markMessagesMerged(messageMd5s);
+        } finally {
+            // publish whatever made it into the log
+            publish(next, current.getStopWordSet());
+            pipelineMetrics.record(PipelineMetrics.Stage.MERGE, start);
+        }
+        log.info("Merging delta completed");
+    }
 
-        for (String message : messages) {
-            log.debug("message="+message);
-            totalHam++;
-            // load stats
-            properties.clear();
-            fileHandler.loadMessageProperties(properties, message + "_stats.properties", false);
-            totalHamTokens += new Long(properties.getProperty("totalTokens"));
-            log.debug("message="+message+": totalHamTokens="+totalHamTokens);
-            properties.clear();
-            fileHandler.loadMessageProperties(properties, message + "_tokens.properties", false);
-            for (String token : properties.stringPropertyNames()) {
-                if (hamTokenCount.containsKey(token)) {
-                    long count = hamTokenCount.get(token);
-                    count += new Long(properties.getProperty(token));
-                    hamTokenCount.put(token, count);
-                } else {
-                    hamTokenCount.put(token,
-                            new Long(properties.getProperty(token)));
-                }
-            }
-            fileHandler.moveFilesToArchive(message, false);
-            log.debug("message="+message+": Moved to archive");
-            fileHandler.markMessageMerged(message);
-            log.debug("message=" + message + ": Marked merged");
-            saveStats();
-            log.debug("message=" + message + ": Stats saved");
+    /**
+     * Append a delta to the training log and apply it to stats
+     * @param stats
+     * @param delta
+     * @throws IOException
+     */
+    protected void applyDelta(ModelStats stats, ModelStats delta) throws IOException {
+        synchronized (sequenceLock) {
+            trainingLog.append(sequence + 1, delta);
+            sequence++;
         }
-        log.info("Merging stats ham completed");
+        stats.addAll(delta);
     }
 
     /**
@@ -267,10 +740,16 @@ public class NaiveBayesSpamFilter {
      *
      * @param message
      * @param isSpam
-     * @param commit if set to true, it will call saveStats after message is processed
+     * @param commit if set to true, it will merge stats after message is processed; the merge
+     *               becomes durable with the next training log group commit
      * @throws IOException
      */
     public void train(String message, boolean isSpam, boolean commit) throws IOException {
+        if (directTraining) {
+            trainDirect(message, isSpam, commit);
+            return;
+        }
+        long start = System.nanoTime();
         String md5Filename = fileHandler.generateMd5Filename(message);
         log.debug("Training start: " + md5Filename);
 
@@ -280,15 +759,10 @@ public class NaiveBayesSpamFilter {
         }
 
         long totalTokens = 0;
-        Map<String, Long> tokenCount = new HashMap();
-        TermFilter termFilter = new TermFilter(new StringReader(message), stopWordSet);
-        String token;
-        while ( (token = termFilter.nextToken()) != null ) {
-            if (tokenCount.containsKey(token)) {
-                tokenCount.put(token, new Long(tokenCount.get(token) + 1));
-            } else {
-                tokenCount.put(token, new Long(1));
-            }
+        TokenVocabulary tokenCount = new TokenVocabulary();
+        TermFilter termFilter = snapshot.newTermFilter().reset(message);
+        while (termFilter.next()) {
+            tokenCount.add(termFilter, 1, 0);
             totalTokens++;
         }
 
@@ -303,13 +777,14 @@ public class NaiveBayesSpamFilter {
         properties.clear();
 
         // save spam tokens
-        for (Map.Entry<String, Long> entry : tokenCount.entrySet()) {
-            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        for (int id = 0; id < tokenCount.size(); id++) {
+            properties.setProperty(tokenCount.token(id), Long.toString(tokenCount.spamCount(id)));
         }
         fileHandler.saveMessageProperties(properties, md5Filename + "_tokens.properties", isSpam);
 
         // save file indicator for completeness
         fileHandler.saveMessageContent("", md5Filename + ".complete", isSpam);
+        pipelineMetrics.record(PipelineMetrics.Stage.TRAIN, start);
 
         if (commit) {
             mergeStats();
@@ -317,6 +792,119 @@ public class NaiveBayesSpamFilter {
         log.debug("Training ends");
     }
 
+    /**
+     * Train a message without writing any files.  The message is appended
+     * to the training log and its counts are added to the pending stripes;
+     * it is scored once the next snapshot is published and durable with
+     * the next group commit.  Safe to call from many threads.
+     *
+     * @param message
+     * @param isSpam
+     * @param commit if set to true, publish a snapshot including the message straight away
+     * @throws IOException
+     */
+    public void trainDirect(String message, boolean isSpam, boolean commit) throws IOException {
+        long start = System.nanoTime();
+        String md5 = fileHandler.generateMd5Filename(message);
+        synchronized (unmarkedMessages) {
+            if (fileHandler.isMessageMerged(md5) || !unmarkedMessages.add(md5)) {
+                log.debug("Already processed " + md5 + ", skipping");
+                return;
+            }
+        }
+        boolean appended = false;
+        try {
+            appended = appendDirect(message, isSpam);
+        } finally {
+            synchronized (unmarkedMessages) {
+                if (appended) {
+                    markQueue.add(md5);
+                } else {
+                    unmarkedMessages.remove(md5);
+                }
+            }
+        }
+        pipelineMetrics.record(PipelineMetrics.Stage.TRAIN, start);
+
+        if (commit) {
+            publishPending();
+        }
+    }
+
+    private boolean appendDirect(String message, boolean isSpam) throws IOException {
+        ModelStats delta = new ModelStats();
+        long totalTokens = 0;
+        TermFilter termFilter = snapshot.newTermFilter().reset(message);
+        while (termFilter.next()) {
+            delta.addTokenCount(termFilter, isSpam, 1);
+            totalTokens++;
+        }
+        delta.addMessages(isSpam, 1, totalTokens);
+
+        trainingLock.readLock().lock();
+        try {
+            synchronized (sequenceLock) {
+                trainingLog.append(sequence + 1, delta);
+                sequence++;
+            }
+            pending.add(delta);
+        } finally {
+            trainingLock.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Commit the training log and mark the directly trained messages whose
+     * records it now holds as merged.  Marking only after the commit means a
+     * crash can't leave a message marked whose training was lost.
+     * @throws IOException
+     */
+    protected void markCommittedMessages() throws IOException {
+        List<String> md5s;
+        synchronized (unmarkedMessages) {
+            if (markQueue.isEmpty()) {
+                return;
+            }
+            // every queued message has already been appended
+            md5s = new ArrayList<String>(markQueue);
+            markQueue.clear();
+        }
+        try {
+            trainingLog.commit();
+            fileHandler.markMessagesMerged(md5s);
+        } catch (IOException e) {
+            synchronized (unmarkedMessages) {
+                // retried by the next maintenance run
+                markQueue.addAll(0, md5s);
+            }
+            throw e;
+        }
+        synchronized (unmarkedMessages) {
+            unmarkedMessages.removeAll(md5s);
+        }
+    }
+
+    /**
+     * Whether {@link #train(String, boolean, boolean)} trains directly
+     * @return
+     */
+    public boolean isDirectTraining() {
+        return directTraining;
+    }
+
+    public void setDirectTraining(boolean directTraining) {
+        this.directTraining = directTraining;
+    }
+
+    /**
+     * Directly trained messages not in the current snapshot yet
+     * @return
+     */
+    public long getPendingMessages() {
+        return pending.getPendingDeltas();
+    }
+
     /**
      * Calculate message's probability of being spam using this formula
      *
@@ -335,60 +923,13 @@ public class NaiveBayesSpamFilter {
      *
      * Spam probability = (sp * msp) / ( (sp * msp) + (hp * mhp) )
      *
+     * The products are evaluated in log space by {@link LogSpaceScorer} so
+     * long messages don't underflow.
+     *
      * @param message
      * @return
      */
     public float spamProbability(String message) {
-        BigDecimal spamMessagesProbability = new BigDecimal(totalSpam).divide(
-                new BigDecimal(totalSpam + totalHam), 6, BigDecimal.ROUND_HALF_UP);
-        BigDecimal hamMessagesProbability = new BigDecimal(totalHam).divide(
-                new BigDecimal(totalSpam + totalHam), 6, BigDecimal.ROUND_HALF_UP);
-        BigDecimal totalSpamTokens = new BigDecimal(this.totalSpamTokens);
-        BigDecimal totalHamTokens = new BigDecimal(this.totalHamTokens);
-        BigDecimal messageIsSpamProbability = BigDecimal.ONE;
-        BigDecimal messageIsHamProbability = BigDecimal.ONE;
-
-        TermFilter termFilter = new TermFilter(new StringReader(message), stopWordSet);
-        String token;
-        while ( (token = termFilter.nextToken()) != null ) {
-            if (spamTokenCount.containsKey(token)) {
-                messageIsSpamProbability = messageIsSpamProbability.multiply(
-                        new BigDecimal(spamTokenCount.get(token)).add(BigDecimal.ONE)
-                                .divide(
-                                        totalSpamTokens.add(BigDecimal.ONE), 6, BigDecimal.ROUND_HALF_UP
-                                )
-                        );
-            } else {
-                messageIsSpamProbability = messageIsSpamProbability.multiply(
-                        BigDecimal.ONE
-                                .divide(
-                                        totalSpamTokens.add(BigDecimal.ONE), 6, BigDecimal.ROUND_HALF_UP
-                                )
-                );
-            }
-            if (hamTokenCount.containsKey(token)) {
-                messageIsHamProbability = messageIsHamProbability.multiply(
-                        new BigDecimal(hamTokenCount.get(token)).add(BigDecimal.ONE)
-                                .divide(
-                                        totalHamTokens.add(BigDecimal.ONE), 6, BigDecimal.ROUND_HALF_UP
-                                )
-                );
-            } else {
-                messageIsHamProbability = messageIsHamProbability.multiply(
-                        BigDecimal.ONE
-                                .divide(
-                                        totalHamTokens.add(BigDecimal.ONE), 6, BigDecimal.ROUND_HALF_UP
-                                )
-                );
-            }
-        }
-
-        BigDecimal overallSpamProbability = spamMessagesProbability.multiply(messageIsSpamProbability).divide(
-                spamMessagesProbability.multiply(messageIsSpamProbability).add(
-                        hamMessagesProbability.multiply(messageIsHamProbability)
-                ), 6, BigDecimal.ROUND_HALF_UP
-        );
-
-        return overallSpamProbability.floatValue();
+        return snapshot.spamProbability(message);
     }
 }
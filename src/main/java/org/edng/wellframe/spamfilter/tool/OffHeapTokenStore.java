@@ -0,0 +1,344 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MutableTokenStore} kept entirely in direct buffers, so the garbage
+ * collector only ever sees a handful of buffer objects however many tokens
+ * the model holds.
+ *
+ * The buffers use the same layout as the sections of a version 1
+ * {@link ModelFile}: an open addressing slot table of token IDs, 24-byte
+ * entries of spam count, ham count, hash and string offset, and the UTF-8
+ * bytes of the tokens in ID order.  A memory-mapped model is therefore
+ * copied in with three bulk copies and saved the same way.  Lookups hash
+ * the token and compare it against the stored bytes in place, without
+ * creating a String.
+ *
+ * A copy shares the slot table and the token strings with the store it
+ * was copied from and only copies the counts.  Whichever of the two first
+ * adds a new token copies the shared sections before changing them, so a
+ * copy that only updates counts costs the 24-byte entries alone.
+ *
+ * Direct memory is released only once the garbage collector finds a
+ * buffer unreachable, so each copy, such as the one made for every
+ * published snapshot, holds its memory until then.
+ *
+ * Buffers grow by doubling; a single buffer is limited to 2 GB, as a model
+ * file is.  This class is not thread safe.
+ */
+public class OffHeapTokenStore implements MutableTokenStore {
+    private static final int ENTRY_SIZE = ModelFile.ENTRY_SIZE;
+    private static final int EMPTY = -1;
+    // the model file is written with at least twice as many slots as tokens
+    private static final int MAX_LOAD_DIVISOR = 2;
+
+    private ByteBuffer slots;
+    private int mask;
+    private ByteBuffer entries;
+    private ByteBuffer strings;
+    private int size;
+    private int stringsLength;
+    // slots and strings are shared with a copy and must be copied before a
+    // new token is added
+    private boolean sharedSections;
+
+    public OffHeapTokenStore() {
+        this(16, 256);
+    }
+
+    /**
+     * @param expectedSize Number of tokens to make room for
+     * @param expectedStringBytes Bytes of token strings to make room for
+     */
+    public OffHeapTokenStore(int expectedSize, int expectedStringBytes) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * MAX_LOAD_DIVISOR) - 1) << 1;
+        slots = emptySlots(capacity);
+        mask = capacity - 1;
+        entries = ByteBuffer.allocateDirect(ENTRY_SIZE * Math.max(16, expectedSize));
+        strings = ByteBuffer.allocateDirect(Math.max(256, expectedStringBytes));
+    }
+
+    private OffHeapTokenStore(ByteBuffer slots, ByteBuffer entries, ByteBuffer strings, int size, int stringsLength) {
+        this.slots = slots;
+        this.mask = slots.capacity() / 4 - 1;
+        this.entries = entries;
+        this.strings = strings;
+        this.size = size;
+        this.stringsLength = stringsLength;
+        if (size > (mask + 1) / MAX_LOAD_DIVISOR) {
+            rehash(Integer.highestOneBit(size * MAX_LOAD_DIVISOR - 1) << 1);
+        }
+    }
+
+    /**
+     * Copy counts into a new off-heap store; the sections of a mapped model
+     * are copied as they are
+     * @param tokens
+     * @return
+     */
+    public static OffHeapTokenStore copyOf(TokenStore tokens) {
+        if (tokens instanceof MappedTokenStore) {
+            MappedTokenStore mapped = (MappedTokenStore) tokens;
+            ByteBuffer strings = mapped.strings();
+            int stringsLength = strings.remaining();
+            return new OffHeapTokenStore(copy(mapped.slots(), mapped.slots().remaining()),
+                    copy(mapped.entries(), grownCapacity(ENTRY_SIZE * tokens.size())),
+                    copy(strings, grownCapacity(stringsLength)), tokens.size(), stringsLength);
+        }
+        if (tokens instanceof OffHeapTokenStore) {
+            return ((OffHeapTokenStore) tokens).copy();
+        }
+        OffHeapTokenStore store = new OffHeapTokenStore(tokens.size(), 8 * tokens.size());
+        store.addAll(tokens);
+        return store;
+    }
+
+    private static ByteBuffer emptySlots(int capacity) {
+        ByteBuffer slots = ByteBuffer.allocateDirect(4 * capacity);
+        for (int slot = 0; slot < capacity; slot++) {
+            slots.putInt(4 * slot, EMPTY);
+        }
+        return slots;
+    }
+
+    /**
+     * Copy the remaining bytes of a buffer into a new direct buffer
+     */
+    private static ByteBuffer copy(ByteBuffer source, int capacity) {
+        ByteBuffer copy = ByteBuffer.allocateDirect(capacity);
+        copy.put(source.duplicate());
+        copy.clear();
+        return copy;
+    }
+
+    private static int grownCapacity(int used) {
+        // a quarter of headroom so merging into a copy doesn't grow it straight away
+        long capacity = Math.max(256L, used + (used >> 2));
+        return (int) Math.min(Integer.MAX_VALUE - 8, capacity);
+    }
+
+    /**
+     * Copy of the first used bytes of a buffer into a new one of at least
+     * the given capacity
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int used, long minCapacity) {
+        if (minCapacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Off-heap token store is full");
+        }
+        long capacity = Math.min(Integer.MAX_VALUE - 8, Math.max(minCapacity, 2L * buffer.capacity()));
+        ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(used);
+        return copy(source, (int) capacity);
+    }
+
+    private int stringStart(int id) {
+        return entries.getInt(ENTRY_SIZE * id + 20);
+    }
+
+    private int stringEnd(int id) {
+        return id + 1 < size ? stringStart(id + 1) : stringsLength;
+    }
+
+    @Override
+    public int indexOf(CharSequence token) {
+        int h = TokenVocabulary.hash(token);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int id = slots.getInt(4 * slot);
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (entries.getInt(ENTRY_SIZE * id + 16) == h
+                    && MappedTokenStore.utf8Equals(strings, stringStart(id), stringEnd(id), token)) {
+                return id;
+            }
+        }
+    }
+
+    @Override
+    public int add(CharSequence token, long spamDelta, long hamDelta) {
+        int h = TokenVocabulary.hash(token);
+        int slot = h & mask;
+        int id;
+        while ( (id = slots.getInt(4 * slot)) != EMPTY ) {
+            int entry = ENTRY_SIZE * id;
+            if (entries.getInt(entry + 16) == h
+                    && MappedTokenStore.utf8Equals(strings, stringStart(id), stringEnd(id), token)) {
+                entries.putLong(entry, entries.getLong(entry) + spamDelta);
+                entries.putLong(entry + 8, entries.getLong(entry + 8) + hamDelta);
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (sharedSections) {
+            unshare();
+        }
+        id = size;
+        long entry = (long) ENTRY_SIZE * id;
+        if (entry + ENTRY_SIZE > entries.capacity()) {
+            entries = grow(entries, (int) entry, entry + ENTRY_SIZE);
+        }
+        int length = ModelFile.utf8Length(token);
+        if ((long) stringsLength + length > strings.capacity()) {
+            strings = grow(strings, stringsLength, (long) stringsLength + length);
+        }
+        encode(token, stringsLength);
+        entries.putLong((int) entry, spamDelta);
+        entries.putLong((int) entry + 8, hamDelta);
+        entries.putInt((int) entry + 16, h);
+        entries.putInt((int) entry + 20, stringsLength);
+        stringsLength += length;
+        size++;
+        slots.putInt(4 * slot, id);
+        if (size > (mask + 1) / MAX_LOAD_DIVISOR) {
+            rehash((mask + 1) << 1);
+        }
+        return id;
+    }
+
+    /**
+     * Write a token as UTF-8, with unpaired surrogates as '?' like the
+     * standard encoder
+     */
+    private void encode(CharSequence token, int position) {
+        for (int i = 0; i < token.length(); i++) {
+            int c = token.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < token.length()
+                    && Character.isLowSurrogate(token.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, token.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                c = '?';
+            }
+            if (c < 0x80) {
+                strings.put(position++, (byte) c);
+            } else if (c < 0x800) {
+                strings.put(position++, (byte) (0xC0 | (c >> 6)));
+                strings.put(position++, (byte) (0x80 | (c & 0x3F)));
+            } else if (c < 0x10000) {
+                strings.put(position++, (byte) (0xE0 | (c >> 12)));
+                strings.put(position++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                strings.put(position++, (byte) (0x80 | (c & 0x3F)));
+            } else {
+                strings.put(position++, (byte) (0xF0 | (c >> 18)));
+                strings.put(position++, (byte) (0x80 | ((c >> 12) & 0x3F)));
+                strings.put(position++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                strings.put(position++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Take private copies of the slot table and token strings
+     */
+    private void unshare() {
+        ByteBuffer slotsSource = slots.duplicate();
+        slotsSource.clear();
+        slots = copy(slotsSource, slots.capacity());
+        ByteBuffer stringsSource = strings.duplicate();
+        stringsSource.position(0).limit(stringsLength);
+        strings = copy(stringsSource, grownCapacity(stringsLength));
+        sharedSections = false;
+    }
+
+    private void rehash(int capacity) {
+        slots = emptySlots(capacity);
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = entries.getInt(ENTRY_SIZE * id + 16) & mask;
+            while (slots.getInt(4 * slot) != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots.putInt(4 * slot, id);
+        }
+    }
+
+    @Override
+    public void addAll(TokenStore other) {
+        for (int id = 0; id < other.size(); id++) {
+            add(other.token(id), other.spamCount(id), other.hamCount(id));
+        }
+    }
+
+    @Override
+    public OffHeapTokenStore copy() {
+        ByteBuffer entriesSource = entries.duplicate();
+        entriesSource.position(0).limit(ENTRY_SIZE * size);
+        OffHeapTokenStore copy = new OffHeapTokenStore(slots, copy(entriesSource, grownCapacity(ENTRY_SIZE * size)),
+                strings, size, stringsLength);
+        copy.sharedSections = true;
+        sharedSections = true;
+        return copy;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public String token(int id) {
+        int start = stringStart(id);
+        byte[] bytes = new byte[stringEnd(id) - start];
+        ByteBuffer source = strings.duplicate();
+        source.position(start);
+        source.get(bytes);
+        return new String(bytes, ModelFile.UTF8);
+    }
+
+    @Override
+    public long spamCount(int id) {
+        return entries.getLong(ENTRY_SIZE * id);
+    }
+
+    @Override
+    public long hamCount(int id) {
+        return entries.getLong(ENTRY_SIZE * id + 8);
+    }
+
+    @Override
+    public long heapBytes() {
+        // everything lives in direct buffers
+        return 0;
+    }
+
+    /**
+     * Bytes of direct memory held by the store, including sections shared
+     * with copies
+     * @return
+     */
+    public long offHeapBytes() {
+        return (long) slots.capacity() + entries.capacity() + strings.capacity();
+    }
+
+    int slotCount() {
+        return mask + 1;
+    }
+
+    int stringsLength() {
+        return stringsLength;
+    }
+
+    /**
+     * Write the slot, entry and string sections in model file layout
+     * @param out
+     * @throws IOException
+     */
+    void writeSections(DataOutputStream out) throws IOException {
+        write(slots, 4 * slotCount(), out);
+        write(entries, ENTRY_SIZE * size, out);
+        write(strings, stringsLength, out);
+    }
+
+    private static void write(ByteBuffer buffer, int length, DataOutputStream out) throws IOException {
+        ByteBuffer source = buffer.duplicate();
+        source.position(0).limit(length);
+        byte[] chunk = new byte[65536];
+        while (source.hasRemaining()) {
+            int n = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, n);
+            out.write(chunk, 0, n);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Reads the backlog of per-message files written by
+ * {@link NaiveBayesSpamFilter#train(String, boolean, boolean)} in parallel.
+ *
+ * Pending spam and ham messages are split into ranges on a fork-join pool.
+ * A leaf range parses its messages' properties files into a partial
+ * {@link ModelStats}, and partials are reduced pairwise up the same tree, the
+ * smaller vocabulary into the larger, so the whole backlog comes out as one
+ * delta that can be applied to the model in a single step.
+ *
+ * Messages already marked merged, left behind by a merge that stopped
+ * before archiving, are not counted again but are reported so they can be
+ * archived.  Messages whose files can't be read are left where they are.
+ */
+public class PendingMerger {
+    protected Logger log = Logger.getLogger(PendingMerger.class);
+
+    private final FileHandler fileHandler;
+    private final ForkJoinPool pool;
+    private final int leafMessages;
+
+    /**
+     * @param fileHandler
+     * @param parallelism Number of threads, 0 for one per processor
+     * @param leafMessages Messages parsed by one task without splitting further
+     */
+    public PendingMerger(FileHandler fileHandler, int parallelism, int leafMessages) {
+        this.fileHandler = fileHandler;
+        this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        this.leafMessages = Math.max(1, leafMessages);
+    }
+
+    /**
+     * Parse every pending message into one delta
+     * @return
+     */
+    public Result collect() {
+        String[] spam = fileHandler.listMessages(true);
+        String[] ham = fileHandler.listMessages(false);
+        log.info("Collecting " + spam.length + " spam and " + ham.length + " ham pending messages");
+        return pool.invoke(new ParseTask(spam, ham, 0, spam.length + ham.length));
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private class ParseTask extends RecursiveTask<Result> {
+        private final String[] spam;
+        private final String[] ham;
+        private final int from;
+        private final int to;
+
+        /**
+         * Messages from..to of spam followed by ham
+         */
+        ParseTask(String[] spam, String[] ham, int from, int to) {
+            this.spam = spam;
+            this.ham = ham;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Result compute() {
+            if (to - from <= leafMessages) {
+                Result result = new Result();
+                Properties properties = new Properties();
+                for (int i = from; i < to; i++) {
+                    boolean isSpam = i < spam.length;
+                    parse(isSpam ? spam[i] : ham[i - spam.length], isSpam, properties, result);
+                }
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            ParseTask right = new ParseTask(spam, ham, middle, to);
+            right.fork();
+            Result left = new ParseTask(spam, ham, from, middle).compute();
+            return left.reduce(right.join());
+        }
+    }
+
+    private void parse(String message, boolean isSpam, Properties properties, Result result) {
+        try {
+            if (fileHandler.isMessageMerged(message)) {
+                log.warn("Pending message " + message + " is already merged, archiving it only");
+                result.stale(isSpam).add(message);
+                return;
+            }
+            ModelStats delta = new ModelStats();
+            properties.clear();
+            fileHandler.loadMessageProperties(properties, message + "_stats.properties", isSpam);
+            delta.addMessages(isSpam, 1, Long.parseLong(properties.getProperty("totalTokens")));
+            properties.clear();
+            fileHandler.loadMessageProperties(properties, message + "_tokens.properties", isSpam);
+            for (String token : properties.stringPropertyNames()) {
+                delta.addTokenCount(token, isSpam, Long.parseLong(properties.getProperty(token)));
+            }
+            result.delta.addAll(delta);
+            result.merged(isSpam).add(message);
+        } catch (Exception | AssertionError e) {
+            log.warn("Failed to read pending message " + message + ", leaving it: " + e.getMessage());
+            result.failed++;
+        }
+    }
+
+    /**
+     * Counts of the pending messages and which messages went into them
+     */
+    public static class Result {
+        private ModelStats delta = new ModelStats();
+        private final List<String> mergedSpam = new ArrayList<String>();
+        private final List<String> mergedHam = new ArrayList<String>();
+        private final List<String> staleSpam = new ArrayList<String>();
+        private final List<String> staleHam = new ArrayList<String>();
+        private int failed;
+
+        Result reduce(Result other) {
+            // add the smaller vocabulary into the larger
+            if (other.delta.getTokens().size() > delta.getTokens().size()) {
+                other.delta.addAll(delta);
+                delta = other.delta;
+            } else {
+                delta.addAll(other.delta);
+            }
+            mergedSpam.addAll(other.mergedSpam);
+            mergedHam.addAll(other.mergedHam);
+            staleSpam.addAll(other.staleSpam);
+            staleHam.addAll(other.staleHam);
+            failed += other.failed;
+            return this;
+        }
+
+        /**
+         * Totals and token counts of all the merged messages
+         * @return
+         */
+        public ModelStats getDelta() {
+            return delta;
+        }
+
+        /**
+         * Messages counted in the delta
+         * @param isSpam
+         * @return
+         */
+        public List<String> merged(boolean isSpam) {
+            return isSpam ? mergedSpam : mergedHam;
+        }
+
+        /**
+         * Messages that were already merged and only need archiving
+         * @param isSpam
+         * @return
+         */
+        public List<String> stale(boolean isSpam) {
+            return isSpam ? staleSpam : staleHam;
+        }
+
+        public int getFailed() {
+            return failed;
+        }
+
+        public int getMergedCount() {
+            return mergedSpam.size() + mergedHam.size();
+        }
+    }
+}
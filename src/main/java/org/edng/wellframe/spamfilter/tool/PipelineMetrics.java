@@ -0,0 +1,186 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms for each stage of checking and training messages.
+ *
+ * Recording is lock free: one atomic increment of a bucket plus a few
+ * atomic counters.  Buckets are logarithmic with four sub-buckets per power
+ * of two, so reported percentiles are within 25% of the true value over the
+ * whole range from nanoseconds to hours.
+ *
+ * Messages scored by their most discriminative tokens are also counted,
+ * along with how many tokens were read and how often reading stopped early.
+ */
+@Component
+public class PipelineMetrics {
+
+    public enum Stage {
+        /** whole check of one message, including cache lookups */
+        CHECK,
+        CACHE,
+        PARSE,
+        EXTRACT,
+        /** tokenizing and scoring, which are interleaved */
+        SCORE,
+        TRAIN,
+        MERGE,
+        SAVE,
+        LOAD,
+        CHECKPOINT
+    }
+
+    private final Histogram[] histograms;
+    private final long startMillis = System.currentTimeMillis();
+    private final AtomicLong scoredMessages = new AtomicLong();
+    private final AtomicLong tokensExamined = new AtomicLong();
+    private final AtomicLong earlyExits = new AtomicLong();
+
+    public PipelineMetrics() {
+        histograms = new Histogram[Stage.values().length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * Record the time since a start taken with {@link System#nanoTime()}
+     * @param stage
+     * @param startNanos
+     */
+    public void record(Stage stage, long startNanos) {
+        histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Count a message scored by {@link LogSpaceScorer#discriminativeScore}
+     * @param score
+     */
+    public void recordScore(Score score) {
+        scoredMessages.incrementAndGet();
+        tokensExamined.addAndGet(score.getTokensExamined());
+        if (score.isEarlyExit()) {
+            earlyExits.incrementAndGet();
+        }
+    }
+
+    public Histogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Summary of every stage, keyed by lower case stage name
+     * @return
+     */
+    public Map<String, Object> summary() {
+        double seconds = Math.max(1, System.currentTimeMillis() - startMillis) / 1000d;
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        for (Stage stage : Stage.values()) {
+            summary.put(stage.name().toLowerCase(), histograms[stage.ordinal()].summary(seconds));
+        }
+        return summary;
+    }
+
+    /**
+     * Counters of messages scored by their most discriminative tokens
+     * @return
+     */
+    public Map<String, Object> discriminativeSummary() {
+        long messages = scoredMessages.get();
+        Map<String, Object> summary = new LinkedHashMap<String, Object>();
+        summary.put("messages", messages);
+        summary.put("tokensExamined", tokensExamined.get());
+        summary.put("meanTokensExamined", messages == 0 ? 0d : (double) tokensExamined.get() / messages);
+        summary.put("earlyExits", earlyExits.get());
+        return summary;
+    }
+
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 2;
+        private static final int BUCKETS = 64 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        private static int bucket(long nanos) {
+            if (nanos < (1 << SUB_BUCKET_BITS)) {
+                return (int) Math.max(0, nanos);
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+            int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+            return (exponent << SUB_BUCKET_BITS) | subBucket;
+        }
+
+        /**
+         * Largest value that falls into a bucket
+         */
+        private static long upperBound(int bucket) {
+            int exponent = bucket >>> SUB_BUCKET_BITS;
+            if (exponent < SUB_BUCKET_BITS) {
+                return bucket;
+            }
+            long subBucket = bucket & ((1 << SUB_BUCKET_BITS) - 1);
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return (1L << exponent) + (subBucket + 1) * width - 1;
+        }
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max;
+            while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        /**
+         * Approximate value at a percentile
+         * @param percentile Between 0 and 100
+         * @return Nanoseconds
+         */
+        public long percentile(double percentile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(percentile / 100d * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(upperBound(i), maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        Map<String, Object> summary(double seconds) {
+            long n = count.get();
+            Map<String, Object> summary = new LinkedHashMap<String, Object>();
+            summary.put("count", n);
+            summary.put("perSecond", n / seconds);
+            summary.put("meanMicros", n == 0 ? 0d : totalNanos.get() / 1000d / n);
+            summary.put("p50Micros", percentile(50) / 1000d);
+            summary.put("p90Micros", percentile(90) / 1000d);
+            summary.put("p99Micros", percentile(99) / 1000d);
+            summary.put("p999Micros", percentile(99.9) / 1000d);
+            summary.put("maxMicros", maxNanos.get() / 1000d);
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.util.Arrays;
+
+/**
+ * Token counts with exact counts for the most frequent tokens and a
+ * {@link CountMinSketch} for the long tail.
+ *
+ * Tokens are added to the exact vocabulary.  Once it holds a quarter more
+ * than topK tokens it is pruned back to the topK with the highest spam plus
+ * ham count, and the counts of the rest are raised into the sketch.  Pruning
+ * happens as counts are added, so the model never holds much more than topK
+ * token strings however many random tokens it is trained with.
+ *
+ * A token that is not in the exact vocabulary is counted by its sketch
+ * estimate.  When such a token is added again it re-enters the vocabulary
+ * starting from that estimate, so its history isn't lost.
+ *
+ * IDs are those of the exact vocabulary and change when it is pruned.  The
+ * exact part may be a read-only store, such as a memory-mapped model file;
+ * it is copied into a {@link TokenVocabulary} the first time it is modified.
+ *
+ * This class is not thread safe.
+ */
+public class PrunedTokenStore implements MutableTokenStore {
+    private final int topK;
+    private TokenStore exact;
+    private final CountMinSketch tail;
+
+    /**
+     * @param topK Number of tokens kept with exact counts
+     * @param depth Rows of the tail sketch
+     * @param widthBits Each row of the tail sketch has 2^widthBits cells
+     */
+    public PrunedTokenStore(int topK, int depth, int widthBits) {
+        this(topK, new TokenVocabulary(), new CountMinSketch(depth, widthBits));
+    }
+
+    PrunedTokenStore(int topK, TokenStore exact, CountMinSketch tail) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("Top K must be positive: " + topK);
+        }
+        this.topK = topK;
+        this.exact = exact;
+        this.tail = tail;
+    }
+
+    /**
+     * Copy that keeps a different number of exact tokens, pruned straight
+     * away if it holds too many
+     * @param topK
+     * @return
+     */
+    public PrunedTokenStore withTopK(int topK) {
+        PrunedTokenStore copy = new PrunedTokenStore(topK, exact instanceof TokenVocabulary
+                ? ((TokenVocabulary) exact).copy() : exact, tail.copy());
+        if (copy.exact.size() > topK) {
+            copy.prune();
+        }
+        return copy;
+    }
+
+    @Override
+    public int indexOf(CharSequence token) {
+        return exact.indexOf(token);
+    }
+
+    /**
+     * Add to the counts of a token.  Tokens that aren't in the exact
+     * vocabulary enter it with their tail estimate.
+     * @param token
+     * @param spamDelta Amount added to spam count
+     * @param hamDelta Amount added to ham count
+     * @return ID of the token, or -1 if the add made it pruned
+     */
+    @Override
+    public int add(CharSequence token, long spamDelta, long hamDelta) {
+        TokenVocabulary vocabulary = mutableExact();
+        if (vocabulary.indexOf(token) < 0) {
+            int hash = TokenVocabulary.hash(token);
+            spamDelta += tail.spamEstimate(hash);
+            hamDelta += tail.hamEstimate(hash);
+        }
+        int id = vocabulary.add(token, spamDelta, hamDelta);
+        if (vocabulary.size() > topK + topK / 4) {
+            prune();
+            return indexOf(token);
+        }
+        return id;
+    }
+
+    /**
+     * Add every count of another store.  The tail of another pruned store
+     * is added cell by cell, which needs sketches of the same dimensions.
+     * @param other
+     */
+    @Override
+    public void addAll(TokenStore other) {
+        if (other instanceof PrunedTokenStore) {
+            tail.addAll(((PrunedTokenStore) other).tail);
+        }
+        for (int id = 0; id < other.size(); id++) {
+            add(other.token(id), other.spamCount(id), other.hamCount(id));
+        }
+    }
+
+    /**
+     * Keep the topK most frequent tokens and raise the rest into the tail.
+     * Ties at the cut-off are kept in ID order.
+     */
+    private void prune() {
+        TokenVocabulary vocabulary = mutableExact();
+        int size = vocabulary.size();
+        long[] totals = new long[size];
+        for (int id = 0; id < size; id++) {
+            totals[id] = vocabulary.spamCount(id) + vocabulary.hamCount(id);
+        }
+        long[] sorted = totals.clone();
+        Arrays.sort(sorted);
+        long threshold = sorted[size - topK];
+        int above = size - topK;
+        while (above < size && sorted[above] == threshold) {
+            above++;
+        }
+        // number of tokens at the threshold that still fit
+        int ties = topK - (size - above);
+
+        TokenVocabulary kept = new TokenVocabulary(topK + topK / 4 + 1);
+        for (int id = 0; id < size; id++) {
+            if (totals[id] > threshold || (totals[id] == threshold && ties-- > 0)) {
+                kept.add(vocabulary.token(id), vocabulary.spamCount(id), vocabulary.hamCount(id));
+            } else {
+                tail.raiseTo(TokenVocabulary.hash(vocabulary.token(id)), vocabulary.spamCount(id), vocabulary.hamCount(id));
+            }
+        }
+        exact = kept;
+    }
+
+    private TokenVocabulary mutableExact() {
+        if (!(exact instanceof TokenVocabulary)) {
+            TokenVocabulary vocabulary = new TokenVocabulary(exact.size());
+            vocabulary.addAll(exact);
+            exact = vocabulary;
+        }
+        return (TokenVocabulary) exact;
+    }
+
+    @Override
+    public PrunedTokenStore copy() {
+        // read-only exact stores are shared until the copy is first modified
+        return new PrunedTokenStore(topK, exact instanceof TokenVocabulary
+                ? ((TokenVocabulary) exact).copy() : exact, tail.copy());
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    /**
+     * Tokens with exact counts
+     * @return
+     */
+    public TokenStore getExact() {
+        return exact;
+    }
+
+    public CountMinSketch getTail() {
+        return tail;
+    }
+
+    /**
+     * Number of tokens with exact counts
+     * @return
+     */
+    @Override
+    public int size() {
+        return exact.size();
+    }
+
+    @Override
+    public String token(int id) {
+        return exact.token(id);
+    }
+
+    @Override
+    public long spamCount(int id) {
+        return exact.spamCount(id);
+    }
+
+    @Override
+    public long hamCount(int id) {
+        return exact.hamCount(id);
+    }
+
+    @Override
+    public long heapBytes() {
+        return exact.heapBytes() + tail.heapBytes();
+    }
+}
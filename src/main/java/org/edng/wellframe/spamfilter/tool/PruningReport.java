@@ -0,0 +1,130 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Command line tool to measure the accuracy and memory trade-off of pruning
+ * a vocabulary model to different numbers of exact tokens, to help choose
+ * model.pruneTopK.
+ *
+ * For each top K it reports the heap and file size of the pruned model, the
+ * error of the sketch estimates of the tokens that were pruned, and how far
+ * the log-likelihood ratio of a token moves on average.  The sketch has the
+ * dimensions configured in spamfilter.properties.
+ */
+public class PruningReport {
+
+    public static void main(String[] args) throws Exception {
+        if (args == null || args.length < 1) {
+            printHelp();
+            return;
+        }
+
+        File file = new File(args[0], NaiveBayesSpamFilter.MODEL_FILE);
+        if (!file.exists()) {
+            System.out.println("Directory " + args[0] + " has no " + NaiveBayesSpamFilter.MODEL_FILE);
+            return;
+        }
+        ModelStats stats = ModelFile.open(file).getStats();
+        if (stats.getTokens() instanceof HashedTokenStore || stats.getTokens() instanceof PrunedTokenStore) {
+            System.out.println("Model is already hashed or pruned, pruning can only be measured against every token");
+            return;
+        }
+
+        Properties properties = new Properties();
+        InputStream inputStream = PruningReport.class.getResourceAsStream("/spamfilter.properties");
+        if (inputStream != null) {
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        int depth = Integer.parseInt(properties.getProperty("model.sketchDepth", "4"));
+        int widthBits = Integer.parseInt(properties.getProperty("model.sketchWidthBits", "18"));
+
+        TokenVocabulary tokens = new TokenVocabulary(stats.getTokens().size());
+        tokens.addAll(stats.getTokens());
+        List<Integer> topKs = new ArrayList<Integer>();
+        for (int i = 1; i < args.length; i++) {
+            topKs.add(Integer.parseInt(args[i]));
+        }
+        if (topKs.isEmpty()) {
+            for (int topK = 10000; topK < tokens.size(); topK *= 10) {
+                topKs.add(topK);
+            }
+        }
+
+        long occurrences = 0;
+        for (int id = 0; id < tokens.size(); id++) {
+            occurrences += tokens.spamCount(id) + tokens.hamCount(id);
+        }
+        LogSpaceScorer exact = new LogSpaceScorer(stats.getTotalSpam(), stats.getTotalHam(),
+                stats.getTotalSpamTokens(), stats.getTotalHamTokens(), tokens);
+        System.out.println(String.format("%s: %d tokens, %d occurrences, %.1f MB heap, %.1f MB file, sketch %d x 2^%d",
+                file, tokens.size(), occurrences, (tokens.heapBytes() + exact.heapBytes()) / 1048576d,
+                file.length() / 1048576d, depth, widthBits));
+        System.out.println(String.format("%10s %10s %10s %10s %12s %12s %14s",
+                "topK", "heapMB", "fileMB", "tailTokens", "tailOccur%", "tailError%", "meanLogDrift"));
+
+        for (int topK : topKs) {
+            PrunedTokenStore pruned = new PrunedTokenStore(topK, depth, widthBits);
+            pruned.addAll(tokens);
+            ModelStats prunedStats = new ModelStats(stats.getTotalSpam(), stats.getTotalHam(),
+                    stats.getTotalSpamTokens(), stats.getTotalHamTokens(), pruned);
+            LogSpaceScorer scorer = new LogSpaceScorer(stats.getTotalSpam(), stats.getTotalHam(),
+                    stats.getTotalSpamTokens(), stats.getTotalHamTokens(), pruned);
+
+            long tailTokens = 0;
+            long tailOccurrences = 0;
+            long tailError = 0;
+            double drift = 0;
+            for (int id = 0; id < tokens.size(); id++) {
+                String token = tokens.token(id);
+                long count = tokens.spamCount(id) + tokens.hamCount(id);
+                if (pruned.indexOf(token) < 0) {
+                    int hash = TokenVocabulary.hash(token);
+                    tailTokens++;
+                    tailOccurrences += count;
+                    tailError += Math.abs(pruned.getTail().spamEstimate(hash) - tokens.spamCount(id))
+                            + Math.abs(pruned.getTail().hamEstimate(hash) - tokens.hamCount(id));
+                }
+                drift += count * Math.abs(scorer.logRatio(token) - exact.logRatio(token));
+            }
+            CountingOutputStream out = new CountingOutputStream();
+            ModelFile.write(prunedStats, 0, out);
+            System.out.println(String.format("%10d %10.1f %10.1f %10d %12.2f %12.2f %14.4f",
+                    topK, (pruned.heapBytes() + scorer.heapBytes()) / 1048576d, out.count / 1048576d, tailTokens,
+                    percent(tailOccurrences, occurrences), percent(tailError, tailOccurrences),
+                    occurrences == 0 ? 0d : drift / occurrences));
+        }
+    }
+
+    private static double percent(long part, long whole) {
+        return whole == 0 ? 0d : 100d * part / whole;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) throws IOException {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            count += len;
+        }
+    }
+
+    public static void printHelp() {
+        System.out.println("PruningReport <stats directory> [topK ...]");
+    }
+}
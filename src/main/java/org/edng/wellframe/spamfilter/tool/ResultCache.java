@@ -0,0 +1,167 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-bounded LRU cache of spam probabilities keyed by message digest.
+ *
+ * Every entry remembers the generation of the {@link ModelSnapshot} it was
+ * scored against.  An entry from an older snapshot counts as a miss and is
+ * replaced, so publishing a new model invalidates the cache without having
+ * to clear it.
+ *
+ * The cache is split into segments by digest, each an access-ordered
+ * LinkedHashMap under its own lock, so concurrent requests rarely contend.
+ * The entries are divided between the segments rounding up, so any size
+ * above 0 enables the cache.
+ */
+@Component
+public class ResultCache {
+    protected Logger log = Logger.getLogger(ResultCache.class);
+
+    private static final int SEGMENTS = 16;
+
+    @Resource
+    private Environment environment;
+
+    private Segment[] segments;
+    private int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResultCache() {
+    }
+
+    /**
+     * @param maxEntries Number of entries to keep, 0 to disable the cache
+     */
+    public ResultCache(int maxEntries) {
+        allocate(maxEntries);
+    }
+
+    @PostConstruct
+    public void init() {
+        allocate(environment.getProperty("cache.maxEntries", Integer.class, 100000));
+    }
+
+    private void allocate(int maxEntries) {
+        this.maxEntries = Math.max(0, maxEntries);
+        int segmentEntries = (this.maxEntries + SEGMENTS - 1) / SEGMENTS;
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentEntries);
+        }
+    }
+
+    private Segment segment(String digest) {
+        return segments[(digest.hashCode() & 0x7fffffff) % SEGMENTS];
+    }
+
+    /**
+     * Cached probability of a message
+     * @param digest Message digest
+     * @param snapshot Snapshot the caller scores against
+     * @return Probability, or null if there is no entry for this snapshot
+     */
+    public Float get(String digest, ModelSnapshot snapshot) {
+        Segment segment = segment(digest);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(digest);
+        }
+        if (entry == null || entry.generation != snapshot.getGeneration()) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.probability;
+    }
+
+    /**
+     * Cache the probability of a message
+     * @param digest Message digest
+     * @param snapshot Snapshot the probability was computed with
+     * @param probability
+     */
+    public void put(String digest, ModelSnapshot snapshot, float probability) {
+        Segment segment = segment(digest);
+        synchronized (segment) {
+            Entry entry = segment.get(digest);
+            // never replace an entry of a newer snapshot
+            if (entry == null || entry.generation < snapshot.getGeneration()) {
+                segment.put(digest, new Entry(snapshot.getGeneration(), probability));
+            }
+        }
+    }
+
+    /**
+     * Whether the cache holds any entries at all
+     * @return
+     */
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of cached entries, including stale ones
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final long generation;
+        final float probability;
+
+        Entry(long generation, float probability) {
+            this.generation = generation;
+            this.probability = probability;
+        }
+    }
+
+    private class Segment extends LinkedHashMap<String, Entry> {
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+}
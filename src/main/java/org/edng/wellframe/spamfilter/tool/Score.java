@@ -0,0 +1,37 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * Spam probability of a message along with how much of it was looked at.
+ */
+public class Score {
+    private final float probability;
+    private final int tokensExamined;
+    private final boolean earlyExit;
+
+    public Score(float probability, int tokensExamined, boolean earlyExit) {
+        this.probability = probability;
+        this.tokensExamined = tokensExamined;
+        this.earlyExit = earlyExit;
+    }
+
+    public float getProbability() {
+        return probability;
+    }
+
+    /**
+     * Number of tokens read from the message before scoring stopped
+     * @return
+     */
+    public int getTokensExamined() {
+        return tokensExamined;
+    }
+
+    /**
+     * Whether scoring stopped before the end of the message because the
+     * evidence was conclusive or the token limit was reached
+     * @return
+     */
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+}
@@ -0,0 +1,109 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Counts trained by many threads at once, waiting to be folded into the
+ * model.
+ *
+ * Counts are spread over a number of independent {@link ModelStats} stripes,
+ * each behind its own lock.  A thread adds a whole message to the first
+ * stripe it can lock, starting from one picked by its thread ID, so threads
+ * rarely contend and a message costs one lock rather than one per token.
+ * Stripes are partial sums, not partitions: the same token may be counted
+ * in several of them until they are drained.
+ */
+public class StripedModelStats {
+
+    private final ReentrantLock[] locks;
+    private final ModelStats[] stripes;
+    private final AtomicLong pendingDeltas = new AtomicLong();
+
+    /**
+     * @param stripes Number of stripes, usually a small multiple of the processors
+     */
+    public StripedModelStats(int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must be positive: " + stripes);
+        }
+        this.locks = new ReentrantLock[stripes];
+        this.stripes = new ModelStats[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+            this.stripes[i] = new ModelStats();
+        }
+    }
+
+    /**
+     * Add the counts of a delta to one of the stripes
+     * @param delta
+     */
+    public void add(ModelStats delta) {
+        int home = (int) (Thread.currentThread().getId() % stripes.length);
+        for (int i = 0; i < stripes.length; i++) {
+            int stripe = (home + i) % stripes.length;
+            if (locks[stripe].tryLock()) {
+                addLocked(stripe, delta);
+                return;
+            }
+        }
+        // every stripe is busy, wait for our own
+        locks[home].lock();
+        addLocked(home, delta);
+    }
+
+    private void addLocked(int stripe, ModelStats delta) {
+        try {
+            stripes[stripe].addAll(delta);
+            pendingDeltas.incrementAndGet();
+        } finally {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Add every stripe into stats and empty them.  Deltas added while
+     * draining may or may not be included.
+     * @param stats
+     * @return Number of deltas drained
+     */
+    public long drainInto(ModelStats stats) {
+        long drained = pendingDeltas.getAndSet(0);
+        for (int i = 0; i < stripes.length; i++) {
+            ModelStats stripe;
+            locks[i].lock();
+            try {
+                stripe = stripes[i];
+                stripes[i] = new ModelStats();
+            } finally {
+                locks[i].unlock();
+            }
+            stats.addAll(stripe);
+        }
+        return drained;
+    }
+
+    /**
+     * Drop every pending count
+     */
+    public void clear() {
+        drainInto(new ModelStats());
+    }
+
+    /**
+     * Whether no delta was added since the last drain
+     * @return
+     */
+    public boolean isEmpty() {
+        return pendingDeltas.get() == 0;
+    }
+
+    /**
+     * Deltas added since the last drain
+     * @return
+     */
+    public long getPendingDeltas() {
+        return pendingDeltas.get();
+    }
+}
@@ -2,53 +2,200 @@ package org.edng.wellframe.spamfilter.tool;
 
 import org.apache.log4j.Logger;
 
+import java.io.IOException;
 import java.io.Reader;
-import java.util.Scanner;
+import java.nio.CharBuffer;
 import java.util.Set;
 
 /**
  * This provides a consistent filtering layer to tokenize and massage
  * term before it's fed to the system.
  *
+ * Text is split on Unicode whitespace, space separators and control
+ * characters.  Punctuation is trimmed from both ends of a token but kept
+ * inside it, so "king's" and "example.com" stay whole while "wall." becomes
+ * "wall".  Tokens are lowercased into a reused buffer and checked against a
+ * precompiled stop word store without creating a String.
+ *
+ * The filter itself is the current token as a {@link CharSequence}, so it can
+ * be looked up in a {@link TokenStore} directly:
+ * <pre>
+ *   while (termFilter.next()) {
+ *       int id = tokens.indexOf(termFilter);
+ *   }
+ * </pre>
+ * A filter can be reused for several texts with {@link #reset(CharSequence)}.
+ * It is not thread safe.
+ *
  * Created by ed on 2/8/15.
  */
-public class TermFilter {
-    protected Logger log = Logger.getLogger(FileHandler.class);
+public class TermFilter implements CharSequence {
+    protected Logger log = Logger.getLogger(TermFilter.class);
+
+    private final TokenStore stopWords;
+    private CharSequence text;
+    private int position;
+    private int end;
+    private char[] buffer = new char[64];
+    private int tokenStart;
+    private int tokenLength;
 
-    public static final String SPACE_DELIMITER = " ";
-    private Scanner scanner;
-    private Set<String> stopWordsSet;
+    /**
+     * @param stopWords Precompiled stop words, see {@link #compileStopWords(Set)}
+     */
+    public TermFilter(TokenStore stopWords) {
+        this.stopWords = stopWords;
+    }
 
     /**
-     * Tokenize by default on space character and default stop words
+     * Tokenize everything a reader provides with default stop words handling
      * @param reader
      * @param stopWordsSet
      */
     public TermFilter(Reader reader, Set<String> stopWordsSet) {
-        this(reader, SPACE_DELIMITER, stopWordsSet);
+        this(compileStopWords(stopWordsSet));
+        StringBuilder content = new StringBuilder();
+        char[] chars = new char[4096];
+        int read;
+        try {
+            while ( (read = reader.read(chars)) != -1 ) {
+                content.append(chars, 0, read);
+            }
+        } catch (IOException e) {
+            throw new AssertionError("Failed to read message: " + e.getMessage());
+        }
+        reset(content);
+    }
+
+    /**
+     * Compile stop words into a store that can be probed with a char sequence
+     * @param stopWordsSet
+     * @return
+     */
+    public static TokenStore compileStopWords(Set<String> stopWordsSet) {
+        TokenVocabulary stopWords = new TokenVocabulary(stopWordsSet.size());
+        for (String stopWord : stopWordsSet) {
+            stopWords.add(stopWord.trim().toLowerCase(), 0, 0);
+        }
+        return stopWords;
     }
 
-    public TermFilter(Reader reader, String delimiter, Set < String > stopWordsSet) {
-        scanner = new Scanner(reader);
-        scanner.useDelimiter(delimiter);
-        this.stopWordsSet = stopWordsSet;
+    /**
+     * Start tokenizing a new text
+     * @param text
+     * @return this filter
+     */
+    public TermFilter reset(CharSequence text) {
+        this.text = text;
+        this.position = 0;
+        this.end = text.length();
+        this.tokenLength = 0;
+        return this;
+    }
+
+    /**
+     * Start tokenizing a range of a char array
+     * @param chars
+     * @param offset
+     * @param length
+     * @return this filter
+     */
+    public TermFilter reset(char[] chars, int offset, int length) {
+        return reset(CharBuffer.wrap(chars, offset, length));
+    }
+
+    /**
+     * Advance to the next token that is not a stop word
+     * @return false once the text is exhausted
+     */
+    public boolean next() {
+        while (position < end) {
+            int c = Character.codePointAt(text, position);
+            if (isSeparator(c)) {
+                position += Character.charCount(c);
+                continue;
+            }
+            // copy the token lowercased
+            int length = 0;
+            while (position < end) {
+                c = Character.codePointAt(text, position);
+                if (isSeparator(c)) {
+                    break;
+                }
+                position += Character.charCount(c);
+                if (length + 2 > buffer.length) {
+                    char[] grown = new char[buffer.length << 1];
+                    System.arraycopy(buffer, 0, grown, 0, length);
+                    buffer = grown;
+                }
+                length += Character.toChars(Character.toLowerCase(c), buffer, length);
+            }
+            // trim punctuation at both ends
+            int start = 0;
+            while (start < length && isPunctuation(buffer[start])) {
+                start++;
+            }
+            while (length > start && isPunctuation(buffer[length - 1])) {
+                length--;
+            }
+            tokenStart = start;
+            tokenLength = length - start;
+            if (tokenLength > 0 && (stopWords == null || stopWords.indexOf(this) < 0)) {
+                return true;
+            }
+        }
+        tokenLength = 0;
+        return false;
     }
 
     /**
      * Return next token after cleaning up term and filtered by stop words
-     * @return
+     * @return The token, or null once the text is exhausted
      */
     public String nextToken() {
-        if (!scanner.hasNext()) {
-            return null;
-        }
-        String token = scanner.next().trim().toLowerCase();
-        if (token.isEmpty()) {
-            return null;
-        }
-        if (stopWordsSet.contains(token)) {
-            return this.nextToken();
+        return next() ? toString() : null;
+    }
+
+    private static boolean isSeparator(int c) {
+        return Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c);
+    }
+
+    private static boolean isPunctuation(char c) {
+        switch (Character.getType(c)) {
+            case Character.CONNECTOR_PUNCTUATION:
+            case Character.DASH_PUNCTUATION:
+            case Character.START_PUNCTUATION:
+            case Character.END_PUNCTUATION:
+            case Character.INITIAL_QUOTE_PUNCTUATION:
+            case Character.FINAL_QUOTE_PUNCTUATION:
+            case Character.OTHER_PUNCTUATION:
+                return true;
+            default:
+                return false;
         }
-        return token;
+    }
+
+    @Override
+    public int length() {
+        return tokenLength;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return buffer[tokenStart + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buffer, tokenStart + start, end - start);
+    }
+
+    /**
+     * Current token as a new String
+     * @return
+     */
+    @Override
+    public String toString() {
+        return new String(buffer, tokenStart, tokenLength);
     }
 }
@@ -0,0 +1,37 @@
+package org.edng.wellframe.spamfilter.tool;
+
+/**
+ * Read access to per token spam and ham counts.
+ *
+ * Tokens are addressed by dense int IDs from 0 to {@link #size()} - 1 so
+ * other per-token tables, such as compiled log-likelihood ratios, can be
+ * plain arrays indexed by ID.
+ */
+public interface TokenStore {
+
+    /**
+     * Find the ID of a token
+     * @param token
+     * @return ID, or -1 if the token is unknown
+     */
+    int indexOf(CharSequence token);
+
+    /**
+     * Number of token IDs
+     * @return
+     */
+    int size();
+
+    String token(int id);
+
+    long spamCount(int id);
+
+    long hamCount(int id);
+
+    /**
+     * Approximate bytes of Java heap held by the store, not counting memory
+     * mapped or other off-heap memory
+     * @return
+     */
+    long heapBytes();
+}
@@ -0,0 +1,225 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing vocabulary that maps each token to a dense int ID and keeps
+ * the spam and ham counts of that token in parallel primitive arrays.
+ *
+ * A single probe of the slot table answers both classes, and no counter is
+ * ever boxed.  IDs are assigned in insertion order starting from zero and are
+ * never reused, so they can index other per-token tables such as the compiled
+ * log-likelihood ratios.
+ *
+ * This class is not thread safe.
+ */
+public class TokenVocabulary implements MutableTokenStore {
+    private static final int EMPTY = -1;
+    private static final int DEFAULT_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    // slot -> token ID, EMPTY if unused
+    private int[] slots;
+    private int mask;
+    // token ID -> data
+    private String[] tokens;
+    private int[] hashes;
+    private long[] spamCounts;
+    private long[] hamCounts;
+    private int size;
+    // heap taken by the token strings
+    private long stringBytes;
+
+    public TokenVocabulary() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize Number of tokens to size the tables for
+     */
+    public TokenVocabulary(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        int entries = Math.max(16, expectedSize);
+        tokens = new String[entries];
+        hashes = new int[entries];
+        spamCounts = new long[entries];
+        hamCounts = new long[entries];
+    }
+
+    /**
+     * Same value as {@link String#hashCode()} so cached String hashes can be
+     * used, spread so that sequential codes don't cluster in the slot table.
+     */
+    static int hash(CharSequence token) {
+        int h;
+        if (token instanceof String) {
+            h = token.hashCode();
+        } else {
+            h = 0;
+            for (int i = 0; i < token.length(); i++) {
+                h = 31 * h + token.charAt(i);
+            }
+        }
+        return spread(h);
+    }
+
+    static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private static boolean contentEquals(String token, CharSequence other) {
+        if (token.length() != other.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (token.charAt(i) != other.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the ID of a token
+     * @param token
+     * @return ID, or -1 if the token is not in the vocabulary
+     */
+    @Override
+    public int indexOf(CharSequence token) {
+        int h = hash(token);
+        for (int slot = h & mask; ; slot = (slot + 1) & mask) {
+            int id = slots[slot];
+            if (id == EMPTY) {
+                return -1;
+            }
+            if (hashes[id] == h && contentEquals(tokens[id], token)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Add to the counts of a token, inserting it if needed.  A String copy
+     * of the token is only made when it is inserted.
+     * @param token
+     * @param spamDelta Amount added to spam count
+     * @param hamDelta Amount added to ham count
+     * @return ID of the token
+     */
+    @Override
+    public int add(CharSequence token, long spamDelta, long hamDelta) {
+        int h = hash(token);
+        int slot = h & mask;
+        int id;
+        while ( (id = slots[slot]) != EMPTY ) {
+            if (hashes[id] == h && contentEquals(tokens[id], token)) {
+                spamCounts[id] += spamDelta;
+                hamCounts[id] += hamDelta;
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        id = size++;
+        if (id == tokens.length) {
+            growEntries();
+        }
+        tokens[id] = token.toString();
+        // object header, fields and char array
+        stringBytes += 56 + 2L * token.length();
+        hashes[id] = h;
+        spamCounts[id] = spamDelta;
+        hamCounts[id] = hamDelta;
+        slots[slot] = id;
+        if (size > slots.length * LOAD_FACTOR) {
+            rehash(slots.length << 1);
+        }
+        return id;
+    }
+
+    /**
+     * Add every count of another store into this one
+     * @param other
+     * @throws UnsupportedOperationException if other keeps no token strings
+     */
+    @Override
+    public void addAll(TokenStore other) {
+        for (int id = 0; id < other.size(); id++) {
+            add(other.token(id), other.spamCount(id), other.hamCount(id));
+        }
+    }
+
+    /**
+     * Deep copy with the same token IDs
+     * @return
+     */
+    @Override
+    public TokenVocabulary copy() {
+        TokenVocabulary copy = new TokenVocabulary(0);
+        copy.slots = slots.clone();
+        copy.mask = mask;
+        copy.tokens = Arrays.copyOf(tokens, Math.max(16, size));
+        copy.hashes = Arrays.copyOf(hashes, copy.tokens.length);
+        copy.spamCounts = Arrays.copyOf(spamCounts, copy.tokens.length);
+        copy.hamCounts = Arrays.copyOf(hamCounts, copy.tokens.length);
+        copy.size = size;
+        copy.stringBytes = stringBytes;
+        return copy;
+    }
+
+    private void growEntries() {
+        int capacity = tokens.length << 1;
+        tokens = Arrays.copyOf(tokens, capacity);
+        hashes = Arrays.copyOf(hashes, capacity);
+        spamCounts = Arrays.copyOf(spamCounts, capacity);
+        hamCounts = Arrays.copyOf(hamCounts, capacity);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = hashes[id] & mask;
+            while (slots[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+    }
+
+    @Override
+    public String token(int id) {
+        return tokens[id];
+    }
+
+    @Override
+    public long spamCount(int id) {
+        return spamCounts[id];
+    }
+
+    @Override
+    public long hamCount(int id) {
+        return hamCounts[id];
+    }
+
+    @Override
+    public long heapBytes() {
+        // per entry: string reference, hash and two counts
+        return 4L * slots.length + 24L * tokens.length + stringBytes;
+    }
+
+    /**
+     * Number of distinct tokens
+     * @return
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,315 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of training deltas.
+ *
+ * Every merge appends the token increments it applied to the model as a
+ * record tagged with a sequence number.  Records are buffered and made
+ * durable in groups, either once enough records are pending or once the
+ * oldest pending record is old enough, so a burst of merges costs one sync
+ * instead of one model rewrite per message.
+ *
+ * The log is split into segments named after the first sequence number they
+ * may hold.  A checkpoint rolls to a new segment, saves the model with the
+ * sequence of the last record it includes and then deletes the sealed
+ * segments.  On startup every record newer than the saved model is replayed.
+ *
+ * Record layout:
+ * <pre>
+ *   int   payload length
+ *   int   CRC32 of payload
+ *   long  sequence
+ *   long  totalSpam, totalHam, totalSpamTokens, totalHamTokens
+ *   int   token count
+ *   per token: int UTF-8 length, UTF-8 bytes, long spam count, long ham count
+ * </pre>
+ * Replay of a segment stops at the first truncated or corrupt record, which
+ * is what a crash in the middle of a write leaves behind, and the segment is
+ * truncated there so records appended later don't end up behind it.
+ */
+public class TrainingLog {
+    protected Logger log = Logger.getLogger(TrainingLog.class);
+
+    private static final String PREFIX = "training-";
+    private static final String SUFFIX = ".log";
+
+    private final File directory;
+    private final int commitBatchSize;
+    private final long commitIntervalMillis;
+
+    private File segment;
+    private FileOutputStream fileOutputStream;
+    private DataOutputStream out;
+    private int pendingRecords;
+    private long oldestPendingMillis;
+    private long segmentBytes;
+    private int recordLength;
+
+    /**
+     * @param directory Where log segments are kept
+     * @param commitBatchSize Commit once this many records are pending
+     * @param commitIntervalMillis Commit once the oldest pending record is this old
+     */
+    public TrainingLog(File directory, int commitBatchSize, long commitIntervalMillis) {
+        this.directory = directory;
+        this.commitBatchSize = commitBatchSize;
+        this.commitIntervalMillis = commitIntervalMillis;
+    }
+
+    /**
+     * Replay records newer than a sequence number into stats.
+     * @param stats Stats to apply records to
+     * @param afterSequence Records up to and including this sequence are skipped
+     * @return Highest sequence number seen, or afterSequence if none is newer
+     * @throws IOException
+     */
+    public synchronized long replay(ModelStats stats, long afterSequence) throws IOException {
+        long lastSequence = afterSequence;
+        int replayed = 0;
+        for (File file : listSegments()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            long valid = 0;
+            try {
+                ModelStats delta = new ModelStats();
+                long remaining = file.length();
+                long sequence;
+                while ( (sequence = readRecord(in, remaining, delta)) >= 0 ) {
+                    remaining -= 8 + recordLength;
+                    valid += 8 + recordLength;
+                    if (sequence > lastSequence) {
+                        stats.addAll(delta);
+                        lastSequence = sequence;
+                        replayed++;
+                    }
+                    delta = new ModelStats();
+                }
+            } finally {
+                in.close();
+            }
+            if (valid < file.length()) {
+                log.warn("Truncating " + file + " to " + valid + " bytes, dropping " + (file.length() - valid) + " damaged bytes");
+                truncate(file, valid);
+            }
+        }
+        log.info("Replayed " + replayed + " training log records up to sequence " + lastSequence);
+        return lastSequence;
+    }
+
+    /**
+     * Start appending to a new segment
+     * @param nextSequence Sequence number of the next record to be appended
+     * @throws IOException
+     */
+    public synchronized void open(long nextSequence) throws IOException {
+        close();
+        segment = new File(directory, segmentName(nextSequence));
+        fileOutputStream = new FileOutputStream(segment, true);
+        out = new DataOutputStream(new BufferedOutputStream(fileOutputStream, 65536));
+        segmentBytes = segment.length();
+        pendingRecords = 0;
+    }
+
+    /**
+     * Buffer a record.  It becomes durable with the next commit.
+     * @param sequence
+     * @param delta Totals and token counts added to the model
+     * @throws IOException
+     */
+    public synchronized void append(long sequence, ModelStats delta) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeLong(sequence);
+        payload.writeLong(delta.getTotalSpam());
+        payload.writeLong(delta.getTotalHam());
+        payload.writeLong(delta.getTotalSpamTokens());
+        payload.writeLong(delta.getTotalHamTokens());
+        TokenStore tokens = delta.getTokens();
+        payload.writeInt(tokens.size());
+        for (int id = 0; id < tokens.size(); id++) {
+            byte[] token = tokens.token(id).getBytes(ModelFile.UTF8);
+            payload.writeInt(token.length);
+            payload.write(token);
+            payload.writeLong(tokens.spamCount(id));
+            payload.writeLong(tokens.hamCount(id));
+        }
+        byte[] record = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+        segmentBytes += 8 + record.length;
+        if (pendingRecords++ == 0) {
+            oldestPendingMillis = System.currentTimeMillis();
+        }
+        if (pendingRecords >= commitBatchSize) {
+            commit();
+        }
+    }
+
+    /**
+     * Commit pending records if the batch is full or the oldest one has
+     * waited long enough.
+     * @throws IOException
+     */
+    public synchronized void commitIfDue() throws IOException {
+        if (pendingRecords > 0 && (pendingRecords >= commitBatchSize
+                || System.currentTimeMillis() - oldestPendingMillis >= commitIntervalMillis)) {
+            commit();
+        }
+    }
+
+    /**
+     * Flush pending records and sync them to disk
+     * @throws IOException
+     */
+    public synchronized void commit() throws IOException {
+        if (out == null || pendingRecords == 0) {
+            return;
+        }
+        out.flush();
+        fileOutputStream.getChannel().force(false);
+        log.debug("Committed " + pendingRecords + " training log records");
+        pendingRecords = 0;
+    }
+
+    /**
+     * Seal the current segment and start a new one.
+     * @param nextSequence Sequence number of the next record to be appended
+     * @return Sealed segments; they may be deleted once a model including all their records is saved
+     * @throws IOException
+     */
+    public synchronized List<File> roll(long nextSequence) throws IOException {
+        commit();
+        List<File> sealed = listSegments();
+        open(nextSequence);
+        sealed.remove(segment);
+        return sealed;
+    }
+
+    /**
+     * Delete every segment, including the current one, and start a new
+     * empty one
+     * @param nextSequence Sequence number of the next record to be appended
+     * @throws IOException
+     */
+    public synchronized void clear(long nextSequence) throws IOException {
+        close();
+        for (File file : listSegments()) {
+            if (!file.delete()) {
+                throw new IOException("Failed to delete training log segment " + file);
+            }
+        }
+        open(nextSequence);
+    }
+
+    /**
+     * Delete segments returned by {@link #roll(long)}
+     * @param segments
+     */
+    public void delete(List<File> segments) {
+        for (File file : segments) {
+            if (!file.delete()) {
+                log.warn("Failed to delete training log segment " + file);
+            }
+        }
+    }
+
+    /**
+     * Bytes written to the current segment
+     * @return
+     */
+    public synchronized long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            commit();
+            out.close();
+            out = null;
+            fileOutputStream = null;
+        }
+    }
+
+    private List<File> listSegments() {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File file, String s) {
+                return s.startsWith(PREFIX) && s.endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new ArrayList<File>();
+        }
+        // names are zero padded so they sort by sequence
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            raf.getChannel().force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String segmentName(long sequence) {
+        return PREFIX + String.format("%020d", sequence) + SUFFIX;
+    }
+
+    /**
+     * Read one record into an empty delta
+     * @return Sequence number of the record, or -1 at the end of the segment or at a damaged record
+     */
+    private long readRecord(DataInputStream in, long remaining, ModelStats delta) throws IOException {
+        byte[] record;
+        int expectedCrc;
+        try {
+            int length = in.readInt();
+            expectedCrc = in.readInt();
+            if (length < 0 || length > remaining - 8) {
+                log.warn("Truncated training log record, ignoring the rest of the segment");
+                return -1;
+            }
+            recordLength = length;
+            record = new byte[length];
+            in.readFully(record);
+        } catch (EOFException e) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        if ((int) crc.getValue() != expectedCrc) {
+            log.warn("Damaged training log record, ignoring the rest of the segment");
+            return -1;
+        }
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(record));
+        long sequence = payload.readLong();
+        long totalSpam = payload.readLong();
+        long totalHam = payload.readLong();
+        long totalSpamTokens = payload.readLong();
+        long totalHamTokens = payload.readLong();
+        delta.addMessages(true, totalSpam, totalSpamTokens);
+        delta.addMessages(false, totalHam, totalHamTokens);
+        int tokenCount = payload.readInt();
+        TokenVocabulary tokens = (TokenVocabulary) delta.getTokens();
+        for (int i = 0; i < tokenCount; i++) {
+            byte[] token = new byte[payload.readInt()];
+            payload.readFully(token);
+            tokens.add(new String(token, ModelFile.UTF8), payload.readLong(), payload.readLong());
+        }
+        return sequence;
+    }
+}
@@ -0,0 +1,258 @@
+package org.edng.wellframe.spamfilter.tool;
+
+import org.apache.log4j.Logger;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trains labelled messages in the background.
+ *
+ * Messages are put in a bounded queue and acknowledged with an ID straight
+ * away; when the queue is full they are refused rather than blocking the
+ * caller.  A single merger thread drains the queue in batches, extracts and
+ * tokenizes each message and merges the whole batch as one delta through
+ * {@link NaiveBayesSpamFilter#mergeDelta(ModelStats, java.util.Collection)},
+ * so a burst of feedback costs one model copy and one training log record
+ * per batch instead of per message, and no per-message files are written.
+ *
+ * IDs are handed out in queue order and batches are merged in that order,
+ * so a message is merged once the last processed ID has reached its own,
+ * unless it was in a batch that failed.  The ID ranges of the most recent
+ * failed batches are kept so they can be reported as failed.
+ */
+@Component
+public class TrainingQueue {
+    protected Logger log = Logger.getLogger(TrainingQueue.class);
+
+    @Resource
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    @Resource
+    private FileHandler fileHandler;
+    @Resource
+    private EmailParser emailParser;
+    @Resource
+    private HtmlTextExtractor htmlTextExtractor;
+    @Resource
+    private PipelineMetrics pipelineMetrics;
+    @Resource
+    private Environment environment;
+
+    private BlockingQueue<Job> queue;
+    private int batchSize;
+    private Thread merger;
+    private volatile boolean running;
+
+    private final AtomicLong lastAckId = new AtomicLong();
+    private static final int MAX_FAILED_RANGES = 1000;
+
+    private volatile long lastMergedAckId;
+    // last ID taken off the queue and merged or failed
+    private volatile long lastProcessedAckId;
+    // first and last ID of recently failed batches, oldest first
+    private final LinkedList<long[]> failedRanges = new LinkedList<long[]>();
+    private volatile long lastMergeMillis;
+    // enqueue time of the oldest message not merged yet, 0 if there is none
+    private volatile long oldestPendingMillis;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<Job>(environment.getProperty("training.queue.capacity", Integer.class, 10000));
+        batchSize = environment.getProperty("training.queue.batchSize", Integer.class, 500);
+        running = true;
+        merger = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "training-queue");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * Stop taking messages and merge whatever is still queued
+     */
+    @PreDestroy
+    public void destroy() {
+        running = false;
+        try {
+            merger.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queue a raw message for training
+     * @param message Raw email message
+     * @param isSpam
+     * @return Ack ID of the message, or -1 if the queue is full
+     */
+    public long submit(String message, boolean isSpam) {
+        if (!running) {
+            rejected.incrementAndGet();
+            return -1;
+        }
+        // IDs are assigned under a lock so they follow queue order
+        synchronized (lastAckId) {
+            Job job = new Job(lastAckId.get() + 1, message, isSpam);
+            if (!queue.offer(job)) {
+                rejected.incrementAndGet();
+                return -1;
+            }
+            if (oldestPendingMillis == 0) {
+                oldestPendingMillis = job.enqueuedMillis;
+            }
+            return lastAckId.incrementAndGet();
+        }
+    }
+
+    private void drain() {
+        List<Job> batch = new ArrayList<Job>(batchSize);
+        while (true) {
+            try {
+                Job first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (!running) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                merge(batch);
+                lastMergedAckId = batch.get(batch.size() - 1).ackId;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception | AssertionError e) {
+                failed.addAndGet(batch.size());
+                synchronized (failedRanges) {
+                    failedRanges.add(new long[]{batch.get(0).ackId, batch.get(batch.size() - 1).ackId});
+                    if (failedRanges.size() > MAX_FAILED_RANGES) {
+                        failedRanges.removeFirst();
+                    }
+                }
+                log.error("Failed to merge " + batch.size() + " queued messages", e);
+            } finally {
+                if (!batch.isEmpty()) {
+                    lastProcessedAckId = batch.get(batch.size() - 1).ackId;
+                    lastMergeMillis = System.currentTimeMillis();
+                    synchronized (lastAckId) {
+                        Job next = queue.peek();
+                        oldestPendingMillis = next == null ? 0 : next.enqueuedMillis;
+                    }
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Tokenize a batch into one delta and merge it
+     */
+    private void merge(List<Job> batch) throws IOException {
+        ModelSnapshot current = naiveBayesSpamFilter.getSnapshot();
+        TermFilter termFilter = current.newTermFilter();
+        ModelStats delta = new ModelStats();
+        Set<String> messageMd5s = new HashSet<String>();
+        for (Job job : batch) {
+            long start = System.nanoTime();
+            String content = htmlTextExtractor.getTextByHtml(emailParser.getBody(job.message));
+            String md5 = fileHandler.generateMd5Filename(content);
+            if (fileHandler.isMessageMerged(md5) || !messageMd5s.add(md5)) {
+                duplicates.incrementAndGet();
+                continue;
+            }
+            long totalTokens = 0;
+            termFilter.reset(content);
+            while (termFilter.next()) {
+                delta.addTokenCount(termFilter, job.isSpam, 1);
+                totalTokens++;
+            }
+            delta.addMessages(job.isSpam, 1, totalTokens);
+            pipelineMetrics.record(PipelineMetrics.Stage.TRAIN, start);
+        }
+        if (!messageMd5s.isEmpty()) {
+            naiveBayesSpamFilter.mergeDelta(delta, messageMd5s);
+        }
+    }
+
+    /**
+     * Whether a message has been merged
+     * @param ackId
+     * @return
+     */
+    public boolean isMerged(long ackId) {
+        return ackId <= lastProcessedAckId && !isFailed(ackId);
+    }
+
+    /**
+     * Whether a message was in a batch that failed to merge.  Only the most
+     * recent failed batches are remembered.
+     * @param ackId
+     * @return
+     */
+    public boolean isFailed(long ackId) {
+        synchronized (failedRanges) {
+            for (long[] range : failedRanges) {
+                if (ackId >= range[0] && ackId <= range[1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Queue depth, acknowledged and merged IDs, and how long the oldest
+     * queued message has been waiting
+     * @return
+     */
+    public Map<String, Object> status() {
+        long oldest = oldestPendingMillis;
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("depth", queue.size());
+        status.put("capacity", queue.size() + queue.remainingCapacity());
+        status.put("lastAckId", lastAckId.get());
+        status.put("lastMergedAckId", lastMergedAckId);
+        status.put("lastProcessedAckId", lastProcessedAckId);
+        status.put("lagMillis", oldest == 0 ? 0 : System.currentTimeMillis() - oldest);
+        status.put("lastMergeMillis", lastMergeMillis);
+        status.put("rejected", rejected.get());
+        status.put("duplicates", duplicates.get());
+        status.put("failed", failed.get());
+        return status;
+    }
+
+    private static class Job {
+        final long ackId;
+        final String message;
+        final boolean isSpam;
+        final long enqueuedMillis = System.currentTimeMillis();
+
+        Job(long ackId, String message, boolean isSpam) {
+            this.ackId = ackId;
+            this.message = message;
+            this.isSpam = isSpam;
+        }
+    }
+}
@@ -1,10 +1,8 @@
 package org.edng.wellframe.spamfilter.web.configuration;
 
-import org.edng.wellframe.spamfilter.tool.FileHandler;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.core.env.Environment;
 import org.springframework.web.servlet.ViewResolver;
 import org.springframework.web.servlet.config.annotation.EnableWebMvc;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
@@ -12,19 +10,19 @@ import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter
 import org.springframework.web.servlet.view.InternalResourceViewResolver;
 import org.springframework.web.servlet.view.JstlView;
 
-import javax.annotation.Resource;
-
 /**
+ * Servlet context of the DispatcherServlet.  Only the controllers live
+ * here; the model and the rest of the tool components come from the root
+ * context started from {@link org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration},
+ * so the web tier shares the one loaded model.
+ *
  * @author ed
  */
 @EnableWebMvc
 @Configuration
-@ComponentScan(basePackages = {"org.edng.wellframe.spamfilter.web.controller", "org.edng.wellframe.spamfilter.tool"})
+@ComponentScan(basePackages = {"org.edng.wellframe.spamfilter.web.controller"})
 public class WebMvcConfiguration extends WebMvcConfigurerAdapter {
 
-    @Resource
-    private Environment environment;
-
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         registry.addResourceHandler("/resources/**").addResourceLocations("/resources/");
@@ -38,11 +36,4 @@ public class WebMvcConfiguration extends WebMvcConfigurerAdapter {
         viewResolver.setSuffix(".jsp");
         return viewResolver;
     }
-
-    @Bean
-    public FileHandler fileHandler() {
-        return new FileHandler(
-                environment.getProperty("datadir.messages"),
-                environment.getProperty("datadir.stats"));
-    }
 }
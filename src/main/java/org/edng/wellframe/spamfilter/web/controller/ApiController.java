@@ -1,17 +1,35 @@
 package org.edng.wellframe.spamfilter.web.controller;
 
-import org.edng.wellframe.spamfilter.tool.EmailParser;
-import org.edng.wellframe.spamfilter.tool.HtmlTextExtractor;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.edng.wellframe.spamfilter.tool.BatchScorer;
+import org.edng.wellframe.spamfilter.tool.FileHandler;
+import org.edng.wellframe.spamfilter.tool.HashedTokenStore;
+import org.edng.wellframe.spamfilter.tool.ModelSnapshot;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
 import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.edng.wellframe.spamfilter.tool.OffHeapTokenStore;
+import org.edng.wellframe.spamfilter.tool.PipelineMetrics;
+import org.edng.wellframe.spamfilter.tool.PrunedTokenStore;
+import org.edng.wellframe.spamfilter.tool.ResultCache;
+import org.edng.wellframe.spamfilter.tool.TrainingQueue;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 
 import javax.annotation.Resource;
+import java.io.File;
 import java.io.IOException;
 import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Created by ed on 2/7/15.
@@ -19,34 +37,203 @@ import java.text.NumberFormat;
 @Controller
 public class ApiController {
     @Resource
-    private HtmlTextExtractor htmlTextExtractor;
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
     @Resource
-    private EmailParser emailParser;
+    private BatchScorer batchScorer;
     @Resource
-    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    private ResultCache resultCache;
+    @Resource
+    private PipelineMetrics pipelineMetrics;
+    @Resource
+    private FileHandler fileHandler;
+    @Resource
+    private TrainingQueue trainingQueue;
+
+    private final Gson gson = new Gson();
 
     @RequestMapping(value = "/check-message", method = { RequestMethod.GET, RequestMethod.POST } )
     public @ResponseBody String checkMessage(@RequestParam("message") String message) {
-        // extract text from email body and html
-        String content = htmlTextExtractor.getTextByHtml(emailParser.getBody(message));
-        float spamProbability = naiveBayesSpamFilter.spamProbability(content);
+        // extract text from email body and html, unless the result is cached
+        float spamProbability = batchScorer.spamProbability(message);
         if (spamProbability >= 0.5f) {
             return "SPAM ("+ NumberFormat.getPercentInstance().format(spamProbability) + ")";
         }
         return "NOT SPAM ("+ NumberFormat.getPercentInstance().format(1f - spamProbability) + ")";
     }
 
+    /**
+     * Score a JSON array of raw messages against one model snapshot.
+     * Responds with an array of {"probability": p, "label": "SPAM" | "NOT SPAM"}
+     * in the order of the request.  Responds 400 if an element is null or not a
+     * string and 413 if there are more than batch.maxMessages messages.
+     */
+    @RequestMapping(value = "/check-messages", method = RequestMethod.POST, produces = "application/json")
+    public @ResponseBody ResponseEntity<String> checkMessages(@RequestBody String body) {
+        String[] messages;
+        try {
+            messages = gson.fromJson(body, String[].class);
+        } catch (JsonParseException e) {
+            return new ResponseEntity<String>(gson.toJson(error("Expected a JSON array of messages")), HttpStatus.BAD_REQUEST);
+        }
+        if (messages == null) {
+            return new ResponseEntity<String>(gson.toJson(error("Expected a JSON array of messages")), HttpStatus.BAD_REQUEST);
+        }
+        for (String message : messages) {
+            if (message == null) {
+                return new ResponseEntity<String>(gson.toJson(error("Expected a JSON array of messages")), HttpStatus.BAD_REQUEST);
+            }
+        }
+        if (messages.length > batchScorer.getMaxMessages()) {
+            return new ResponseEntity<String>(gson.toJson(error("At most " + batchScorer.getMaxMessages()
+                    + " messages per batch")), HttpStatus.PAYLOAD_TOO_LARGE);
+        }
+        float[] spamProbabilities = batchScorer.spamProbabilities(Arrays.asList(messages));
+        Object[] results = new Object[spamProbabilities.length];
+        for (int i = 0; i < spamProbabilities.length; i++) {
+            Map<String, Object> result = new LinkedHashMap<String, Object>();
+            result.put("probability", spamProbabilities[i]);
+            result.put("label", spamProbabilities[i] >= 0.5f ? "SPAM" : "NOT SPAM");
+            results[i] = result;
+        }
+        return new ResponseEntity<String>(gson.toJson(results), HttpStatus.OK);
+    }
+
+    /**
+     * Hit, miss and eviction counters of the check-message result cache
+     */
+    @RequestMapping(value = "/cache-stats", method = RequestMethod.GET, produces = "application/json")
+    public @ResponseBody String cacheStats() {
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("size", resultCache.size());
+        stats.put("hits", resultCache.getHits());
+        stats.put("misses", resultCache.getMisses());
+        stats.put("evictions", resultCache.getEvictions());
+        return gson.toJson(stats);
+    }
+
+    /**
+     * Latency and throughput of each pipeline stage plus model size and
+     * memory, as JSON
+     */
+    @RequestMapping(value = "/metrics", method = RequestMethod.GET, produces = "application/json")
+    public @ResponseBody String metrics() {
+        ModelSnapshot snapshot = naiveBayesSpamFilter.getSnapshot();
+        ModelStats stats = snapshot.getStats();
+        Map<String, Object> model = new LinkedHashMap<String, Object>();
+        model.put("sequence", snapshot.getSequence());
+        model.put("generation", snapshot.getGeneration());
+        model.put("pendingTrained", naiveBayesSpamFilter.getPendingMessages());
+        model.put("reloads", naiveBayesSpamFilter.getReloadCount());
+        model.put("totalSpam", stats.getTotalSpam());
+        model.put("totalHam", stats.getTotalHam());
+        model.put("totalSpamTokens", stats.getTotalSpamTokens());
+        model.put("totalHamTokens", stats.getTotalHamTokens());
+        if (stats.getTokens() instanceof HashedTokenStore) {
+            model.put("hashBits", ((HashedTokenStore) stats.getTokens()).getBits());
+        } else {
+            if (stats.getTokens() instanceof PrunedTokenStore) {
+                model.put("pruneTopK", ((PrunedTokenStore) stats.getTokens()).getTopK());
+            }
+            model.put("vocabulary", stats.getTokens().size());
+        }
+        model.put("heapBytes", stats.getTokens().heapBytes() + snapshot.getScorer().heapBytes());
+        if (stats.getTokens() instanceof OffHeapTokenStore) {
+            // the scorer's ratio table is off-heap too
+            model.put("offHeapBytes", ((OffHeapTokenStore) stats.getTokens()).offHeapBytes()
+                    + 8L * snapshot.getScorer().size());
+        }
+        model.put("fileBytes", new File(fileHandler.getStatsDirectory(), NaiveBayesSpamFilter.MODEL_FILE).length());
+
+        Map<String, Object> cache = new LinkedHashMap<String, Object>();
+        cache.put("size", resultCache.size());
+        cache.put("hits", resultCache.getHits());
+        cache.put("misses", resultCache.getMisses());
+        cache.put("evictions", resultCache.getEvictions());
+
+        Runtime runtime = Runtime.getRuntime();
+        Map<String, Object> jvm = new LinkedHashMap<String, Object>();
+        jvm.put("heapUsedBytes", runtime.totalMemory() - runtime.freeMemory());
+        jvm.put("heapMaxBytes", runtime.maxMemory());
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("stages", pipelineMetrics.summary());
+        metrics.put("discriminative", pipelineMetrics.discriminativeSummary());
+        metrics.put("model", model);
+        metrics.put("cache", cache);
+        metrics.put("jvm", jvm);
+        return gson.toJson(metrics);
+    }
+
+    private static Map<String, String> error(String message) {
+        Map<String, String> error = new LinkedHashMap<String, String>();
+        error.put("error", message);
+        return error;
+    }
+
+    /**
+     * Queue a message for training.  Responds 202 with the ack ID of the
+     * message, or 503 when the training queue is full.
+     */
     @RequestMapping(value = "/mark-message", method = { RequestMethod.GET, RequestMethod.POST } )
-    public @ResponseBody String markMessage(@RequestParam("message") String message,
+    public @ResponseBody ResponseEntity<String> markMessage(@RequestParam("message") String message,
                                  @RequestParam("isSpam") String isSpam) {
-        String content = htmlTextExtractor.getTextByHtml(emailParser.getBody(message));
         boolean spam = isSpam.toLowerCase().startsWith("y") || isSpam.equals("1");
+        long ackId = trainingQueue.submit(message, spam);
+        if (ackId < 0) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.set("Retry-After", "1");
+            return new ResponseEntity<String>("Training queue is full", headers, HttpStatus.SERVICE_UNAVAILABLE);
+        }
+        return new ResponseEntity<String>("Accepted " + ackId, HttpStatus.ACCEPTED);
+    }
+
+    /**
+     * Depth and lag of the training queue as JSON, and whether a message
+     * has been merged or failed to merge when its ack ID is given
+     */
+    @RequestMapping(value = "/training-status", method = RequestMethod.GET, produces = "application/json")
+    public @ResponseBody String trainingStatus(@RequestParam(value = "ack", required = false) Long ackId) {
+        Map<String, Object> status = trainingQueue.status();
+        if (ackId != null) {
+            status.put("ack", ackId);
+            status.put("merged", trainingQueue.isMerged(ackId));
+            status.put("mergeFailed", trainingQueue.isFailed(ackId));
+        }
+        return gson.toJson(status);
+    }
+
+    /**
+     * Generation and sequence of the model snapshot being served, as JSON
+     */
+    @RequestMapping(value = "/model-status", method = RequestMethod.GET, produces = "application/json")
+    public @ResponseBody String modelStatus() {
+        return gson.toJson(modelStatus(naiveBayesSpamFilter.getSnapshot()));
+    }
+
+    /**
+     * Load the model file again and respond with the generation now being
+     * served, or 500 if the model file can't be opened, in which case the
+     * current model stays in use
+     */
+    @RequestMapping(value = "/reload-model", method = RequestMethod.POST, produces = "application/json")
+    public @ResponseBody ResponseEntity<String> reloadModel() {
         try {
-            naiveBayesSpamFilter.train(content, spam, true);
+            naiveBayesSpamFilter.reloadStats(true);
         } catch (IOException e) {
-            return "Failed to process message";
+            return new ResponseEntity<String>(gson.toJson(error("Failed to reload model: " + e.getMessage())),
+                    HttpStatus.INTERNAL_SERVER_ERROR);
         }
-        return "Success";
+        return new ResponseEntity<String>(gson.toJson(modelStatus(naiveBayesSpamFilter.getSnapshot())), HttpStatus.OK);
+    }
+
+    private Map<String, Object> modelStatus(ModelSnapshot snapshot) {
+        Map<String, Object> status = new LinkedHashMap<String, Object>();
+        status.put("generation", snapshot.getGeneration());
+        status.put("sequence", snapshot.getSequence());
+        status.put("reloads", naiveBayesSpamFilter.getReloadCount());
+        status.put("totalSpam", snapshot.getStats().getTotalSpam());
+        status.put("totalHam", snapshot.getStats().getTotalHam());
+        return status;
     }
 
 }
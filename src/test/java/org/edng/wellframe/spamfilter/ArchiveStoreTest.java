@@ -0,0 +1,82 @@
+package org.edng.wellframe.spamfilter;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.tool.ArchiveMigrator;
+import org.edng.wellframe.spamfilter.tool.ArchiveStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class ArchiveStoreTest {
+
+    private static String digest(int i) {
+        return String.format("%032X", (long) i * 0x9E3779B97F4A7C15L);
+    }
+
+    private static Map<String, byte[]> files(int i) {
+        return Collections.singletonMap(digest(i) + ".complete", ("message " + i).getBytes());
+    }
+
+    @Test
+    public void testLookupAcrossSegments() throws IOException {
+        File dir = new File("testdata/archive");
+        FileUtils.deleteDirectory(dir);
+
+        ArchiveStore archive = new ArchiveStore(dir, 1024);
+        for (int i = 0; i < 200; i++) {
+            archive.append(digest(i), files(i));
+        }
+        assertTrue("rolled: " + archive.getSegmentCount(), archive.getSegmentCount() > 2);
+        assertEquals("current segment", "message 199",
+                new String(archive.get(digest(199)).get(digest(199) + ".complete")));
+        archive.close();
+
+        // chop the last record in half as a crash in the middle of a write would
+        File[] segments = dir.listFiles();
+        Arrays.sort(segments);
+        RandomAccessFile last = new RandomAccessFile(segments[segments.length - 1], "rw");
+        last.setLength(last.length() - 5);
+        last.close();
+
+        archive = new ArchiveStore(dir, 1024);
+        for (int i = 0; i < 199; i++) {
+            assertEquals("message " + i, "message " + i,
+                    new String(archive.get(digest(i)).get(digest(i) + ".complete")));
+        }
+        assertTrue("torn record dropped", !archive.contains(digest(199)));
+        assertTrue("unknown digest", archive.get(digest(1000)) == null);
+        archive.close();
+
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Test
+    public void testMigrateDirectoryTree() throws IOException {
+        File dir = new File("testdata/archive");
+        FileUtils.deleteDirectory(dir);
+        String md5 = digest(7);
+        File leaf = new File(dir, md5.substring(0, 1) + "/" + md5.substring(1, 2));
+        FileUtils.writeStringToFile(new File(leaf, md5 + "_stats.properties"), "totalTokens=3");
+        FileUtils.writeStringToFile(new File(leaf, md5 + ".complete"), "");
+        FileUtils.writeStringToFile(new File(leaf, "notes.txt"), "keep me");
+
+        ArchiveStore archive = new ArchiveStore(dir, 1024);
+        assertEquals("migrated", 1L, ArchiveMigrator.migrate(dir, archive));
+        Map<String, byte[]> files = archive.get(md5);
+        assertEquals("files", 2, files.size());
+        assertEquals("stats", "totalTokens=3", new String(files.get(md5 + "_stats.properties")));
+        assertTrue("message files deleted", !new File(leaf, md5 + ".complete").exists());
+        assertTrue("other files kept", new File(leaf, "notes.txt").exists());
+        archive.close();
+
+        FileUtils.deleteDirectory(dir);
+    }
+}
@@ -0,0 +1,91 @@
+package org.edng.wellframe.spamfilter;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.edng.wellframe.spamfilter.tool.BatchScorer;
+import org.edng.wellframe.spamfilter.tool.FileHandler;
+import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.edng.wellframe.spamfilter.tool.ResultCache;
+import org.edng.wellframe.spamfilter.web.controller.ApiController;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {ApplicationConfiguration.class})
+public class BatchScorerTest {
+    @Resource
+    private NaiveBayesSpamFilter naiveBayesSpamFilter;
+    @Resource
+    private FileHandler fileHandler;
+    @Resource
+    private BatchScorer batchScorer;
+    @Resource
+    private ResultCache resultCache;
+
+    @Test
+    public void testBatchMatchesSingleMessages() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.train("Humpty Dumpty sat on a wall", true, false);
+        naiveBayesSpamFilter.train("Humpty Dumpty had a great fall", true, false);
+        naiveBayesSpamFilter.train("All the king's horses and all the king's men", false, false);
+        naiveBayesSpamFilter.train("Couldn't put Humpty together again", false, false);
+        naiveBayesSpamFilter.mergeStats();
+
+        // the controller lives in the servlet context, wire it by hand
+        ApiController apiController = new ApiController();
+        ReflectionTestUtils.setField(apiController, "naiveBayesSpamFilter", naiveBayesSpamFilter);
+        ReflectionTestUtils.setField(apiController, "batchScorer", batchScorer);
+        ReflectionTestUtils.setField(apiController, "resultCache", resultCache);
+
+        List<String> messages = Arrays.asList("humpty dumpty", "all the king's men", "great fall",
+                "horses and men", "humpty dumpty", "");
+        Gson gson = new Gson();
+        ResponseEntity<String> response = apiController.checkMessages(gson.toJson(messages));
+        assertEquals("status", HttpStatus.OK, response.getStatusCode());
+        Map<?, ?>[] results = gson.fromJson(response.getBody(), Map[].class);
+        assertEquals("one result per message", messages.size(), results.length);
+
+        float[] probabilities = batchScorer.spamProbabilities(messages);
+        for (int i = 0; i < messages.size(); i++) {
+            float single = batchScorer.spamProbability(messages.get(i));
+            assertEquals("batch probability of message " + i, single, probabilities[i]);
+            assertEquals("endpoint probability of message " + i, single,
+                    ((Number) results[i].get("probability")).floatValue());
+            String label = single >= 0.5f ? "SPAM" : "NOT SPAM";
+            assertEquals("label of message " + i, label, results[i].get("label"));
+            String percent = NumberFormat.getPercentInstance().format(single >= 0.5f ? single : 1f - single);
+            assertEquals("check-message of message " + i, label + " (" + percent + ")",
+                    apiController.checkMessage(messages.get(i)));
+        }
+
+        assertEquals("bad request", HttpStatus.BAD_REQUEST, apiController.checkMessages("{").getStatusCode());
+        assertEquals("null message", HttpStatus.BAD_REQUEST,
+                apiController.checkMessages("[\"humpty dumpty\", null]").getStatusCode());
+        String[] tooMany = new String[batchScorer.getMaxMessages() + 1];
+        Arrays.fill(tooMany, "humpty dumpty");
+        assertEquals("too many messages", HttpStatus.PAYLOAD_TOO_LARGE,
+                apiController.checkMessages(gson.toJson(tooMany)).getStatusCode());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+}
@@ -0,0 +1,85 @@
+package org.edng.wellframe.spamfilter;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.tool.DedupIndex;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class DedupIndexTest {
+
+    private static final String FIRST = "0123456789ABCDEF0123456789ABCDEF";
+    private static final String SECOND = "FEDCBA9876543210FEDCBA9876543210";
+    private static final String THIRD = "00000000000000000000000000000001";
+
+    @Test
+    public void testMigrateAndReload() throws IOException {
+        File dir = new File("testdata/dedup");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        File file = new File(dir, "messages_completed.bin");
+        File legacyFile = new File(dir, "messages_completed.txt");
+
+        PrintWriter printWriter = new PrintWriter(legacyFile);
+        printWriter.println(FIRST);
+        printWriter.println(SECOND.toLowerCase());
+        printWriter.close();
+
+        DedupIndex index = new DedupIndex(file, legacyFile, 1024);
+        assertTrue("migrated", index.contains(FIRST));
+        assertTrue("migrated ignoring case", index.contains(SECOND));
+        assertTrue("not merged yet", !index.contains(THIRD));
+        index.add(THIRD);
+        index.add(THIRD);
+        assertTrue("added", index.contains(THIRD));
+        index.close();
+        assertEquals("one record per digest", 48L, file.length());
+
+        // a torn record at the end is dropped
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(40);
+        randomAccessFile.close();
+
+        index = new DedupIndex(file, legacyFile, 0);
+        assertEquals("reloaded", 2, index.size());
+        assertTrue("reloaded", index.contains(SECOND));
+        assertTrue("torn record", !index.contains(THIRD));
+        index.close();
+
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+
+    @Test
+    public void testInterruptedMigrationIsRedone() throws IOException {
+        File dir = new File("testdata/dedup");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        File file = new File(dir, "messages_completed.bin");
+        File legacyFile = new File(dir, "messages_completed.txt");
+
+        PrintWriter printWriter = new PrintWriter(legacyFile);
+        printWriter.println(FIRST);
+        printWriter.println(SECOND);
+        printWriter.close();
+        // what a crash in the middle of a migration leaves behind
+        RandomAccessFile randomAccessFile = new RandomAccessFile(new File(dir, "messages_completed.bin.tmp"), "rw");
+        randomAccessFile.setLength(20);
+        randomAccessFile.close();
+
+        DedupIndex index = new DedupIndex(file, legacyFile, 0);
+        assertEquals("migrated again", 2, index.size());
+        assertTrue("migrated", index.contains(SECOND));
+        index.close();
+        assertEquals("migrated file", 32L, file.length());
+        assertTrue("text file removed", !legacyFile.exists());
+        assertTrue("temporary file renamed", !new File(dir, "messages_completed.bin.tmp").exists());
+
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+}
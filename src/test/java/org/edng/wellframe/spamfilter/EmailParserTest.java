@@ -0,0 +1,80 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.EmailParser;
+import org.junit.Test;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class EmailParserTest {
+
+    @Test
+    public void testBareBody() {
+        EmailParser emailParser = new EmailParser();
+        String body = "Humpty Dumpty sat on a wall";
+        assertEquals("unchanged", body, emailParser.getBody(body));
+    }
+
+    @Test
+    public void testCrlfHeaders() {
+        EmailParser emailParser = new EmailParser();
+        String message = "From: humpty@example.com\r\nSubject: wall\r\n\r\nHumpty Dumpty sat on a wall";
+        assertEquals("body", "Humpty Dumpty sat on a wall", emailParser.getBody(message));
+    }
+
+    @Test
+    public void testQuotedPrintable() {
+        EmailParser emailParser = new EmailParser();
+        String message = "From: humpty@example.com\r\n"
+                + "Content-Type: text/plain; charset=ISO-8859-1\r\n"
+                + "Content-Transfer-Encoding: quoted-printable\r\n"
+                + "\r\n"
+                + "Humpty Dumpty sat on a w=\r\nall, caf=E9";
+        assertEquals("decoded", "Humpty Dumpty sat on a wall, caf\u00E9", emailParser.getBody(message));
+    }
+
+    @Test
+    public void testNonAsciiString() {
+        EmailParser emailParser = new EmailParser();
+        String text = "Humpty Dumpty sat on a wall, caf\u00E9 \u4E2D\u6587";
+        String message = "From: humpty@example.com\r\n\r\n" + text;
+        assertEquals("no charset", text, emailParser.getBody(message));
+        message = "From: humpty@example.com\r\n"
+                + "Content-Type: text/plain; charset=ISO-8859-1\r\n"
+                + "\r\n"
+                + "caf\u00E9";
+        assertEquals("already decoded", "caf\u00E9", emailParser.getBody(message));
+    }
+
+    @Test
+    public void testMultipartSkipsAttachments() {
+        EmailParser emailParser = new EmailParser();
+        String message = "From: humpty@example.com\r\n"
+                + "MIME-Version: 1.0\r\n"
+                + "Content-Type: multipart/mixed; boundary=\"outer\"\r\n"
+                + "\r\n"
+                + "--outer\r\n"
+                + "Content-Type: multipart/alternative; boundary=\"inner\"\r\n"
+                + "\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/html; charset=UTF-8\r\n"
+                + "\r\n"
+                + "<p>Humpty Dumpty in html</p>\r\n"
+                + "--inner\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\n"
+                + "Content-Transfer-Encoding: base64\r\n"
+                + "\r\n"
+                // "Humpty Dumpty sat on a wall"
+                + "SHVtcHR5IER1bXB0eSBzYXQgb24gYSB3YWxs\r\n"
+                + "--inner--\r\n"
+                + "--outer\r\n"
+                + "Content-Type: text/plain; name=\"notes.txt\"\r\n"
+                + "Content-Disposition: attachment; filename=\"notes.txt\"\r\n"
+                + "\r\n"
+                + "all the king's horses\r\n"
+                + "--outer--\r\n";
+        String body = emailParser.getBody(message);
+        assertEquals("plain text alternative only", "Humpty Dumpty sat on a wall", body);
+        assertTrue("no attachment", !body.contains("horses"));
+    }
+}
@@ -0,0 +1,75 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.HashedTokenStore;
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.TokenVocabulary;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class HashedTokenStoreTest {
+
+    @Test
+    public void testCountsAndFolding() {
+        TokenVocabulary vocabulary = new TokenVocabulary();
+        vocabulary.add("humpty", 2, 1);
+        vocabulary.add("dumpty", 0, 3);
+
+        HashedTokenStore hashed = new HashedTokenStore(20);
+        hashed.addAll(vocabulary);
+        hashed.add(new StringBuilder("humpty"), 1, 0);
+        assertEquals("buckets", 1 << 20, hashed.size());
+        int humpty = hashed.indexOf("humpty");
+        assertEquals("humpty spam", 3L, hashed.spamCount(humpty));
+        assertEquals("humpty ham", 1L, hashed.hamCount(humpty));
+        assertTrue("unseen token has a bucket", hashed.indexOf("wall") >= 0);
+
+        // one bucket holds everything
+        HashedTokenStore folded = new HashedTokenStore(1);
+        folded.addAll(hashed);
+        long spam = 0;
+        long ham = 0;
+        for (int id = 0; id < folded.size(); id++) {
+            spam += folded.spamCount(id);
+            ham += folded.hamCount(id);
+        }
+        assertEquals("folded spam", 3L, spam);
+        assertEquals("folded ham", 4L, ham);
+
+        try {
+            hashed.addAll(folded);
+            throw new AssertionError("fewer bits can't be spread");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        ModelStats stats = new ModelStats(0, 0, 0, 0, new HashedTokenStore(8));
+        stats.addMessages(true, 1, 2);
+        stats.addTokenCount("humpty", true, 1);
+        stats.addTokenCount("dumpty", true, 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelFile.write(stats, 7, out);
+        assertEquals("no strings", 64 + 16 * 256, out.size());
+        ModelFile modelFile = ModelFile.open(ByteBuffer.wrap(out.toByteArray()));
+        ModelStats loaded = modelFile.getStats();
+        assertEquals("sequence", 7L, modelFile.getSequence());
+        assertEquals("totalSpamTokens", 2L, loaded.getTotalSpamTokens());
+        assertTrue("hashed", loaded.getTokens() instanceof HashedTokenStore);
+
+        ModelStats next = loaded.copy();
+        next.addTokenCount("humpty", true, 1);
+        int humpty = loaded.getTokens().indexOf("humpty");
+        assertEquals("copy should be updated", stats.getTokens().spamCount(humpty) + 1, next.getTokens().spamCount(humpty));
+        assertEquals("original should be unchanged", stats.getTokens().spamCount(humpty), loaded.getTokens().spamCount(humpty));
+    }
+}
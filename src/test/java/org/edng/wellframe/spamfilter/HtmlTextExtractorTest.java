@@ -0,0 +1,40 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.HtmlTextExtractor;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class HtmlTextExtractorTest {
+
+    @Test
+    public void testPlainTextPassesThrough() {
+        HtmlTextExtractor htmlTextExtractor = new HtmlTextExtractor();
+        String text = "Humpty Dumpty sat on a wall, 3 < 4 and 5 > 2";
+        assertTrue("no markup", !HtmlTextExtractor.hasMarkup(text));
+        assertEquals("unchanged", text, htmlTextExtractor.getTextByHtml(text));
+    }
+
+    @Test
+    public void testHtml() {
+        HtmlTextExtractor htmlTextExtractor = new HtmlTextExtractor();
+        String html = "<html><head><title>Offer</title><style>p { color: red }</style></head>"
+                + "<body><p>Humpty Dumpty sat on a wall.</p></body></html>";
+        assertTrue("markup", HtmlTextExtractor.hasMarkup(html));
+        String text = htmlTextExtractor.getTextByHtml(html);
+        assertTrue("text extracted: " + text, text.contains("Humpty Dumpty sat on a wall."));
+        assertTrue("no tags or styles: " + text, !text.contains("<") && !text.contains("color"));
+    }
+
+    @Test
+    public void testDeadlineFallsBackToPlainText() {
+        HtmlTextExtractor htmlTextExtractor = new HtmlTextExtractor();
+        String html = "<html><head><title>Offer</title><style>p { color: red }</style></head>"
+                + "<body><p>Humpty Dumpty sat on a wall.</p></body></html>";
+        // already passed once the HTML is parsed
+        ReflectionTestUtils.setField(htmlTextExtractor, "maxMillis", -1L);
+        assertEquals("plain Jsoup text", "Offer Humpty Dumpty sat on a wall.", htmlTextExtractor.getTextByHtml(html));
+    }
+}
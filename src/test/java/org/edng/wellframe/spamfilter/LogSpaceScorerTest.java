@@ -0,0 +1,134 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.LogSpaceScorer;
+import org.edng.wellframe.spamfilter.tool.Score;
+import org.edng.wellframe.spamfilter.tool.TermFilter;
+import org.edng.wellframe.spamfilter.tool.TokenVocabulary;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class LogSpaceScorerTest {
+
+    private static LogSpaceScorer scorer() {
+        return scorer(1000, 1000);
+    }
+
+    private static LogSpaceScorer scorer(long totalSpamTokens, long totalHamTokens) {
+        TokenVocabulary tokens = new TokenVocabulary();
+        tokens.add("viagra", 100, 0);
+        tokens.add("winner", 50, 1);
+        tokens.add("meeting", 0, 80);
+        tokens.add("hello", 20, 20);
+        return new LogSpaceScorer(10, 10, totalSpamTokens, totalHamTokens, tokens);
+    }
+
+    private static TokenVocabulary vocabulary() {
+        TokenVocabulary tokens = new TokenVocabulary();
+        tokens.add("cheap", 4, 1);
+        tokens.add("pills", 3, 0);
+        tokens.add("lunch", 1, 3);
+        tokens.add("today", 2, 2);
+        return tokens;
+    }
+
+    /**
+     * The multiplicative naive Bayes the filter used before scoring in log
+     * space, with a 0.5 prior when no messages have been merged.
+     */
+    private static double multiplicative(long totalSpam, long totalHam, long totalSpamTokens, long totalHamTokens,
+                                         TokenVocabulary tokens, String message) {
+        double spamPrior = totalSpam + totalHam > 0 ? (double) totalSpam / (totalSpam + totalHam) : 0.5;
+        double hamPrior = totalSpam + totalHam > 0 ? (double) totalHam / (totalSpam + totalHam) : 0.5;
+        double messageIsSpam = 1d;
+        double messageIsHam = 1d;
+        TermFilter termFilter = termFilter(message);
+        while (termFilter.next()) {
+            int id = tokens.indexOf(termFilter);
+            messageIsSpam *= ((id < 0 ? 0 : tokens.spamCount(id)) + 1d) / (totalSpamTokens + 1d);
+            messageIsHam *= ((id < 0 ? 0 : tokens.hamCount(id)) + 1d) / (totalHamTokens + 1d);
+        }
+        return spamPrior * messageIsSpam / (spamPrior * messageIsSpam + hamPrior * messageIsHam);
+    }
+
+    private static TermFilter termFilter(String message) {
+        return new TermFilter(TermFilter.compileStopWords(Collections.<String>emptySet())).reset(message);
+    }
+
+    @Test
+    public void testTopTokens() {
+        LogSpaceScorer scorer = scorer();
+        // the same strong token counts once, the neutral one is left out
+        Score score = scorer.discriminativeScore(termFilter("viagra viagra viagra hello meeting"), 2, 0, 0);
+        assertEquals("all read", 5, score.getTokensExamined());
+        assertTrue("no early exit", !score.isEarlyExit());
+        float expected = scorer.probability(scorer.logRatio("viagra") + scorer.logRatio("meeting"));
+        assertEquals("viagra and meeting", expected, score.getProbability());
+    }
+
+    @Test
+    public void testNoTopTokens() {
+        LogSpaceScorer scorer = scorer();
+        Score score = scorer.discriminativeScore(termFilter("viagra viagra hello meeting"), 0, Math.log(0.99 / 0.01), 0);
+        assertEquals("every token read", 4, score.getTokensExamined());
+        assertEquals("full score", scorer.spamProbability(termFilter("viagra viagra hello meeting")),
+                score.getProbability());
+    }
+
+    @Test
+    public void testEarlyExit() {
+        LogSpaceScorer scorer = scorer();
+        StringBuilder message = new StringBuilder("viagra winner");
+        for (int i = 0; i < 1000; i++) {
+            message.append(" hello");
+        }
+        Score score = scorer.discriminativeScore(termFilter(message.toString()), 2, Math.log(0.99 / 0.01), 0);
+        assertTrue("early exit", score.isEarlyExit());
+        assertEquals("stopped after the evidence", 2, score.getTokensExamined());
+        assertTrue("spam", score.getProbability() > 0.99f);
+
+        score = scorer.discriminativeScore(termFilter(message.toString()), 5, 0, 10);
+        assertTrue("token limit", score.isEarlyExit());
+        assertEquals("limited", 10, score.getTokensExamined());
+    }
+
+    @Test
+    public void testRepeatedUnknownTokenCountsOnce() {
+        // fewer spam tokens so that an unknown token leans towards spam
+        LogSpaceScorer scorer = scorer(100, 1000);
+        assertTrue("unknown token has weight", scorer.logRatio("zebra") > 0);
+        Score once = scorer.discriminativeScore(termFilter("zebra meeting"), 3, 0, 0);
+        Score repeated = scorer.discriminativeScore(termFilter("zebra zebra zebra zebra meeting"), 3, 0, 0);
+        float expected = scorer.probability(scorer.logRatio("zebra") + scorer.logRatio("meeting"));
+        assertEquals("single unknown token", expected, once.getProbability());
+        assertEquals("repeated unknown token", expected, repeated.getProbability());
+
+        // distinct unknown tokens still count separately
+        Score distinct = scorer.discriminativeScore(termFilter("zebra yak meeting"), 3, 0, 0);
+        expected = scorer.probability(scorer.logRatio("zebra") + scorer.logRatio("yak") + scorer.logRatio("meeting"));
+        assertEquals("distinct unknown tokens", expected, distinct.getProbability());
+    }
+
+    @Test
+    public void testMatchesMultiplicative() {
+        TokenVocabulary tokens = vocabulary();
+        String[] messages = {"cheap pills today", "lunch today", "cheap lunch unseen", "pills pills pills", "unseen", ""};
+        long[][] totals = {{3, 2, 10, 6}, {1, 4, 10, 6}, {0, 0, 10, 6}};
+        for (long[] t : totals) {
+            LogSpaceScorer scorer = new LogSpaceScorer(t[0], t[1], t[2], t[3], tokens);
+            for (String message : messages) {
+                double expected = multiplicative(t[0], t[1], t[2], t[3], tokens, message);
+                float actual = scorer.spamProbability(termFilter(message));
+                assertTrue("'" + message + "' with " + t[0] + " spam and " + t[1] + " ham: expected "
+                        + expected + " but was " + actual, Math.abs(expected - actual) < 1e-6);
+            }
+        }
+
+        // no messages and no tokens, so no evidence either way
+        LogSpaceScorer empty = new LogSpaceScorer(0, 0, 0, 0, new TokenVocabulary());
+        assertEquals("empty model", 0.5f, empty.spamProbability(termFilter("cheap pills")));
+    }
+}
@@ -0,0 +1,82 @@
+package org.edng.wellframe.spamfilter;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.edng.wellframe.spamfilter.tool.ModelBuilder;
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.TokenStore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.test.context.ContextConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+
+import javax.annotation.Resource;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+@RunWith(SpringJUnit4ClassRunner.class)
+@ContextConfiguration(classes = {ApplicationConfiguration.class})
+public class ModelBuilderTest {
+    @Resource
+    private ModelBuilder modelBuilder;
+
+    private static final List<File> NONE = Collections.emptyList();
+
+    @Test
+    public void testSpilledRunsMatchSingleRun() throws Exception {
+        File dir = new File("testdata/builder");
+        FileUtils.deleteDirectory(dir);
+        for (int i = 0; i < 40; i++) {
+            FileUtils.writeStringToFile(new File(dir, "spam/" + i + ".txt"), "Humpty Dumpty sat on wall " + i + " word" + (i % 7));
+            FileUtils.writeStringToFile(new File(dir, "ham/" + i + ".txt"), "All the king's horses " + i + " word" + (i % 5));
+        }
+        List<File> spam = Collections.singletonList(new File(dir, "spam"));
+        List<File> ham = Collections.singletonList(new File(dir, "ham"));
+
+        try {
+            modelBuilder.setRunTokens(1000000);
+            modelBuilder.build(new File(dir, "single.bin"), spam, ham, NONE, System.out);
+
+            // a few tokens per run and two runs per merge forces several merge passes
+            modelBuilder.setRunTokens(4);
+            modelBuilder.setFanIn(2);
+            modelBuilder.build(new File(dir, "spilled.bin"), spam, ham, NONE, System.out);
+
+            // the same corpus built in two halves and combined
+            File spamModel = new File(dir, "spam.bin");
+            File hamModel = new File(dir, "ham.bin");
+            modelBuilder.build(spamModel, spam, NONE, NONE, System.out);
+            modelBuilder.build(hamModel, NONE, ham, NONE, System.out);
+            modelBuilder.build(new File(dir, "combined.bin"), NONE, NONE, Arrays.asList(spamModel, hamModel), System.out);
+        } finally {
+            modelBuilder.setRunTokens(2000000);
+            modelBuilder.setFanIn(64);
+        }
+
+        ModelStats single = ModelFile.open(new File(dir, "single.bin")).getStats();
+        assertEquals("spam messages", 40L, single.getTotalSpam());
+        assertSameModel(single, ModelFile.open(new File(dir, "spilled.bin")).getStats());
+        assertSameModel(single, ModelFile.open(new File(dir, "combined.bin")).getStats());
+
+        FileUtils.deleteDirectory(dir);
+    }
+
+    private static void assertSameModel(ModelStats expected, ModelStats actual) {
+        assertEquals("total spam", expected.getTotalSpam(), actual.getTotalSpam());
+        assertEquals("total ham tokens", expected.getTotalHamTokens(), actual.getTotalHamTokens());
+        TokenStore expectedTokens = expected.getTokens();
+        TokenStore actualTokens = actual.getTokens();
+        assertEquals("tokens", expectedTokens.size(), actualTokens.size());
+        for (int id = 0; id < expectedTokens.size(); id++) {
+            String token = expectedTokens.token(id);
+            int other = actualTokens.indexOf(token);
+            assertEquals(token + " spam", expectedTokens.spamCount(id), actualTokens.spamCount(other));
+            assertEquals(token + " ham", expectedTokens.hamCount(id), actualTokens.hamCount(other));
+        }
+    }
+}
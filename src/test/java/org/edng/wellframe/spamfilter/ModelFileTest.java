@@ -0,0 +1,87 @@
+package org.edng.wellframe.spamfilter;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.TokenStore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class ModelFileTest {
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        ModelStats stats = new ModelStats();
+        stats.addMessages(true, 2, 10);
+        stats.addMessages(false, 1, 4);
+        stats.addTokenCount("humpty", true, 2);
+        stats.addTokenCount("humpty", false, 1);
+        stats.addTokenCount("caf\u00e9", false, 3);
+        stats.addTokenCount("\u4e2d\u6587", true, 5);
+        stats.addTokenCount("\ud83d\ude00", true, 7);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelFile.write(stats, 42, out);
+        ModelFile modelFile = ModelFile.open(ByteBuffer.wrap(out.toByteArray()));
+
+        ModelStats loaded = modelFile.getStats();
+        assertEquals("sequence", 42L, modelFile.getSequence());
+        assertEquals("totalSpam", 2L, loaded.getTotalSpam());
+        assertEquals("totalHamTokens", 4L, loaded.getTotalHamTokens());
+
+        TokenStore tokens = loaded.getTokens();
+        assertEquals("size", 4, tokens.size());
+        int humpty = tokens.indexOf(new StringBuilder("humpty"));
+        assertEquals("humpty spam", 2L, tokens.spamCount(humpty));
+        assertEquals("humpty ham", 1L, tokens.hamCount(humpty));
+        assertEquals("cafe ham", 3L, tokens.hamCount(tokens.indexOf("caf\u00e9")));
+        assertEquals("cjk spam", 5L, tokens.spamCount(tokens.indexOf("\u4e2d\u6587")));
+        assertEquals("emoji spam", 7L, tokens.spamCount(tokens.indexOf("\ud83d\ude00")));
+        assertEquals("token text", "caf\u00e9", tokens.token(tokens.indexOf("caf\u00e9")));
+        assertEquals("prefix should not match", -1, tokens.indexOf("hump"));
+        assertEquals("missing token", -1, tokens.indexOf("wall"));
+    }
+
+    @Test
+    public void testCopyOnWrite() throws IOException {
+        ModelStats stats = new ModelStats();
+        stats.addTokenCount("humpty", true, 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelFile.write(stats, 1, out);
+        ModelStats loaded = ModelFile.open(ByteBuffer.wrap(out.toByteArray())).getStats();
+
+        ModelStats next = loaded.copy();
+        next.addTokenCount("humpty", true, 1);
+        next.addTokenCount("dumpty", false, 1);
+        assertEquals("copy should be updated", 2L, next.getTokens().spamCount(next.getTokens().indexOf("humpty")));
+        assertEquals("original should be unchanged", 1L, loaded.getTokens().spamCount(loaded.getTokens().indexOf("humpty")));
+        assertEquals("original size", 1, loaded.getTokens().size());
+    }
+
+    @Test
+    public void testOversizedFile() throws IOException {
+        File dir = new File("testdata/modelfile");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+        File file = new File(dir, "model.bin");
+        // sparse, so it takes no space
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.setLength(Integer.MAX_VALUE + 1L);
+        randomAccessFile.close();
+        try {
+            ModelFile.open(file);
+            assertTrue("should not open", false);
+        } catch (IOException e) {
+            assertTrue("reason: " + e.getMessage(), e.getMessage().contains("mapped"));
+        }
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+}
@@ -2,16 +2,33 @@ package org.edng.wellframe.spamfilter;
 
 import org.apache.commons.io.FileUtils;
 import org.edng.wellframe.spamfilter.configuration.ApplicationConfiguration;
+import org.edng.wellframe.spamfilter.tool.BulkIngester;
 import org.edng.wellframe.spamfilter.tool.FileHandler;
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
 import org.edng.wellframe.spamfilter.tool.NaiveBayesSpamFilter;
+import org.edng.wellframe.spamfilter.tool.TrainingLog;
+import org.edng.wellframe.spamfilter.tool.TrainingQueue;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.test.context.ContextConfiguration;
 import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import javax.annotation.Resource;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.springframework.test.util.AssertionErrors.assertEquals;
 import static org.springframework.test.util.AssertionErrors.assertTrue;
@@ -27,6 +44,10 @@ public class NaiveBayesSpamFilterTest {
     private NaiveBayesSpamFilter naiveBayesSpamFilter;
     @Resource
     private FileHandler fileHandler;
+    @Resource
+    private BulkIngester bulkIngester;
+    @Resource
+    private TrainingQueue trainingQueue;
 
     @Test
     public void testSpamProbability() throws IOException {
@@ -54,4 +75,344 @@ public class NaiveBayesSpamFilterTest {
 
         FileUtils.deleteDirectory(new File(dir));
     }
+
+    @Test
+    public void testRecoveryFromTrainingLog() throws IOException {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+
+        naiveBayesSpamFilter.train("Humpty Dumpty sat on a wall", true, false);
+        naiveBayesSpamFilter.train("All the king's horses and all the king's men", false, false);
+        naiveBayesSpamFilter.mergeStats();
+        float before = naiveBayesSpamFilter.spamProbability("humpty dumpty");
+
+        // reload without a checkpoint, the merged messages come back from the log
+        naiveBayesSpamFilter.loadStats();
+        float after = naiveBayesSpamFilter.spamProbability("humpty dumpty");
+        assertEquals("probability after replay", before, after);
+        assertEquals("spam messages after replay", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testClearStatsSurvivesReload() throws IOException {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.train("Humpty Dumpty sat on a wall", true, false);
+        naiveBayesSpamFilter.train("All the king's horses and all the king's men", false, false);
+        naiveBayesSpamFilter.mergeStats();
+
+        // the cleared records must not come back from the training log
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.loadStats();
+        assertEquals("spam messages after clear and reload", 0L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertEquals("ham messages after clear and reload", 0L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHam());
+
+        // and records written after the clear must
+        naiveBayesSpamFilter.train("Humpty Dumpty had a great fall", true, false);
+        naiveBayesSpamFilter.mergeStats();
+        naiveBayesSpamFilter.loadStats();
+        assertEquals("spam messages trained after clear", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testMergeDeltaPublishesWhenCommitFails() throws IOException {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.train("Humpty Dumpty sat on a wall", true, false);
+        naiveBayesSpamFilter.mergeStats();
+
+        // swap in a log whose commits fail until told otherwise
+        final AtomicBoolean failCommit = new AtomicBoolean(true);
+        TrainingLog failingLog = new TrainingLog(fileHandler.getStatsDirectory(), 100, 60000) {
+            @Override
+            public synchronized void commit() throws IOException {
+                if (failCommit.get()) {
+                    throw new IOException("disk full");
+                }
+                super.commit();
+            }
+        };
+        ((TrainingLog) ReflectionTestUtils.getField(naiveBayesSpamFilter, "trainingLog")).close();
+        failingLog.open(naiveBayesSpamFilter.getSnapshot().getSequence() + 1);
+        ReflectionTestUtils.setField(naiveBayesSpamFilter, "trainingLog", failingLog);
+
+        ModelStats delta = new ModelStats();
+        delta.addMessages(true, 1, 2);
+        delta.addTokenCount("great", true, 1);
+        delta.addTokenCount("fall", true, 1);
+        String md5 = fileHandler.generateMd5Filename("Great fall");
+        try {
+            try {
+                naiveBayesSpamFilter.mergeDelta(delta, Arrays.asList(md5));
+                assertTrue("commit should fail", false);
+            } catch (IOException e) {
+                // expected
+            }
+            assertTrue("not marked merged", !fileHandler.isMessageMerged(md5));
+            // the snapshot has to match the sequence it claims, or a checkpoint loses the delta
+            assertEquals("published with the delta", 2L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        } finally {
+            failCommit.set(false);
+        }
+        naiveBayesSpamFilter.checkpoint();
+        naiveBayesSpamFilter.loadStats();
+        assertEquals("delta saved once", 2L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testBulkIngest() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+
+        FileUtils.writeStringToFile(new File(dir + "/corpus/1.txt"), "Humpty Dumpty sat on a wall");
+        FileUtils.writeStringToFile(new File(dir + "/corpus/a/2.txt"), "Humpty Dumpty had a great fall");
+        FileUtils.writeStringToFile(new File(dir + "/corpus/a/b/3.txt"), "Humpty Dumpty sat on a wall");
+
+        long trained = bulkIngester.ingest(new File(dir + "/corpus"), true, 2, System.out);
+        assertEquals("duplicate skipped", 2L, trained);
+        assertEquals("spam messages", 2L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertTrue("merged", fileHandler.isMessageMerged(fileHandler.generateMd5Filename("Humpty Dumpty had a great fall")));
+
+        // everything is merged already, so nothing is appended to the log
+        long sequence = naiveBayesSpamFilter.getSnapshot().getSequence();
+        assertEquals("second run", 0L, bulkIngester.ingest(new File(dir + "/corpus"), true, 2, System.out));
+        assertEquals("no empty record", sequence, naiveBayesSpamFilter.getSnapshot().getSequence());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testTrainingQueue() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+
+        trainingQueue.submit("Humpty Dumpty sat on a wall", true);
+        trainingQueue.submit("Humpty Dumpty sat on a wall", true);
+        long ackId = trainingQueue.submit("All the king's horses and all the king's men", false);
+        assertTrue("acknowledged", ackId > 0);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!trainingQueue.isMerged(ackId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("merged in the background", trainingQueue.isMerged(ackId));
+        assertEquals("duplicate skipped", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertEquals("ham messages", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHam());
+        assertTrue("marked merged", fileHandler.isMessageMerged(fileHandler.generateMd5Filename("Humpty Dumpty sat on a wall")));
+        assertEquals("queue drained", 0, trainingQueue.status().get("depth"));
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testTrainingQueueReportsFailedBatch() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+
+        // a message the merger can't parse fails its batch
+        long failedAckId = trainingQueue.submit(null, true);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!trainingQueue.isFailed(failedAckId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("reported as failed", trainingQueue.isFailed(failedAckId));
+        assertTrue("not reported as merged", !trainingQueue.isMerged(failedAckId));
+
+        long ackId = trainingQueue.submit("All the king's horses and all the king's men", false);
+        while (!trainingQueue.isMerged(ackId) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("later batch merged", trainingQueue.isMerged(ackId));
+        assertTrue("failed batch still not merged", !trainingQueue.isMerged(failedAckId));
+        assertEquals("ham messages", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHam());
+        assertEquals("nothing from the failed batch", 0L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testDirectTraining() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.setDirectTraining(true);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 200; i++) {
+                final String message = "Humpty Dumpty sat on wall number " + i;
+                final boolean isSpam = i % 2 == 0;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        naiveBayesSpamFilter.train(message, isSpam, false);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            // already trained
+            naiveBayesSpamFilter.train("Humpty Dumpty sat on wall number 0", true, false);
+            naiveBayesSpamFilter.publishPending();
+        } finally {
+            pool.shutdown();
+            naiveBayesSpamFilter.setDirectTraining(false);
+        }
+
+        assertEquals("spam messages", 100L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertEquals("ham messages", 100L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHam());
+        assertEquals("nothing pending", 0L, naiveBayesSpamFilter.getPendingMessages());
+        assertEquals("no per-message files", 0, fileHandler.listMessages(true).length + fileHandler.listMessages(false).length);
+
+        // reload without a checkpoint, the directly trained messages come back from the log
+        naiveBayesSpamFilter.loadStats();
+        assertEquals("spam messages after replay", 100L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertEquals("ham tokens after replay", 600L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHamTokens());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testDirectTrainingCountsConcurrentDuplicatesOnce() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        naiveBayesSpamFilter.setDirectTraining(true);
+        final String message = "Humpty Dumpty sat on a wall";
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < 64; i++) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        naiveBayesSpamFilter.train(message, true, false);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            naiveBayesSpamFilter.publishPending();
+        } finally {
+            pool.shutdown();
+            naiveBayesSpamFilter.setDirectTraining(false);
+        }
+
+        assertEquals("spam messages", 1L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertTrue("marked merged once committed",
+                fileHandler.isMessageMerged(fileHandler.generateMd5Filename(message)));
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testParallelMerge() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        for (int i = 0; i < 600; i++) {
+            naiveBayesSpamFilter.train("Humpty Dumpty sat on wall number " + i, i % 3 == 0, false);
+        }
+        // a message whose files were left behind after it was marked merged
+        String stale = fileHandler.generateMd5Filename("Humpty Dumpty sat on wall number 1");
+        fileHandler.markMessageMerged(stale);
+        naiveBayesSpamFilter.mergeStats();
+
+        assertEquals("spam messages", 200L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertEquals("ham messages", 399L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHam());
+        assertEquals("ham tokens", 399L * 6, naiveBayesSpamFilter.getSnapshot().getStats().getTotalHamTokens());
+        assertEquals("pending archived", 0, fileHandler.listMessages(true).length + fileHandler.listMessages(false).length);
+        assertTrue("stale message archived", fileHandler.loadArchivedMessage(stale, false) != null);
+        assertTrue("marked merged", fileHandler.isMessageMerged(fileHandler.generateMd5Filename("Humpty Dumpty sat on wall number 599")));
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
+
+    @Test
+    public void testReloadReplacedModel() throws Exception {
+        String dir = "testdata";
+        FileUtils.deleteDirectory(new File(dir));
+        fileHandler.setMessagesDirectory(dir + "/messages");
+        fileHandler.setStatsDirectory(dir + "/stats");
+
+        naiveBayesSpamFilter.clearStats();
+        assertTrue("own model file should not be reloaded", !naiveBayesSpamFilter.reloadStats(false));
+
+        // a model built elsewhere is moved over the model file
+        ModelStats built = new ModelStats();
+        built.addMessages(true, 5, 20);
+        built.addTokenCount("humpty", true, 5);
+        File model = new File(dir + "/stats", NaiveBayesSpamFilter.MODEL_FILE);
+        File temp = new File(dir + "/stats", "built.bin");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            ModelFile.write(built, 0, out);
+        } finally {
+            out.close();
+        }
+        Files.move(temp.toPath(), model.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        long generation = naiveBayesSpamFilter.getSnapshot().getGeneration();
+        assertTrue("replaced model file should be reloaded", naiveBayesSpamFilter.reloadStats(false));
+        assertEquals("spam messages after reload", 5L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+        assertTrue("generation should advance", naiveBayesSpamFilter.getSnapshot().getGeneration() > generation);
+        assertTrue("unchanged model file should not be reloaded", !naiveBayesSpamFilter.reloadStats(false));
+
+        // a truncated model is refused and the current one stays in use
+        byte[] bytes = Files.readAllBytes(model.toPath());
+        Files.write(temp.toPath(), Arrays.copyOf(bytes, bytes.length / 2));
+        Files.move(temp.toPath(), model.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        try {
+            naiveBayesSpamFilter.reloadStats(false);
+            assertTrue("truncated model should be refused", false);
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals("spam messages kept", 5L, naiveBayesSpamFilter.getSnapshot().getStats().getTotalSpam());
+
+        FileUtils.deleteDirectory(new File(dir));
+    }
 }
@@ -0,0 +1,111 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.OffHeapTokenStore;
+import org.edng.wellframe.spamfilter.tool.TokenStore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class OffHeapTokenStoreTest {
+
+    @Test
+    public void testAddAndLookup() {
+        OffHeapTokenStore store = new OffHeapTokenStore();
+        int humpty = store.add("humpty", 1, 0);
+        store.add("caf\u00e9", 0, 3);
+        store.add("\ud83d\ude00", 7, 0);
+        assertEquals("same token should keep its id", humpty, store.add(new StringBuilder("humpty"), 2, 3));
+        assertEquals("spam count", 3L, store.spamCount(humpty));
+        assertEquals("ham count", 3L, store.hamCount(humpty));
+        assertEquals("lookup by CharSequence", humpty, store.indexOf(new StringBuilder("humpty")));
+        assertEquals("cafe ham", 3L, store.hamCount(store.indexOf("caf\u00e9")));
+        assertEquals("emoji spam", 7L, store.spamCount(store.indexOf("\ud83d\ude00")));
+        assertEquals("token text", "caf\u00e9", store.token(store.indexOf("caf\u00e9")));
+        assertEquals("prefix should not match", -1, store.indexOf("hump"));
+        assertEquals("missing token", -1, store.indexOf("wall"));
+        assertEquals("size", 3, store.size());
+        assertEquals("nothing on the heap", 0L, store.heapBytes());
+    }
+
+    @Test
+    public void testGrowthAndCopy() {
+        OffHeapTokenStore store = new OffHeapTokenStore();
+        for (int i = 0; i < 10000; i++) {
+            store.add("token" + i, i, 1);
+        }
+        OffHeapTokenStore copy = store.copy();
+        copy.add("token0", 5, 0);
+        copy.add("wall", 1, 0);
+        assertEquals("original size", 10000, store.size());
+        assertEquals("original should not change", 0L, store.spamCount(store.indexOf("token0")));
+        assertEquals("original should not see new tokens", -1, store.indexOf("wall"));
+        assertEquals("copy should be updated", 5L, copy.spamCount(copy.indexOf("token0")));
+        for (int i = 0; i < 10000; i++) {
+            int id = copy.indexOf("token" + i);
+            assertTrue("token" + i + " should be found", id >= 0);
+            assertEquals("spam count of token" + i, i == 0 ? 5L : (long) i, copy.spamCount(id));
+        }
+    }
+
+    @Test
+    public void testCopiesShareStrings() {
+        OffHeapTokenStore store = new OffHeapTokenStore();
+        store.add("humpty", 1, 0);
+        store.add("dumpty", 2, 0);
+        OffHeapTokenStore copy = store.copy();
+
+        // counts only, the strings and slots stay shared
+        copy.add("humpty", 5, 0);
+        assertEquals("original count", 1L, store.spamCount(store.indexOf("humpty")));
+        assertEquals("copy count", 6L, copy.spamCount(copy.indexOf("humpty")));
+
+        // each side copies the shared sections before adding a token
+        copy.add("wall", 0, 1);
+        store.add("fall", 0, 3);
+        assertEquals("original should not see the copy's token", -1, store.indexOf("wall"));
+        assertEquals("copy should not see the original's token", -1, copy.indexOf("fall"));
+        assertEquals("copy token", "wall", copy.token(copy.indexOf("wall")));
+        assertEquals("original token", "fall", store.token(store.indexOf("fall")));
+        assertEquals("copy keeps old tokens", "dumpty", copy.token(copy.indexOf("dumpty")));
+    }
+
+    @Test
+    public void testModelFileRoundTrip() throws IOException {
+        ModelStats stats = new ModelStats();
+        stats.addMessages(true, 2, 10);
+        stats.addMessages(false, 1, 4);
+        for (int i = 0; i < 100; i++) {
+            stats.addTokenCount("token" + i, i % 2 == 0, i + 1);
+        }
+        stats.addTokenCount("\u4e2d\u6587", true, 5);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelFile.write(stats, 7, out);
+        TokenStore mapped = ModelFile.open(ByteBuffer.wrap(out.toByteArray())).getStats().getTokens();
+
+        // copied from the mapped sections, updated, then saved straight from the buffers
+        OffHeapTokenStore store = OffHeapTokenStore.copyOf(mapped);
+        store.add("\u4e2d\u6587", 1, 0);
+        store.add("wall", 0, 2);
+        out.reset();
+        ModelFile.write(new ModelStats(2, 1, 10, 4, store), 8, out);
+        ModelFile reopened = ModelFile.open(ByteBuffer.wrap(out.toByteArray()));
+
+        TokenStore tokens = reopened.getStats().getTokens();
+        assertEquals("sequence", 8L, reopened.getSequence());
+        assertEquals("totalSpamTokens", 10L, reopened.getStats().getTotalSpamTokens());
+        assertEquals("size", 102, tokens.size());
+        assertEquals("cjk spam", 6L, tokens.spamCount(tokens.indexOf("\u4e2d\u6587")));
+        assertEquals("new token ham", 2L, tokens.hamCount(tokens.indexOf("wall")));
+        for (int i = 0; i < 100; i++) {
+            int id = tokens.indexOf("token" + i);
+            assertEquals("count of token" + i, (long) i + 1, tokens.spamCount(id) + tokens.hamCount(id));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.LogSpaceScorer;
+import org.edng.wellframe.spamfilter.tool.ModelFile;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.PrunedTokenStore;
+import org.edng.wellframe.spamfilter.tool.TokenStore;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class PrunedTokenStoreTest {
+
+    @Test
+    public void testPruning() {
+        PrunedTokenStore store = new PrunedTokenStore(4, 4, 12);
+        store.add("humpty", 10, 0);
+        store.add("dumpty", 0, 8);
+        store.add("wall", 5, 1);
+        store.add("fall", 3, 3);
+        for (int i = 0; i < 100; i++) {
+            store.add("random" + i, 1, 0);
+        }
+        assertTrue("bounded: " + store.size(), store.size() <= 5);
+        int humpty = store.indexOf("humpty");
+        assertEquals("humpty kept", 10L, store.spamCount(humpty));
+        assertEquals("dumpty kept", 8L, store.hamCount(store.indexOf("dumpty")));
+        assertTrue("wall kept", store.indexOf("wall") >= 0);
+        assertEquals("random pruned", -1, store.indexOf("random1"));
+
+        // pruned tokens come back with their history
+        store.add("random1", 1, 0);
+        int random1 = store.indexOf("random1");
+        assertTrue("random1 back", random1 >= 0);
+        assertTrue("estimate carried over", store.spamCount(random1) >= 2);
+    }
+
+    @Test
+    public void testTailScoring() {
+        PrunedTokenStore store = new PrunedTokenStore(1, 4, 12);
+        store.add("humpty", 100, 0);
+        store.add("dumpty", 0, 50);
+        assertEquals("dumpty pruned", -1, store.indexOf("dumpty"));
+        LogSpaceScorer scorer = new LogSpaceScorer(1, 1, 100, 50, store);
+        assertTrue("tail token scored as ham", scorer.logRatio("dumpty") < scorer.logRatio("unseen"));
+        assertTrue("exact token scored as spam", scorer.logRatio("humpty") > 0);
+    }
+
+    @Test
+    public void testWriteAndOpen() throws IOException {
+        PrunedTokenStore store = new PrunedTokenStore(2, 2, 8);
+        ModelStats stats = new ModelStats(1, 1, 20, 20, store);
+        stats.addTokenCount("humpty", true, 9);
+        stats.addTokenCount("dumpty", false, 7);
+        stats.addTokenCount("wall", true, 1);
+        stats.addTokenCount("fall", false, 1);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ModelFile.write(stats, 3, out);
+        ModelStats loaded = ModelFile.open(ByteBuffer.wrap(out.toByteArray())).getStats();
+        assertTrue("pruned", loaded.getTokens() instanceof PrunedTokenStore);
+        PrunedTokenStore tokens = (PrunedTokenStore) loaded.getTokens();
+        assertEquals("topK", 2, tokens.getTopK());
+        assertEquals("exact tokens", stats.getTokens().size(), tokens.size());
+        assertEquals("humpty", 9L, tokens.spamCount(tokens.indexOf("humpty")));
+
+        LogSpaceScorer before = new LogSpaceScorer(1, 1, 20, 20, stats.getTokens());
+        LogSpaceScorer after = new LogSpaceScorer(1, 1, 20, 20, tokens);
+        for (String token : new String[] {"humpty", "dumpty", "wall", "fall"}) {
+            assertEquals(token + " ratio", before.logRatio(token), after.logRatio(token));
+        }
+
+        // the mapped exact tokens are copied on write
+        ModelStats next = loaded.copy();
+        next.addTokenCount("humpty", true, 1);
+        TokenStore nextTokens = next.getTokens();
+        assertEquals("copy updated", 10L, nextTokens.spamCount(nextTokens.indexOf("humpty")));
+        assertEquals("original unchanged", 9L, tokens.spamCount(tokens.indexOf("humpty")));
+    }
+}
@@ -0,0 +1,60 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.ModelSnapshot;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.ResultCache;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class ResultCacheTest {
+
+    private static ModelSnapshot snapshot() {
+        return new ModelSnapshot(new ModelStats(), Collections.<String>emptySet(), 0);
+    }
+
+    @Test
+    public void testNewGenerationMisses() {
+        ResultCache cache = new ResultCache(100);
+        ModelSnapshot first = snapshot();
+        assertEquals("empty cache", null, cache.get("humpty", first));
+        cache.put("humpty", first, 0.9f);
+        assertEquals("hit", 0.9f, cache.get("humpty", first));
+        assertEquals("hits", 1L, cache.getHits());
+        assertEquals("misses", 1L, cache.getMisses());
+
+        // a new model makes the entry stale
+        ModelSnapshot second = snapshot();
+        assertEquals("miss after a new generation", null, cache.get("humpty", second));
+        assertEquals("misses after a new generation", 2L, cache.getMisses());
+        cache.put("humpty", second, 0.1f);
+        assertEquals("hit on the new generation", 0.1f, cache.get("humpty", second));
+        // a late result from the old snapshot doesn't replace the new one
+        cache.put("humpty", first, 0.9f);
+        assertEquals("newer entry kept", 0.1f, cache.get("humpty", second));
+    }
+
+    @Test
+    public void testEviction() {
+        ResultCache cache = new ResultCache(16);
+        ModelSnapshot snapshot = snapshot();
+        for (int i = 0; i < 100; i++) {
+            cache.put("message" + i, snapshot, 0.5f);
+        }
+        assertTrue("bounded: " + cache.size(), cache.size() <= 16);
+        assertEquals("evictions", 100L - cache.size(), cache.getEvictions());
+    }
+
+    @Test
+    public void testSmallSizeStaysEnabled() {
+        ResultCache cache = new ResultCache(5);
+        assertTrue("fewer entries than segments", cache.isEnabled());
+        ModelSnapshot snapshot = snapshot();
+        cache.put("humpty", snapshot, 0.9f);
+        assertEquals("hit", 0.9f, cache.get("humpty", snapshot));
+        assertTrue("disabled at 0", !new ResultCache(0).isEnabled());
+    }
+}
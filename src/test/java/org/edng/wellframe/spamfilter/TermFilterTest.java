@@ -0,0 +1,44 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.TermFilter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+public class TermFilterTest {
+
+    private static List<String> tokenize(TermFilter termFilter, String text) {
+        termFilter.reset(text);
+        List<String> tokens = new ArrayList<String>();
+        String token;
+        while ( (token = termFilter.nextToken()) != null ) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    @Test
+    public void testSplitTrimAndLowercase() {
+        TermFilter termFilter = new TermFilter(TermFilter.compileStopWords(new HashSet<String>(Arrays.asList("the", "on"))));
+        assertEquals("tokens",
+                Arrays.asList("humpty", "dumpty", "sat", "a", "wall", "king's", "example.com"),
+                tokenize(termFilter, "Humpty  DUMPTY\tsat on\u00A0a \"wall\"... \n the King's (example.com)"));
+        assertEquals("only punctuation", Arrays.<String>asList(), tokenize(termFilter, " -- !!! "));
+    }
+
+    @Test
+    public void testLongRunOfStopWords() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            text.append("the ");
+        }
+        text.append("wall");
+        TermFilter termFilter = new TermFilter(TermFilter.compileStopWords(new HashSet<String>(Arrays.asList("the"))));
+        assertEquals("tokens", Arrays.asList("wall"), tokenize(termFilter, text.toString()));
+    }
+}
@@ -0,0 +1,37 @@
+package org.edng.wellframe.spamfilter;
+
+import org.edng.wellframe.spamfilter.tool.TokenVocabulary;
+import org.junit.Test;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+import static org.springframework.test.util.AssertionErrors.assertTrue;
+
+public class TokenVocabularyTest {
+
+    @Test
+    public void testAddAndLookup() {
+        TokenVocabulary vocabulary = new TokenVocabulary(4);
+        int humpty = vocabulary.add("humpty", 1, 0);
+        vocabulary.add("dumpty", 0, 1);
+        assertEquals("same token should keep its id", humpty, vocabulary.add("humpty", 2, 3));
+        assertEquals("spam count", 3L, vocabulary.spamCount(humpty));
+        assertEquals("ham count", 3L, vocabulary.hamCount(humpty));
+        assertEquals("lookup by CharSequence", humpty, vocabulary.indexOf(new StringBuilder("humpty")));
+        assertEquals("missing token", -1, vocabulary.indexOf("wall"));
+        assertEquals("size", 2, vocabulary.size());
+    }
+
+    @Test
+    public void testGrowth() {
+        TokenVocabulary vocabulary = new TokenVocabulary(4);
+        for (int i = 0; i < 10000; i++) {
+            vocabulary.add("token" + i, i, 1);
+        }
+        assertEquals("size", 10000, vocabulary.size());
+        for (int i = 0; i < 10000; i++) {
+            int id = vocabulary.indexOf("token" + i);
+            assertTrue("token" + i + " should be found", id >= 0);
+            assertEquals("spam count of token" + i, (long) i, vocabulary.spamCount(id));
+        }
+    }
+}
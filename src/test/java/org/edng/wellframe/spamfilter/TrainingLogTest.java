@@ -0,0 +1,106 @@
+package org.edng.wellframe.spamfilter;
+
+import org.apache.commons.io.FileUtils;
+import org.edng.wellframe.spamfilter.tool.ModelStats;
+import org.edng.wellframe.spamfilter.tool.TrainingLog;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.springframework.test.util.AssertionErrors.assertEquals;
+
+public class TrainingLogTest {
+
+    private static ModelStats delta(String token, boolean isSpam) {
+        ModelStats delta = new ModelStats();
+        delta.addMessages(isSpam, 1, 1);
+        delta.addTokenCount(token, isSpam, 1);
+        return delta;
+    }
+
+    @Test
+    public void testReplayIgnoresTornRecord() throws IOException {
+        File dir = new File("testdata/traininglog");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+
+        TrainingLog trainingLog = new TrainingLog(dir, 100, 1000);
+        trainingLog.open(1);
+        trainingLog.append(1, delta("humpty", true));
+        trainingLog.append(2, delta("dumpty", false));
+        trainingLog.append(3, delta("wall", true));
+        trainingLog.close();
+
+        // chop the last record in half as a crash in the middle of a write would
+        File segment = dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        ModelStats stats = new ModelStats();
+        long sequence = new TrainingLog(dir, 100, 1000).replay(stats, 1);
+        assertEquals("last replayed sequence", 2L, sequence);
+        assertEquals("record 1 is already in the model", 0L, stats.getTotalSpam());
+        assertEquals("record 2 replayed", 1L, stats.getTotalHam());
+        assertEquals("dumpty", 1L, stats.getTokens().hamCount(stats.getTokens().indexOf("dumpty")));
+        assertEquals("torn record skipped", -1, stats.getTokens().indexOf("wall"));
+
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+
+    @Test
+    public void testDamagedTailIsTruncatedBeforeAppending() throws IOException {
+        File dir = new File("testdata/traininglog");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+
+        TrainingLog trainingLog = new TrainingLog(dir, 100, 1000);
+        trainingLog.open(1);
+        trainingLog.close();
+
+        // garbage at the end of the segment that will be appended to next
+        File segment = dir.listFiles()[0];
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.seek(file.length());
+        file.write(new byte[]{1, 2, 3, 4, 5, 6});
+        file.close();
+
+        trainingLog = new TrainingLog(dir, 100, 1000);
+        assertEquals("nothing to replay", 0L, trainingLog.replay(new ModelStats(), 0));
+        assertEquals("damaged bytes truncated", 0L, segment.length());
+        trainingLog.open(1);
+        trainingLog.append(1, delta("humpty", true));
+        trainingLog.close();
+
+        ModelStats stats = new ModelStats();
+        assertEquals("last replayed sequence", 1L, new TrainingLog(dir, 100, 1000).replay(stats, 0));
+        assertEquals("record appended after the damage replayed", 1L, stats.getTotalSpam());
+
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+
+    @Test
+    public void testClearDeletesCurrentSegment() throws IOException {
+        File dir = new File("testdata/traininglog");
+        FileUtils.deleteDirectory(dir);
+        dir.mkdirs();
+
+        TrainingLog trainingLog = new TrainingLog(dir, 100, 1000);
+        trainingLog.open(1);
+        trainingLog.append(1, delta("humpty", true));
+        trainingLog.append(2, delta("dumpty", false));
+        trainingLog.clear(1);
+        trainingLog.append(1, delta("wall", true));
+        trainingLog.close();
+
+        ModelStats stats = new ModelStats();
+        assertEquals("last replayed sequence", 1L, new TrainingLog(dir, 100, 1000).replay(stats, 0));
+        assertEquals("only the record after the clear", 1L, stats.getTotalSpam());
+        assertEquals("cleared ham", 0L, stats.getTotalHam());
+        assertEquals("cleared token", -1, stats.getTokens().indexOf("humpty"));
+
+        FileUtils.deleteDirectory(new File("testdata"));
+    }
+}